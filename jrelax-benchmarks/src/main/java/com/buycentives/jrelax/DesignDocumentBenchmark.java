@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes a design document holding several views and an update handler, as sent when it's created or synced.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DesignDocumentBenchmark {
+
+  private DesignDocument designDoc;
+
+  @Setup
+  public void setUp() {
+    List<DesignDocument.View> views = new ArrayList<DesignDocument.View>();
+    for (int i = 0; i < 5; i++) {
+      views.add(new DesignDocument.View("by_field" + i,
+          "function(doc) { if (doc.field" + i + ") emit(doc.field" + i + ".rank, doc.field" + i + ".name); }",
+          i % 2 == 0 ? "_count" : null));
+    }
+    designDoc = DesignDocument.createDesignDocument("ilya_test", "people", "1-abc", views,
+        Collections.singletonMap("touch", "function(doc, req) { doc.touched = true; return [doc, 'ok']; }"));
+  }
+
+  @Benchmark
+  public String asJson() {
+    return designDoc.asJson();
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates documents from text and from raw bytes, and turns them back into json the ways they're sent.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentBenchmark {
+
+  @Param({"10", "1000"})
+  public int fields;
+
+  private String json;
+  private byte[] bytes;
+  private ByteArrayOutputStream out;
+
+  @Setup
+  public void setUp() {
+    StringBuilder body = new StringBuilder("{\"type\": \"person\"");
+    for (int i = 0; i < fields; i++) {
+      body.append(", \"field").append(i).append("\": {\"name\": \"value ").append(i).append("\", \"rank\": ")
+          .append(i).append("}");
+    }
+    json = body.append("}").toString();
+    bytes = json.getBytes(Charset.forName("UTF-8"));
+    out = new ByteArrayOutputStream(bytes.length * 2);
+  }
+
+  @Benchmark
+  public Document construct() {
+    return new Document("ilya_test", "doc", json);
+  }
+
+  @Benchmark
+  public String constructAsJson() {
+    return new Document("ilya_test", "doc", json).asJson();
+  }
+
+  @Benchmark
+  public String fromBytesAsJson() {
+    return Document.fromBytes("ilya_test", "doc", "1-abc", bytes).asJson();
+  }
+
+  @Benchmark
+  public JsonNode fromBytesParsed() {
+    return Document.fromBytes("ilya_test", "doc", "1-abc", bytes).getJsonData();
+  }
+
+  @Benchmark
+  public int fromBytesWriteJson() throws IOException {
+    out.reset();
+    Document.fromBytes("ilya_test", "doc", "1-abc", bytes).writeJson(out);
+    return out.size();
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full round trips through a {@link DefaultResourceManager} and its {@link Session}, against an in-process HTTP stub
+ * answering with canned responses.  The stub does as little as possible, so the client's own cost dominates.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] DOCUMENT =
+      "{\"_id\": \"doc\", \"_rev\": \"1-abc\", \"name\": \"Ilya\", \"age\": 30}".getBytes(UTF8);
+  private static final byte[] SAVED = "{\"ok\": true, \"id\": \"doc\", \"rev\": \"2-def\"}".getBytes(UTF8);
+  private static final byte[] VIEW = ViewResultBenchmark.viewResponse(100).getBytes(UTF8);
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private Session session;
+  private DefaultResourceManager resourceMgr;
+  private Document doc;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/bench/doc", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+          exchange.getResponseHeaders().set("ETag", "\"1-abc\"");
+          respond(exchange, 200, DOCUMENT);
+        }
+        else {
+          respond(exchange, 201, SAVED);
+        }
+      }
+    });
+    server.createContext("/bench/_design/people/_view/by_age", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, VIEW);
+      }
+    });
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+
+    session = new Session("http://127.0.0.1:" + server.getAddress().getPort());
+    resourceMgr = new DefaultResourceManager(session);
+    doc = Document.fromBytes("bench", "doc", "1-abc", DOCUMENT);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.close();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    byte[] drain = new byte[4096];
+    while (in.read(drain) != -1) {
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  @Benchmark
+  public Document getDocument() {
+    return resourceMgr.getDocument("bench", "doc");
+  }
+
+  @Benchmark
+  public Document saveDocument() {
+    return resourceMgr.saveDocument(doc);
+  }
+
+  @Benchmark
+  public ViewResult<Object, Map> executeView() {
+    return resourceMgr.executeView("bench", "people", "by_age", Object.class, Map.class);
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.StringUtils;
+import com.buycentives.jrelax.utils.UriTemplate;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a view uri with the old regular expression interpolation and with a compiled {@link UriTemplate}.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UriBenchmark {
+
+  private static final String VIEW_URI = "/${dbName}/_design/${docName}/_view/${viewName}";
+  private static final UriTemplate VIEW_TEMPLATE = UriTemplate.compile(VIEW_URI);
+
+  private Map<String, String> values;
+
+  @Setup
+  public void setUp() {
+    values = new HashMap<String, String>();
+    values.put("dbName", "ilya_test");
+    values.put("docName", "people");
+    values.put("viewName", "by_age");
+  }
+
+  @Benchmark
+  @SuppressWarnings("deprecation")
+  public String interpolate() {
+    return StringUtils.interpolate(VIEW_URI, values);
+  }
+
+  @Benchmark
+  public String expandTemplate() {
+    return VIEW_TEMPLATE.expand("ilya_test", "people", "by_age");
+  }
+
+}
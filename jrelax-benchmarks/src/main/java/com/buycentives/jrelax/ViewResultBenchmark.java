@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses view responses, binding keys and values to maps and to json trees, both ways the client reads them: row by
+ * row off the stream as {@link DefaultResourceManager#streamView} does, and as a whole tree whose rows' keys and values
+ * are written back out and parsed again as {@link DefaultResourceManager#executeView} does.  Lives in the library's
+ * package to reach the iterator's stream constructor and the row constructor, so only parsing is measured.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewResultBenchmark {
+
+  @Param({"10", "1000"})
+  public int rows;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private byte[] response;
+
+  @Setup
+  public void setUp() {
+    response = viewResponse(rows).getBytes(UTF8);
+  }
+
+  static String viewResponse(int rows) {
+    StringBuilder body = new StringBuilder("{\"total_rows\": ").append(rows).append(", \"offset\": 0, \"rows\": [");
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) body.append(", ");
+      body.append("{\"id\": \"doc").append(i).append("\", \"key\": [\"person\", ").append(i)
+          .append("], \"value\": {\"name\": \"name ").append(i).append("\", \"age\": ").append(i % 90).append("}}");
+    }
+    return body.append("]}").toString();
+  }
+
+  @Benchmark
+  public void rowsAsMaps(Blackhole blackhole) {
+    ViewResultIterator<Object, Map> it =
+        new ViewResultIterator<Object, Map>(new ByteArrayInputStream(response), Object.class, Map.class);
+    while (it.hasNext()) {
+      blackhole.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void rowsAsTrees(Blackhole blackhole) {
+    ViewResultIterator<JsonNode, JsonNode> it =
+        new ViewResultIterator<JsonNode, JsonNode>(new ByteArrayInputStream(response), JsonNode.class, JsonNode.class);
+    while (it.hasNext()) {
+      blackhole.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void executeViewRowsAsMaps(Blackhole blackhole) throws IOException {
+    executeViewRows(Object.class, Map.class, blackhole);
+  }
+
+  @Benchmark
+  public void executeViewRowsAsTrees(Blackhole blackhole) throws IOException {
+    executeViewRows(JsonNode.class, JsonNode.class, blackhole);
+  }
+
+  /**
+   * Reads the response the way executeView does: the body as text, parsed into a tree, then every row's key and value
+   * turned back into json and parsed again into the row's types.
+   */
+  private <K, V> void executeViewRows(Class<K> keyType, Class<V> valueType, Blackhole blackhole) throws IOException {
+    JsonNode result = mapper.readValue(new String(response, UTF8), JsonNode.class);
+    for (JsonNode node : result.path("rows")) {
+      blackhole.consume(new ViewResult.ViewResultRow<K, V>(
+          node.path("id").getTextValue(),
+          node.path("key").toString(), keyType,
+          node.path("value").toString(), valueType,
+          ViewResult.ViewResultRow.documentFor("benchmark", node.get("doc"))
+      ));
+    }
+  }
+
+}
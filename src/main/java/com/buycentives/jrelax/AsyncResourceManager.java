@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of {@link ResourceManager}.  Every operation is submitted to an executor and returns a
+ * {@link Future} for its result, failures surface as the cause of an {@link java.util.concurrent.ExecutionException}.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public interface AsyncResourceManager {
+
+  Future<Void> createDatabase(String name);
+
+  Future<Boolean> databaseExists(String name);
+
+  Future<Void> deleteDatabase(String name);
+
+  Future<List<String>> listDatabases();
+
+  Future<Document> saveDocument(Document doc);
+
+  Future<Document> saveDocument(String dbName, String name, String jsonData);
+
+  <T> Future<String> saveDocument(String dbName, String name, T object);
+
+  Future<List<BulkResult>> saveDocuments(String dbName, Collection<Document> docs);
+
+  Future<Document> getDocument(String dbName, String name);
+
+  Future<Document> getDocument(String dbName, String name, String revisionId);
+
+  <T> Future<T> getDocumentAs(String dbName, String name, Class<T> type);
+
+  Future<List<Document>> getDocuments(String dbName, Collection<String> ids);
+
+  Future<Void> deleteDocument(Document doc);
+
+  Future<Void> deleteDocument(String dbName, String name, String revisionId);
+
+  Future<List<BulkResult>> deleteDocuments(String dbName, Collection<Document> docs);
+
+  Future<UpdateResult> callUpdateHandler(String dbName, String docName, String handlerName, String docId, Map<String, String> parameters);
+
+  Future<Document> update(String dbName, String id, DocumentUpdater updater);
+
+  Future<Document> update(Document current, DocumentUpdater updater);
+
+  Future<DesignDocument> createView(DesignDocument view);
+
+  Future<DesignDocument> syncDesignDocument(DesignDocument doc, long timeout, TimeUnit unit);
+
+  <K, V> Future<ViewResult<K, V>> executeView(String dbName, String docName, String viewName, Class<K> keyType, Class<V> valueType);
+
+  <K, V> Future<ViewResult<K, V>> executeView(ViewQuery query, Class<K> keyType, Class<V> valueType);
+
+  Future<Void> deleteView(DesignDocument view);
+
+  Future<Void> deleteView(String dbName, String viewName, String revisionId);
+
+  <K, V> Future<ViewResult<K, V>> executeTemporaryView(DesignDocument viewDoc, Class<K> keyType, Class<V> valueType);
+
+  <K, V> Future<ViewResult<K, V>> executeTemporaryView(String databaseName, String map, String reduce, Class<K> keyType, Class<V> valueType);
+
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Request body for CouchDB's <code>_bulk_docs</code> API.  Each document's id and revision are merged into its json
+ * data, and deletions are written as <code>_deleted</code> stubs.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+class BulkDocumentsRequest implements CouchJsonResource {
+
+  private final Collection<Document> docs;
+  private final boolean delete;
+
+  BulkDocumentsRequest(Collection<Document> docs, boolean delete) {
+    this.docs = docs;
+    this.delete = delete;
+  }
+
+  @Override
+  public String getId() {
+    return null;
+  }
+
+  @Override
+  public String getRevision() {
+    return null;
+  }
+
+  @Override
+  public String asJson() {
+    ObjectNode node = JsonUtils.createJsonObjectNode();
+    ArrayNode docsNode = node.putArray("docs");
+    for (Document doc : docs) {
+      docsNode.add(toJsonNode(doc));
+    }
+    return node.toString();
+  }
+
+  /**
+   * Streams the request one document at a time, so only a single document's tree is built at once.
+   */
+  @Override
+  public void writeJson(OutputStream out) throws IOException {
+    JsonGenerator generator = JsonUtils.createJsonGenerator(out);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("docs");
+    for (Document doc : docs) {
+      generator.writeTree(toJsonNode(doc));
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.close();
+  }
+
+  private ObjectNode toJsonNode(Document doc) {
+    ObjectNode docNode = JsonUtils.createJsonObjectNode();
+    if (doc.getId() != null) docNode.put("_id", doc.getId());
+    if (doc.getRevision() != null) docNode.put("_rev", doc.getRevision());
+    if (delete) {
+      docNode.put("_deleted", true);
+      return docNode;
+    }
+    JsonNode data = doc.parsedData();
+    if (!data.isObject())
+      throw new IllegalArgumentException("Document (" + doc.getId() + ") must be a json object to be saved in bulk.");
+    for (Iterator<Map.Entry<String, JsonNode>> fields = ((ObjectNode) data).getFields(); fields.hasNext();) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (docNode.get(field.getKey()) == null)
+        docNode.put(field.getKey(), field.getValue());
+    }
+    return docNode;
+  }
+
+}
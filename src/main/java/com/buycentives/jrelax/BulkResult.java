@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Outcome of a single document within a <code>_bulk_docs</code> request.  CouchDB reports success or failure per
+ * document, so a conflict on one document doesn't fail the rest of the batch.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class BulkResult {
+
+  public static final String CONFLICT = "conflict";
+
+  private final String id;
+  private final String revision;
+  private final String error;
+  private final String reason;
+
+  public BulkResult(String id, String revision, String error, String reason) {
+    this.id = id;
+    this.revision = revision;
+    this.error = error;
+    this.reason = reason;
+  }
+
+  static BulkResult fromJson(JsonNode node) {
+    return new BulkResult(
+        node.path("id").getTextValue(),
+        node.path("rev").getTextValue(),
+        node.path("error").getTextValue(),
+        node.path("reason").getTextValue()
+    );
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the new revision of the document, or null if the write failed.
+   */
+  public String getRevision() {
+    return revision;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  public boolean isOk() {
+    return error == null;
+  }
+
+  public boolean isConflict() {
+    return CONFLICT.equals(error);
+  }
+
+  @Override
+  public String toString() {
+    return isOk() ? id + "@" + revision : id + " (" + error + ": " + reason + ")";
+  }
+}
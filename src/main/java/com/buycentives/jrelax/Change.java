@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.codehaus.jackson.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single row of a database's <code>_changes</code> feed.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class Change {
+
+  private final String sequence;
+  private final String id;
+  private final boolean deleted;
+  private final List<String> revisions;
+  private final Document doc;
+
+  public Change(String sequence, String id, boolean deleted, List<String> revisions, Document doc) {
+    this.sequence = sequence;
+    this.id = id;
+    this.deleted = deleted;
+    this.revisions = revisions;
+    this.doc = doc;
+  }
+
+  static Change fromJson(String dbName, JsonNode node) {
+    List<String> revisions = new ArrayList<String>(1);
+    for (JsonNode rev : node.path("changes")) {
+      revisions.add(rev.path("rev").getTextValue());
+    }
+    String id = node.path("id").getTextValue();
+    JsonNode docNode = node.path("doc");
+    Document doc = docNode.isObject() ?
+        Document.createDocument(dbName, id, docNode.path("_rev").getTextValue(), docNode) : null;
+    return new Change(node.path("seq").getValueAsText(), id, node.path("deleted").getBooleanValue(),
+        Collections.unmodifiableList(revisions), doc);
+  }
+
+  /**
+   * @return the update sequence of this change, as text.  Pass it as the <code>since</code> of a later feed to resume
+   *         after this change.
+   */
+  public String getSequence() {
+    return sequence;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  /**
+   * @return the leaf revisions of the changed document, usually just the winning one.
+   */
+  public List<String> getRevisions() {
+    return revisions;
+  }
+
+  /**
+   * @return the changed document when the feed includes documents, otherwise null.
+   */
+  public Document getDocument() {
+    return doc;
+  }
+
+  @Override
+  public String toString() {
+    return sequence + ": " + id + (deleted ? " (deleted)" : "");
+  }
+}
@@ -0,0 +1,324 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import com.buycentives.jrelax.utils.UriTemplate;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.restlet.data.Status;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Consumes a database's <code>_changes</code> feed on a background thread, delivering changes to a
+ * {@link ChangesListener} in batches.
+ * <p/>
+ * Changes are parsed off the response stream as they arrive and handed to the listener on the feed's own thread.
+ * Nothing more is read while the listener runs, so a slow listener pushes back on CouchDB through the connection
+ * rather than buffering changes.  After each batch the last sequence is saved to the options' checkpoint store, and
+ * so is a later <code>last_seq</code> reported by CouchDB, e.g. past changes a filter left out.
+ * Dropped connections are reopened from the last delivered sequence, backing off exponentially while they keep
+ * failing.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ChangesFeed {
+
+  private static final UriTemplate CHANGES_URI = UriTemplate.compile("/${dbName}/_changes?feed=${feed}");
+
+  private final Session session;
+  private final String dbName;
+  private final ChangesOptions options;
+  private final ChangesListener listener;
+
+  private volatile boolean running;
+  private volatile String lastSequence;
+  private volatile InputStream current;
+  private volatile Throwable failure;
+  private volatile long caughtUpAt;
+  private Thread thread;
+
+  ChangesFeed(Session session, String dbName, ChangesOptions options, ChangesListener listener) {
+    this.session = session;
+    this.dbName = dbName;
+    this.options = options;
+    this.listener = listener;
+    this.lastSequence = options.getSince();
+    if (lastSequence == null && options.getCheckpointStore() != null) {
+      lastSequence = options.getCheckpointStore().load(dbName);
+    }
+  }
+
+  public String getDatabaseName() {
+    return dbName;
+  }
+
+  /**
+   * @return the sequence of the last change delivered to the listener, or the sequence the feed started from.
+   */
+  public String getLastSequence() {
+    return lastSequence;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @return the time in milliseconds at which CouchDB last told the feed it had no more changes waiting, through a
+   *         heartbeat on a continuous feed or the end of a longpoll response, or 0 if it hasn't yet.  Everything up to
+   *         that moment has been delivered to the listener.
+   */
+  public long getLastCaughtUpTime() {
+    return caughtUpAt;
+  }
+
+  /**
+   * @return the exception thrown by the listener which stopped the feed, if any.
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        consume();
+      }
+    }, "jrelax-changes-" + dbName);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the feed, closing its connection.  A batch being delivered is allowed to finish.
+   */
+  public void stop() {
+    running = false;
+    closeCurrent();
+    Thread t;
+    synchronized (this) {
+      t = thread;
+    }
+    if (t != null && t != Thread.currentThread()) t.interrupt();
+  }
+
+  /**
+   * Waits for the feed's thread to finish after {@link #stop()}, or after a listener failure.
+   *
+   * @return true if the feed stopped within the timeout
+   */
+  public boolean awaitTermination(long millis) throws InterruptedException {
+    Thread t;
+    synchronized (this) {
+      t = thread;
+    }
+    if (t == null) return true;
+    t.join(millis);
+    return !t.isAlive();
+  }
+
+  private void consume() {
+    long delay = options.getReconnectDelay();
+    while (running) {
+      try {
+        String uri = uri();
+        CouchResponse<InputStream> response = session.getStream(uri);
+        if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+          throw new CouchDbException("Couldn't open changes feed: (" + uri + ")\nReturned: " +
+              response.getStatus() + " - " + response.getStatusDescription(), response.getStatus());
+        }
+        current = response.getResponseObject();
+        delay = options.getReconnectDelay();
+        try {
+          if (options.getFeed() == ChangesOptions.Feed.CONTINUOUS)
+            readContinuous(current);
+          else
+            readLongpoll(current);
+        }
+        finally {
+          closeCurrent();
+        }
+      }
+      catch (ListenerFailure e) {
+        failure = e.getCause();
+        running = false;
+      }
+      catch (Exception e) {
+        if (!running) break;
+        try {
+          Thread.sleep(delay);
+        }
+        catch (InterruptedException ie) {
+          break;
+        }
+        delay = Math.min(delay * 2, options.getMaxReconnectDelay());
+      }
+    }
+    running = false;
+  }
+
+  /**
+   * A continuous feed sends one change per line, with empty lines as heartbeats, and ends with the last sequence
+   * when CouchDB closes it.
+   */
+  private void readContinuous(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    List<Change> batch = new ArrayList<Change>(options.getBatchSize());
+    String line;
+    while (running && (line = reader.readLine()) != null) {
+      if (line.length() > 0) {
+        JsonNode node = JsonUtils.parseToJson(line, JsonNode.class);
+        if (node.get("last_seq") != null) {
+          if (!batch.isEmpty()) {
+            deliver(batch);
+            batch = new ArrayList<Change>(options.getBatchSize());
+          }
+          checkpoint(node.get("last_seq").getValueAsText());
+        }
+        else {
+          batch.add(Change.fromJson(dbName, node));
+        }
+      }
+      else if (batch.isEmpty()) {
+        caughtUpAt = System.currentTimeMillis();
+      }
+      if (batch.size() >= options.getBatchSize() || (!batch.isEmpty() && !reader.ready())) {
+        deliver(batch);
+        batch = new ArrayList<Change>(options.getBatchSize());
+      }
+    }
+    if (running && !batch.isEmpty()) deliver(batch);
+  }
+
+  /**
+   * A longpoll response is a single object holding the results array and the last sequence.
+   */
+  private void readLongpoll(InputStream in) throws IOException {
+    JsonParser parser = JsonUtils.createJsonParser(in);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Changes response is not a json object.");
+      String last = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("results".equals(field)) {
+          List<Change> batch = new ArrayList<Change>(options.getBatchSize());
+          while (running && parser.nextToken() == JsonToken.START_OBJECT) {
+            batch.add(Change.fromJson(dbName, JsonUtils.readValue(parser, JsonNode.class)));
+            if (batch.size() >= options.getBatchSize()) {
+              deliver(batch);
+              batch = new ArrayList<Change>(options.getBatchSize());
+            }
+          }
+          if (!running) return;
+          if (!batch.isEmpty()) deliver(batch);
+        }
+        else if ("last_seq".equals(field)) {
+          last = parser.getText();
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+      if (last != null) checkpoint(last);
+      caughtUpAt = System.currentTimeMillis();
+    }
+    finally {
+      parser.close();
+    }
+  }
+
+  private void deliver(List<Change> batch) {
+    try {
+      listener.onChanges(Collections.unmodifiableList(batch));
+    }
+    catch (RuntimeException e) {
+      throw new ListenerFailure(e);
+    }
+    checkpoint(batch.get(batch.size() - 1).getSequence());
+  }
+
+  /**
+   * Moves the feed on to a sequence and saves it, including one past the last delivered change, as a filtered feed or
+   * a response ending on <code>last_seq</code> reports, so a restart doesn't read those changes again.
+   */
+  private void checkpoint(String sequence) {
+    if (sequence == null || sequence.equals(lastSequence)) return;
+    lastSequence = sequence;
+    CheckpointStore store = options.getCheckpointStore();
+    if (store != null) store.save(dbName, sequence);
+  }
+
+  private String uri() {
+    StringBuilder uri = CHANGES_URI.expandToBuffer(dbName, options.getFeed().name().toLowerCase(Locale.ENGLISH));
+    if (options.getFeed() == ChangesOptions.Feed.CONTINUOUS)
+      uri.append("&heartbeat=").append(options.getHeartbeat());
+    if (lastSequence != null)
+      UriTemplate.appendQueryParameter(uri, "since", lastSequence);
+    if (options.isIncludeDocs())
+      uri.append("&include_docs=true");
+    if (options.getFilter() != null) {
+      UriTemplate.appendQueryParameter(uri, "filter", options.getFilter());
+      for (Map.Entry<String, String> param : options.getFilterParameters().entrySet()) {
+        UriTemplate.appendQueryParameter(uri, param.getKey(), param.getValue());
+      }
+    }
+    return uri.toString();
+  }
+
+  private void closeCurrent() {
+    InputStream in = current;
+    current = null;
+    if (in != null) {
+      try {
+        in.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  private static class ListenerFailure extends RuntimeException {
+    ListenerFailure(Throwable cause) {
+      super(cause);
+    }
+  }
+
+}
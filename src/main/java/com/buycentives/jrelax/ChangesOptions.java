@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Options of a {@link ChangesFeed}.  Durations are in milliseconds.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ChangesOptions {
+
+  public enum Feed {
+    /**
+     * One long lived connection, changes arrive as they happen.
+     */
+    CONTINUOUS,
+    /**
+     * A request per batch, each one held open by CouchDB until there's at least one change.
+     */
+    LONGPOLL
+  }
+
+  private Feed feed = Feed.CONTINUOUS;
+  private String since;
+  private boolean includeDocs;
+  private String filter;
+  private Map<String, String> filterParameters = new LinkedHashMap<String, String>();
+  private long heartbeat = 10000;
+  private int batchSize = 100;
+  private long reconnectDelay = 1000;
+  private long maxReconnectDelay = 60000;
+  private CheckpointStore checkpointStore;
+
+  public Feed getFeed() {
+    return feed;
+  }
+
+  public ChangesOptions setFeed(Feed feed) {
+    this.feed = feed;
+    return this;
+  }
+
+  public String getSince() {
+    return since;
+  }
+
+  /**
+   * @param since sequence to start after.  When not set the feed starts at the checkpoint, if there's a checkpoint
+   *              store, or at the beginning of the database.  "now" skips all existing changes.
+   */
+  public ChangesOptions setSince(String since) {
+    this.since = since;
+    return this;
+  }
+
+  public boolean isIncludeDocs() {
+    return includeDocs;
+  }
+
+  public ChangesOptions setIncludeDocs(boolean includeDocs) {
+    this.includeDocs = includeDocs;
+    return this;
+  }
+
+  public String getFilter() {
+    return filter;
+  }
+
+  /**
+   * @param filter filter function as <code>designDocName/filterName</code>
+   */
+  public ChangesOptions setFilter(String filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  public Map<String, String> getFilterParameters() {
+    return Collections.unmodifiableMap(filterParameters);
+  }
+
+  /**
+   * Adds a query parameter, which the filter function sees in <code>req.query</code>.
+   */
+  public ChangesOptions addFilterParameter(String name, String value) {
+    filterParameters.put(name, value);
+    return this;
+  }
+
+  public long getHeartbeat() {
+    return heartbeat;
+  }
+
+  /**
+   * @param heartbeat how often CouchDB sends a newline on an idle feed.  Must be below the session's read timeout.
+   */
+  public ChangesOptions setHeartbeat(long heartbeat) {
+    this.heartbeat = heartbeat;
+    return this;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize maximum number of changes passed to the listener at once.  Smaller batches are delivered
+   *                  whenever no more changes are immediately available.
+   */
+  public ChangesOptions setBatchSize(int batchSize) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("Batch size must be positive, was " + batchSize + ".");
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  public long getReconnectDelay() {
+    return reconnectDelay;
+  }
+
+  /**
+   * @param reconnectDelay delay before reconnecting after a failure, doubled on every consecutive failure
+   */
+  public ChangesOptions setReconnectDelay(long reconnectDelay) {
+    this.reconnectDelay = reconnectDelay;
+    return this;
+  }
+
+  public long getMaxReconnectDelay() {
+    return maxReconnectDelay;
+  }
+
+  public ChangesOptions setMaxReconnectDelay(long maxReconnectDelay) {
+    this.maxReconnectDelay = maxReconnectDelay;
+    return this;
+  }
+
+  public CheckpointStore getCheckpointStore() {
+    return checkpointStore;
+  }
+
+  /**
+   * @param checkpointStore where to persist the sequence of every delivered batch, may be null
+   */
+  public ChangesOptions setCheckpointStore(CheckpointStore checkpointStore) {
+    this.checkpointStore = checkpointStore;
+    return this;
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A session spread over several CouchDB servers which hold the same databases, e.g. the nodes of a cluster or a set of
+ * replicas.  Each exchange goes to a server picked by the session's {@link Balancing balancing}, so a
+ * {@link DefaultResourceManager} works with it unchanged.
+ * <p/>
+ * A server is marked down when an exchange with it fails to connect, or when the background health check, run every
+ * {@link SessionConfig#getHealthCheckInterval()} milliseconds, can't reach it.  It's marked up again once the health
+ * check reaches it.  While every server is down, requests still go to the first one rather than failing here.
+ * <p/>
+ * With primary writes, everything but <code>GET</code> and <code>HEAD</code> goes to the first server, including
+ * posted queries such as views with keys.  <code>_changes</code> feeds should use a single node session unless the
+ * servers share sequence numbers.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ClusterSession extends Session {
+
+  public enum Balancing {
+    /**
+     * Takes the servers in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Picks the server with the fewest exchanges in progress.
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * Picks the server with the lowest recent latency, weighted by its exchanges in progress.
+     */
+    LATENCY_WEIGHTED
+  }
+
+  // Weight of the newest sample in the latency moving averages
+  private static final double LATENCY_DECAY = 0.2;
+
+  private final List<Node> nodes;
+  private final Map<String, Node> nodesByUrl;
+  private final Balancing balancing;
+  private final boolean primaryWrites;
+  private final AtomicInteger nextNode = new AtomicInteger();
+  private final ScheduledExecutorService healthChecker;
+
+  public ClusterSession(List<String> baseUrls, Balancing balancing) {
+    this(baseUrls, new SessionConfig(), balancing, false);
+  }
+
+  /**
+   * @param baseUrls      urls of the servers, the first being the primary
+   * @param config        connection settings, the connection limit applies to all servers together
+   * @param balancing     how reads, and writes unless they go to the primary, are spread over the servers
+   * @param primaryWrites send every request which isn't a read to the first server
+   */
+  public ClusterSession(List<String> baseUrls, SessionConfig config, Balancing balancing, boolean primaryWrites) {
+    super(primary(baseUrls), config);
+    this.balancing = balancing;
+    this.primaryWrites = primaryWrites;
+    List<Node> nodes = new ArrayList<Node>(baseUrls.size());
+    Map<String, Node> nodesByUrl = new LinkedHashMap<String, Node>();
+    for (String url : baseUrls) {
+      if (nodesByUrl.containsKey(url))
+        throw new IllegalArgumentException("Server (" + url + ") is listed more than once.");
+      Node node = new Node(url);
+      nodes.add(node);
+      nodesByUrl.put(url, node);
+    }
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.nodesByUrl = nodesByUrl;
+    this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "jrelax-health-check");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long interval = config.getHealthCheckInterval();
+    healthChecker.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        checkHealth();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the servers currently marked up, in the order they were given.
+   */
+  public List<String> getAvailableBaseUrls() {
+    List<String> urls = new ArrayList<String>(nodes.size());
+    for (Node node : nodes) {
+      if (node.up) urls.add(node.url);
+    }
+    return urls;
+  }
+
+  /**
+   * Probes every server right away, instead of waiting for the next health check.
+   */
+  public void checkHealth() {
+    for (Node node : nodes) {
+      node.up = isReachable(node.url);
+    }
+  }
+
+  /**
+   * Stops the health checks and closes the connections to all servers.
+   */
+  @Override
+  public void close() {
+    healthChecker.shutdownNow();
+    super.close();
+  }
+
+  @Override
+  protected String selectBaseUrl(String method) {
+    Node node = primaryWrites && !isRead(method) ? nodes.get(0) : balance();
+    node.outstanding.incrementAndGet();
+    return node.url;
+  }
+
+  @Override
+  protected void exchangeCompleted(String baseUrl, int statusCode, long durationNanos) {
+    Node node = nodesByUrl.get(baseUrl);
+    node.outstanding.decrementAndGet();
+    if (statusCode == 0 || statusCode >= 1000) {
+      // Connector error, the server didn't answer
+      node.up = false;
+      return;
+    }
+    synchronized (node) {
+      node.latencyNanos = node.latencyNanos == 0 ?
+          durationNanos : node.latencyNanos + LATENCY_DECAY * (durationNanos - node.latencyNanos);
+    }
+  }
+
+  @Override
+  protected void exchangeNotSent(String baseUrl) {
+    nodesByUrl.get(baseUrl).outstanding.decrementAndGet();
+  }
+
+  private Node balance() {
+    int size = nodes.size();
+    int first = (nextNode.getAndIncrement() & Integer.MAX_VALUE) % size;
+    Node best = null;
+    double bestScore = Double.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      Node node = nodes.get((first + i) % size);
+      if (!node.up) continue;
+      if (balancing == Balancing.ROUND_ROBIN) return node;
+      double score = balancing == Balancing.LEAST_OUTSTANDING ?
+          node.outstanding.get() : (node.latencyNanos + 1) * (node.outstanding.get() + 1);
+      // Ties go to the first server in turn, spreading load over equally good servers
+      if (score < bestScore) {
+        best = node;
+        bestScore = score;
+      }
+    }
+    return best != null ? best : nodes.get(0);
+  }
+
+  private static boolean isRead(String method) {
+    return "GET".equals(method) || "HEAD".equals(method);
+  }
+
+  private static String primary(List<String> baseUrls) {
+    if (baseUrls.isEmpty())
+      throw new IllegalArgumentException("A cluster session needs at least one server.");
+    return baseUrls.get(0);
+  }
+
+  private static class Node {
+
+    final String url;
+    final AtomicInteger outstanding = new AtomicInteger();
+    volatile boolean up = true;
+    volatile double latencyNanos;
+
+    Node(String url) {
+      this.url = url;
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+/**
+ * Point in time totals of a {@link Session}'s gzipped bodies, as their size on the wire against their size
+ * uncompressed.  Bodies which weren't gzipped aren't counted.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class CompressionStats {
+
+  private final long requestBytesCompressed;
+  private final long requestBytesUncompressed;
+  private final long responseBytesCompressed;
+  private final long responseBytesUncompressed;
+
+  public CompressionStats(long requestBytesCompressed, long requestBytesUncompressed,
+                          long responseBytesCompressed, long responseBytesUncompressed) {
+    this.requestBytesCompressed = requestBytesCompressed;
+    this.requestBytesUncompressed = requestBytesUncompressed;
+    this.responseBytesCompressed = responseBytesCompressed;
+    this.responseBytesUncompressed = responseBytesUncompressed;
+  }
+
+  public long getRequestBytesCompressed() {
+    return requestBytesCompressed;
+  }
+
+  public long getRequestBytesUncompressed() {
+    return requestBytesUncompressed;
+  }
+
+  public long getResponseBytesCompressed() {
+    return responseBytesCompressed;
+  }
+
+  public long getResponseBytesUncompressed() {
+    return responseBytesUncompressed;
+  }
+
+  /**
+   * @return the bytes compression kept off the wire, in both directions.
+   */
+  public long getBytesSaved() {
+    return requestBytesUncompressed - requestBytesCompressed + responseBytesUncompressed - responseBytesCompressed;
+  }
+
+  @Override
+  public String toString() {
+    return "[requests: " + requestBytesCompressed + "/" + requestBytesUncompressed + ", responses: " +
+        responseBytesCompressed + "/" + responseBytesUncompressed + ", saved: " + getBytesSaved() + "]";
+  }
+}
@@ -0,0 +1,75 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+/**
+ * Point in time snapshot of a {@link Session}'s connection usage.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ConnectionPoolStats {
+
+  private final int max;
+  private final int leased;
+  private final int pending;
+
+  public ConnectionPoolStats(int max, int leased, int pending) {
+    this.max = max;
+    this.leased = leased;
+    this.pending = pending;
+  }
+
+  public int getMax() {
+    return max;
+  }
+
+  /**
+   * @return connections currently in use by a request, including open response streams.
+   */
+  public int getLeased() {
+    return leased;
+  }
+
+  /**
+   * @return connections which may be leased without waiting.  These are either idle kept-alive connections or
+   *         slots for new ones.
+   */
+  public int getAvailable() {
+    return max - leased;
+  }
+
+  /**
+   * @return requests waiting for a connection to become available.
+   */
+  public int getPending() {
+    return pending;
+  }
+
+  @Override
+  public String toString() {
+    return "[leased: " + leased + ", available: " + getAvailable() + ", pending: " + pending + ", max: " + max + "]";
+  }
+}
@@ -24,6 +24,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package com.buycentives.jrelax;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * @author Ilya Sterin
  * @version 1.0
@@ -36,4 +39,10 @@ public interface CouchJsonResource {
 
   String asJson();
 
+  /**
+   * Writes the same json as {@link #asJson()} to the stream as UTF-8, without building it as a string first.  Request
+   * bodies are sent this way.  The stream must be left open.
+   */
+  void writeJson(OutputStream out) throws IOException;
+
 }
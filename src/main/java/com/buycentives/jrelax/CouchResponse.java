@@ -25,6 +25,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.buycentives.jrelax;
 
 import org.restlet.data.Status;
+import org.restlet.util.Series;
 
 import java.util.Map;
 
@@ -36,6 +37,8 @@ public class CouchResponse<T> {
 
   private Status status;
   private T responseObject;
+  private String entityTag;
+  private Series<?> headers;
 
   public CouchResponse(Status status) {
     this.status = status;
@@ -54,6 +57,28 @@ public class CouchResponse<T> {
     return responseObject;
   }
 
+  /**
+   * @return the response's <code>ETag</code> without quotes, which for documents is their revision, or null.
+   */
+  public String getEntityTag() {
+    return entityTag;
+  }
+
+  void setEntityTag(String entityTag) {
+    this.entityTag = entityTag;
+  }
+
+  /**
+   * @return the first value of a response header, matched ignoring case, or null if the response didn't have it.
+   */
+  public String getHeader(String name) {
+    return headers != null ? headers.getFirstValue(name, true) : null;
+  }
+
+  void setHeaders(Series<?> headers) {
+    this.headers = headers;
+  }
+
   public String getStatusDescription() {
     return status.getDescription();
   }
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which the operations of the current thread must complete.  While a deadline is in effect, every
+ * request a {@link Session} makes on the thread, and so every {@link ResourceManager} call, fails with a
+ * {@link DeadlineExceededException} once the deadline passes, instead of waiting on the server.
+ * <pre>
+ * Deadline deadline = Deadline.start(200, TimeUnit.MILLISECONDS);
+ * try {
+ *   doc = resourceMgr.getDocument("db", "id");
+ * }
+ * finally {
+ *   deadline.end();
+ * }
+ * </pre>
+ * Deadlines nest, an inner deadline never extends an outer one.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public final class Deadline {
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+  private final long expiresAt;
+  private final Deadline previous;
+
+  private Deadline(long expiresAt, Deadline previous) {
+    this.expiresAt = expiresAt;
+    this.previous = previous;
+  }
+
+  /**
+   * Puts a deadline in effect on the current thread until {@link #end()} is called.
+   *
+   * @param timeout time left from now, which is cut to whatever is left of an enclosing deadline
+   */
+  public static Deadline start(long timeout, TimeUnit unit) {
+    return attach(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * @return the deadline in effect on the current thread, or null if there's none.
+   */
+  public static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Puts a deadline taken from another thread in effect on the current thread until {@link #end()} is called on the
+   * returned deadline.
+   */
+  public static Deadline resume(Deadline deadline) {
+    return attach(deadline.expiresAt);
+  }
+
+  /**
+   * Takes this deadline out of effect, putting back the deadline which was in effect when it started.
+   */
+  public void end() {
+    if (CURRENT.get() != this)
+      throw new IllegalStateException("Deadlines must be ended on the thread they were started on, innermost first.");
+    if (previous != null) CURRENT.set(previous);
+    else CURRENT.remove();
+  }
+
+  /**
+   * @return the time left, 0 once the deadline has passed.
+   */
+  public long remaining(TimeUnit unit) {
+    long left = expiresAt - System.nanoTime();
+    return left > 0 ? unit.convert(left, TimeUnit.NANOSECONDS) : 0;
+  }
+
+  public boolean isExpired() {
+    return expiresAt - System.nanoTime() <= 0;
+  }
+
+  private static Deadline attach(long expiresAt) {
+    Deadline previous = CURRENT.get();
+    if (previous != null && previous.expiresAt - expiresAt < 0) expiresAt = previous.expiresAt;
+    Deadline deadline = new Deadline(expiresAt, previous);
+    CURRENT.set(deadline);
+    return deadline;
+  }
+
+}
@@ -0,0 +1,372 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link AsyncResourceManager} which runs the operations of a blocking {@link ResourceManager} on an executor.
+ * <p/>
+ * Unless an executor is given, each operation runs on its own virtual thread when the JVM supports them (Java 21+),
+ * so hundreds of concurrent requests don't tie up hundreds of platform threads.  Older JVMs fall back to a cached
+ * pool of daemon threads.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class DefaultAsyncResourceManager implements AsyncResourceManager {
+
+  private final ResourceManager delegate;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  public DefaultAsyncResourceManager(String baseUrl) {
+    this(new DefaultResourceManager(baseUrl));
+  }
+
+  public DefaultAsyncResourceManager(ResourceManager delegate) {
+    this(delegate, createDefaultExecutor(), true);
+  }
+
+  public DefaultAsyncResourceManager(ResourceManager delegate, ExecutorService executor) {
+    this(delegate, executor, false);
+  }
+
+  private DefaultAsyncResourceManager(ResourceManager delegate, ExecutorService executor, boolean ownsExecutor) {
+    this.delegate = delegate;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  public ResourceManager getResourceManager() {
+    return delegate;
+  }
+
+  /**
+   * Shuts down the default executor.  Executors passed in by the caller are left for the caller to shut down.
+   */
+  public void shutdown() {
+    if (ownsExecutor) executor.shutdown();
+  }
+
+  @Override
+  public Future<Void> createDatabase(final String name) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.createDatabase(name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<Boolean> databaseExists(final String name) {
+    return submit(new Callable<Boolean>() {
+      public Boolean call() {
+        return delegate.databaseExists(name);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteDatabase(final String name) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.deleteDatabase(name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<List<String>> listDatabases() {
+    return submit(new Callable<List<String>>() {
+      public List<String> call() {
+        return delegate.listDatabases();
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> saveDocument(final Document doc) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.saveDocument(doc);
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> saveDocument(final String dbName, final String name, final String jsonData) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.saveDocument(dbName, name, jsonData);
+      }
+    });
+  }
+
+  @Override
+  public <T> Future<String> saveDocument(final String dbName, final String name, final T object) {
+    return submit(new Callable<String>() {
+      public String call() {
+        return delegate.saveDocument(dbName, name, object);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<BulkResult>> saveDocuments(final String dbName, final Collection<Document> docs) {
+    return submit(new Callable<List<BulkResult>>() {
+      public List<BulkResult> call() {
+        return delegate.saveDocuments(dbName, docs);
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> getDocument(final String dbName, final String name) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.getDocument(dbName, name);
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> getDocument(final String dbName, final String name, final String revisionId) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.getDocument(dbName, name, revisionId);
+      }
+    });
+  }
+
+  @Override
+  public <T> Future<T> getDocumentAs(final String dbName, final String name, final Class<T> type) {
+    return submit(new Callable<T>() {
+      public T call() {
+        return delegate.getDocumentAs(dbName, name, type);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<Document>> getDocuments(final String dbName, final Collection<String> ids) {
+    return submit(new Callable<List<Document>>() {
+      public List<Document> call() {
+        return delegate.getDocuments(dbName, ids);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteDocument(final Document doc) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.deleteDocument(doc);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteDocument(final String dbName, final String name, final String revisionId) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.deleteDocument(dbName, name, revisionId);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<List<BulkResult>> deleteDocuments(final String dbName, final Collection<Document> docs) {
+    return submit(new Callable<List<BulkResult>>() {
+      public List<BulkResult> call() {
+        return delegate.deleteDocuments(dbName, docs);
+      }
+    });
+  }
+
+  @Override
+  public Future<UpdateResult> callUpdateHandler(final String dbName, final String docName, final String handlerName, final String docId, final Map<String, String> parameters) {
+    return submit(new Callable<UpdateResult>() {
+      public UpdateResult call() {
+        return delegate.callUpdateHandler(dbName, docName, handlerName, docId, parameters);
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> update(final String dbName, final String id, final DocumentUpdater updater) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.update(dbName, id, updater);
+      }
+    });
+  }
+
+  @Override
+  public Future<Document> update(final Document current, final DocumentUpdater updater) {
+    return submit(new Callable<Document>() {
+      public Document call() {
+        return delegate.update(current, updater);
+      }
+    });
+  }
+
+  @Override
+  public Future<DesignDocument> createView(final DesignDocument view) {
+    return submit(new Callable<DesignDocument>() {
+      public DesignDocument call() {
+        return delegate.createView(view);
+      }
+    });
+  }
+
+  @Override
+  public Future<DesignDocument> syncDesignDocument(final DesignDocument doc, final long timeout, final TimeUnit unit) {
+    return submit(new Callable<DesignDocument>() {
+      public DesignDocument call() {
+        return delegate.syncDesignDocument(doc, timeout, unit);
+      }
+    });
+  }
+
+  @Override
+  public <K, V> Future<ViewResult<K, V>> executeView(final String dbName, final String docName, final String viewName, final Class<K> keyType, final Class<V> valueType) {
+    return submit(new Callable<ViewResult<K, V>>() {
+      public ViewResult<K, V> call() {
+        return delegate.executeView(dbName, docName, viewName, keyType, valueType);
+      }
+    });
+  }
+
+  @Override
+  public <K, V> Future<ViewResult<K, V>> executeView(ViewQuery query, final Class<K> keyType, final Class<V> valueType) {
+    // Copied, the caller is free to reuse the query once this returns
+    final ViewQuery snapshot = query.copy();
+    return submit(new Callable<ViewResult<K, V>>() {
+      public ViewResult<K, V> call() {
+        return delegate.executeView(snapshot, keyType, valueType);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteView(final DesignDocument view) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.deleteView(view);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> deleteView(final String dbName, final String viewName, final String revisionId) {
+    return submit(new Callable<Void>() {
+      public Void call() {
+        delegate.deleteView(dbName, viewName, revisionId);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public <K, V> Future<ViewResult<K, V>> executeTemporaryView(final DesignDocument viewDoc, final Class<K> keyType, final Class<V> valueType) {
+    return submit(new Callable<ViewResult<K, V>>() {
+      public ViewResult<K, V> call() {
+        return delegate.executeTemporaryView(viewDoc, keyType, valueType);
+      }
+    });
+  }
+
+  @Override
+  public <K, V> Future<ViewResult<K, V>> executeTemporaryView(final String databaseName, final String map, final String reduce, final Class<K> keyType, final Class<V> valueType) {
+    return submit(new Callable<ViewResult<K, V>>() {
+      public ViewResult<K, V> call() {
+        return delegate.executeTemporaryView(databaseName, map, reduce, keyType, valueType);
+      }
+    });
+  }
+
+  /*
+  ------------- Private methods below -------------
+  */
+
+  /**
+   * The operation runs under the caller's {@link Deadline}, if there's one.
+   */
+  private <T> Future<T> submit(final Callable<T> task) {
+    final Deadline deadline = Deadline.current();
+    if (deadline == null) return executor.submit(task);
+    return executor.submit(new Callable<T>() {
+      public T call() throws Exception {
+        Deadline resumed = Deadline.resume(deadline);
+        try {
+          return task.call();
+        }
+        finally {
+          resumed.end();
+        }
+      }
+    });
+  }
+
+  static ExecutorService createDefaultExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    }
+    catch (Exception e) {
+      // Virtual threads aren't available on this JVM
+      return Executors.newCachedThreadPool(new DaemonThreadFactory());
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "jrelax-async-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
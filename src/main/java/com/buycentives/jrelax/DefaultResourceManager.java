@@ -26,11 +26,27 @@ package com.buycentives.jrelax;
 
 import com.buycentives.jrelax.CouchResponse;
 import static com.buycentives.jrelax.utils.JsonUtils.*;
-import static com.buycentives.jrelax.utils.StringUtils.*;
+import com.buycentives.jrelax.utils.UriTemplate;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.restlet.data.MediaType;
 import org.restlet.data.Status;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ilya Sterin
@@ -38,18 +54,45 @@ import java.util.*;
  */
 public class DefaultResourceManager implements ResourceManager {
 
-  private static final String CREATE_DB_URI = "/${name}/";
+  private static final UriTemplate CREATE_DB_URI = UriTemplate.compile("/${name}/");
   private static final String LIST_DBS_URI = "/_all_dbs";
 
-  private static final String DOC_URI = "/${dbName}/${name}";
-  private static final String REVISION_DOC_URI = "/${dbName}/${name}?rev=${rev}";
+  private static final UriTemplate DOC_URI = UriTemplate.compile("/${dbName}/${name}");
+  private static final UriTemplate REVISION_DOC_URI = UriTemplate.compile("/${dbName}/${name}?rev=${rev}");
+  private static final UriTemplate BULK_DOCS_URI = UriTemplate.compile("/${dbName}/_bulk_docs");
+  private static final UriTemplate DESIGN_DOCS_URI =
+      UriTemplate.compile("/${dbName}/_all_docs?startkey=${startKey}&endkey=${endKey}");
+  private static final UriTemplate ALL_DOCS_WITH_DOCS_URI = UriTemplate.compile("/${dbName}/_all_docs?include_docs=true");
 
-  private static final String CREATE_TEMP_VIEW_URI = "/${dbName}/_temp_view";
-  private static final String CREATE_VIEW_URI = "/${dbName}/_design/${name}";
-  private static final String EXECUTE_VIEW_URI = "/${dbName}/_design/${docName}/_view/${viewName}";
+  private static final UriTemplate ATTACHMENT_URI = UriTemplate.compile("/${dbName}/${docId}/${name}");
+  private static final UriTemplate REVISION_ATTACHMENT_URI = UriTemplate.compile("/${dbName}/${docId}/${name}?rev=${rev}");
 
+  private static final UriTemplate CREATE_TEMP_VIEW_URI = UriTemplate.compile("/${dbName}/_temp_view");
+  private static final UriTemplate VIEW_CLEANUP_URI = UriTemplate.compile("/${dbName}/_view_cleanup");
+  private static final UriTemplate CREATE_VIEW_URI = UriTemplate.compile("/${dbName}/_design/${name}");
+  private static final UriTemplate EXECUTE_VIEW_URI = UriTemplate.compile("/${dbName}/_design/${docName}/_view/${viewName}");
+  private static final UriTemplate UPDATE_HANDLER_URI = UriTemplate.compile("/${dbName}/_design/${docName}/_update/${handler}");
+  private static final UriTemplate DOC_UPDATE_HANDLER_URI =
+      UriTemplate.compile("/${dbName}/_design/${docName}/_update/${handler}/${docId}");
+
+  public static final int DEFAULT_BULK_CHUNK_SIZE = 1000;
+  public static final int DEFAULT_MAX_UPDATE_ATTEMPTS = 10;
+
+  // How long installing a promoted temporary view may wait for its index to build
+  private static final long PROMOTION_BUILD_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+  // Backoff between conflicting update attempts, doubling from the base up to the cap, in milliseconds
+  private static final long UPDATE_BACKOFF_BASE = 10;
+  private static final long UPDATE_BACKOFF_CAP = 1000;
 
   private Session session;
+  private int bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+  private int maxUpdateAttempts = DEFAULT_MAX_UPDATE_ATTEMPTS;
+  private final Random backoffJitter = new Random();
+  private DocumentCache documentCache;
+  private TemporaryViewPromotion temporaryViewPromotion;
+  private ExecutorService backgroundExecutor;
+  private final Map<String, LocalReplica> localReplicas = new ConcurrentHashMap<String, LocalReplica>();
 
   public DefaultResourceManager(String baseUrl) {
     this(new Session(baseUrl));
@@ -59,6 +102,66 @@ public class DefaultResourceManager implements ResourceManager {
     this.session = session;
   }
 
+  public int getBulkChunkSize() {
+    return bulkChunkSize;
+  }
+
+  /**
+   * Sets the maximum number of documents sent in a single <code>_bulk_docs</code> request.  Larger collections passed
+   * to {@link #saveDocuments} and {@link #deleteDocuments} are split into chunks of this size.
+   *
+   * @param bulkChunkSize documents per request, must be positive
+   */
+  public void setBulkChunkSize(int bulkChunkSize) {
+    if (bulkChunkSize < 1)
+      throw new IllegalArgumentException("Bulk chunk size must be positive, was " + bulkChunkSize + ".");
+    this.bulkChunkSize = bulkChunkSize;
+  }
+
+  public int getMaxUpdateAttempts() {
+    return maxUpdateAttempts;
+  }
+
+  /**
+   * Sets how many times {@link #update(String, String, DocumentUpdater)} tries to save a change before giving up on
+   * conflicts.
+   *
+   * @param maxUpdateAttempts attempts per update, must be positive
+   */
+  public void setMaxUpdateAttempts(int maxUpdateAttempts) {
+    if (maxUpdateAttempts < 1)
+      throw new IllegalArgumentException("Update attempts must be positive, was " + maxUpdateAttempts + ".");
+    this.maxUpdateAttempts = maxUpdateAttempts;
+  }
+
+  public TemporaryViewPromotion getTemporaryViewPromotion() {
+    return temporaryViewPromotion;
+  }
+
+  /**
+   * Lets temporary views which are run repeatedly be installed as design documents, whose indexes are kept between
+   * runs instead of being built from scratch every time.
+   *
+   * @param temporaryViewPromotion when to promote and expire views, or null to always run temporary views as such
+   */
+  public void setTemporaryViewPromotion(TemporaryViewPromotion temporaryViewPromotion) {
+    this.temporaryViewPromotion = temporaryViewPromotion;
+  }
+
+  public DocumentCache getDocumentCache() {
+    return documentCache;
+  }
+
+  /**
+   * Puts a cache in front of {@link #getDocument(String, String)}.  Documents saved or deleted through this manager
+   * are evicted from it, and everything else is caught by revalidating every cached read.
+   *
+   * @param documentCache the cache to use, or null to stop caching
+   */
+  public void setDocumentCache(DocumentCache documentCache) {
+    this.documentCache = documentCache;
+  }
+
   /**
    * Create a couchdb database.  Method throws a RuntimeException
    *
@@ -68,11 +171,14 @@ public class DefaultResourceManager implements ResourceManager {
   public void createDatabase(String name) {
     try {
       CouchResponse<Map> response =
-          session.put(interpolate(CREATE_DB_URI, Collections.singletonMap("name", name)), null);
+          session.put(CREATE_DB_URI.expand(name), null);
       if (!response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
         throw couchDbExceptionInstance("Couldn't create database: (" + name + ").", response);
       }
     }
+    catch (DeadlineExceededException e) {
+      throw e;
+    }
     catch (Exception e) {
       throw new RuntimeException("Couldn't create database: (" + name + ").", e);
     }
@@ -81,7 +187,7 @@ public class DefaultResourceManager implements ResourceManager {
   @Override
   public boolean databaseExists(String name) {
     CouchResponse<Map> response =
-        session.get(interpolate(CREATE_DB_URI, Collections.singletonMap("name", name)), Map.class);
+        session.get(CREATE_DB_URI.expand(name), Map.class);
     if (response.isStatusEquals(Status.SUCCESS_OK)) {
       Map dbProps = response.getResponseObject();
       if (name.equals(dbProps.get("db_name"))) {
@@ -96,11 +202,14 @@ public class DefaultResourceManager implements ResourceManager {
   public void deleteDatabase(String name) {
     try {
       CouchResponse<Map> response =
-          session.delete(interpolate(CREATE_DB_URI, Collections.singletonMap("name", name)));
+          session.delete(CREATE_DB_URI.expand(name));
       if (!response.isStatusEqualsAndOk(Status.SUCCESS_OK)) {
         throw couchDbExceptionInstance("Couldn't delete database: (" + name + ").", response);
       }
     }
+    catch (DeadlineExceededException e) {
+      throw e;
+    }
     catch (Exception e) {
       throw new RuntimeException("Couldn't delete database: " + name, e);
     }
@@ -118,13 +227,14 @@ public class DefaultResourceManager implements ResourceManager {
 
   @Override
   public Document saveDocument(Document doc) {
-    Map<String, String> args = new HashMap<String, String>();
-    args.put("dbName", doc.getDatabaseName());
-    args.put("name", doc.getId());
-    System.err.println("Creating document: " + interpolate(DOC_URI, args));
-    CouchResponse<Map> response = session.put(interpolate(DOC_URI, args), doc);
+    CouchResponse<Map> response = session.put(DOC_URI.expand(doc.getDatabaseName(), doc.getId()), doc);
+    invalidateCached(doc.getDatabaseName(), doc.getId());
     if (response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
       Map docInfo = response.getResponseObject();
+      if (doc.isRaw()) {
+        return Document.fromBytes(doc.getDatabaseName(), (String) docInfo.get("id"), (String) docInfo.get("rev"),
+            doc.getRawData());
+      }
       return new Document(doc.getDatabaseName(), (String) docInfo.get("id"), (String) docInfo.get("rev"), doc.getData());
     }
     throw couchDbExceptionInstance(
@@ -136,6 +246,88 @@ public class DefaultResourceManager implements ResourceManager {
     return saveDocument(new Document(dbName, name, jsonData));
   }
 
+  /**
+   * Saves a document from a stream of json, which is copied to the connection without being parsed or held in memory.
+   * To update a document, the json must carry its current <code>_rev</code>.  The stream isn't closed.
+   *
+   * @return the document's new revision
+   */
+  @Override
+  public String saveDocument(String dbName, String name, InputStream json) {
+    return saveDocument(dbName, name, json, -1);
+  }
+
+  /**
+   * Same as {@link #saveDocument(String, String, InputStream)}, reading the json from a file.
+   *
+   * @return the document's new revision
+   */
+  @Override
+  public String saveDocument(String dbName, String name, File json) {
+    try {
+      InputStream in = new FileInputStream(json);
+      try {
+        return saveDocument(dbName, name, in, json.length());
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't read document from (" + json + ").", e);
+    }
+  }
+
+  /**
+   * Saves an object as a document, serializing it straight to the connection.  Fields annotated with
+   * {@link DocumentId} and {@link DocumentRevision} are written as <code>_id</code> and <code>_rev</code>, and the
+   * revision field is updated with the new revision once saved.
+   *
+   * @param name the document's id, or null to take it from the object's {@link DocumentId} field
+   * @return the document's new revision
+   */
+  @Override
+  @SuppressWarnings({"unchecked"})
+  public <T> String saveDocument(String dbName, String name, T object) {
+    DocumentBinder<T> binder = DocumentBinder.forClass((Class<T>) object.getClass());
+    String id = name != null ? name : binder.getId(object);
+    if (id == null)
+      throw new IllegalArgumentException("No id given for (" + object.getClass().getName() + ") document.");
+    String uri = DOC_URI.expand(dbName, id);
+    CouchResponse<Map> response = session.put(uri, binder.asResource(object));
+    invalidateCached(dbName, id);
+    if (response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
+      String revision = (String) response.getResponseObject().get("rev");
+      if (binder.getId(object) == null) binder.setId(object, id);
+      binder.setRevision(object, revision);
+      return revision;
+    }
+    throw couchDbExceptionInstance("Couldn't create document: (" + uri + ").", response);
+  }
+
+  private String saveDocument(String dbName, String name, InputStream json, long size) {
+    String uri = DOC_URI.expand(dbName, name);
+    CouchResponse<Map> response = session.put(uri, json, size);
+    invalidateCached(dbName, name);
+    if (response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
+      return (String) response.getResponseObject().get("rev");
+    }
+    throw couchDbExceptionInstance("Couldn't create document: (" + uri + ").", response);
+  }
+
+  /**
+   * Saves documents through <code>_bulk_docs</code>, one request per chunk of {@link #getBulkChunkSize()} documents.
+   * Failures such as revision conflicts are reported per document rather than thrown.
+   *
+   * @param dbName database to save the documents into
+   * @param docs   documents to save, documents with a revision are updated
+   * @return one result per document, in the order of the given collection
+   */
+  @Override
+  public List<BulkResult> saveDocuments(String dbName, Collection<Document> docs) {
+    return executeBulk(dbName, docs, false);
+  }
+
   @Override
   public Document getDocument(String dbName, String name) {
     return getDocument(dbName, name, null);
@@ -143,22 +335,51 @@ public class DefaultResourceManager implements ResourceManager {
 
   @Override
   public Document getDocument(String dbName, String name, String revisionId) {
+    if (revisionId == null) {
+      LocalReplica replica = localReplicas.get(dbName);
+      if (replica != null && replica.isFresh()) return replica.getDocument(name);
+    }
+    return fetchDocument(dbName, name, revisionId);
+  }
+
+  /**
+   * Reads a document from the server, bypassing any {@link LocalReplica}, as the replica may lag behind.  The
+   * document cache is still used, as it revalidates every read.
+   */
+  Document fetchDocument(String dbName, String name, String revisionId) {
     String uri = revisionId != null ?
-        interpolate(REVISION_DOC_URI, createMapFor(
-            "dbName", dbName,
-            "name", name,
-            "rev", revisionId
-        )) :
-        interpolate(DOC_URI, createMapFor(
-            "dbName", dbName,
-            "name", name
-        ));
+        REVISION_DOC_URI.expand(dbName, name, revisionId) :
+        DOC_URI.expand(dbName, name);
+    DocumentCache cache = revisionId == null ? documentCache : null;
     try {
-      CouchResponse<JsonNode> response = session.get(uri, JsonNode.class);
+      Document cached = cache != null ? cache.get(dbName, name) : null;
+      CouchResponse<byte[]> response;
+      if (cached != null) {
+        cache.recordRevalidation();
+        response = session.getIfNoneMatch(uri, cached.getRevision(), byte[].class);
+        if (response.isStatusEquals(Status.REDIRECTION_NOT_MODIFIED)) {
+          cache.recordHit();
+          return cached;
+        }
+      }
+      else {
+        response = session.get(uri, byte[].class);
+      }
+      if (cache != null) cache.recordMiss();
       if (response.isStatusEquals(Status.SUCCESS_OK)) {
-        JsonNode jsonDoc = response.getResponseObject();
-        return new Document(dbName, jsonDoc.get("_id").getTextValue(), jsonDoc.get("_rev").getTextValue(), jsonDoc.toString());
+        // The body is kept as it came in, CouchDB sends the revision as the ETag
+        byte[] body = response.getResponseObject();
+        String revision = response.getEntityTag() != null ? response.getEntityTag() : revisionId;
+        Document doc = Document.fromBytes(dbName, name, revision, body);
+        if (revision == null)
+          doc = Document.fromBytes(dbName, name, doc.parsedData().path("_rev").getTextValue(), body);
+        if (cache != null) cache.put(doc, body.length);
+        return doc;
       }
+      if (cache != null) cache.invalidate(dbName, name);
+    }
+    catch (DeadlineExceededException e) {
+      throw e;
     }
     catch (Exception e) {
       throw new RuntimeException("Couldn't retrieve document: (" + uri + ").", e);
@@ -166,6 +387,76 @@ public class DefaultResourceManager implements ResourceManager {
     return null;
   }
 
+  /**
+   * Reads a document straight from the response into an object of the given type, without building a tree or string
+   * first.  Its <code>_id</code> and <code>_rev</code> go to the fields annotated with {@link DocumentId} and
+   * {@link DocumentRevision}, and properties the type doesn't have are ignored.  Bound objects bypass the
+   * {@link #setDocumentCache document cache}.
+   *
+   * @return the bound document, or null if it doesn't exist
+   */
+  @Override
+  public <T> T getDocumentAs(String dbName, String name, Class<T> type) {
+    String uri = DOC_URI.expand(dbName, name);
+    CouchResponse<InputStream> response = session.getStream(uri);
+    if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+      return null;
+    }
+    InputStream in = response.getResponseObject();
+    try {
+      return DocumentBinder.forClass(type).read(in);
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't bind document: (" + uri + ") to (" + type.getName() + ").", e);
+    }
+    finally {
+      try {
+        in.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Retrieves several documents in a single request, by posting their ids to <code>_all_docs</code>.
+   *
+   * @param dbName database to read from
+   * @param ids    ids of the documents to retrieve
+   * @return one document per id, in the order of the given collection.  Ids which don't exist or were deleted are
+   *         returned as documents which are {@link Document#isMissing() missing}.
+   */
+  @Override
+  public List<Document> getDocuments(String dbName, Collection<String> ids) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+    String uri = ALL_DOCS_WITH_DOCS_URI.expand(dbName);
+    try {
+      CouchResponse<JsonNode> response = session.post(uri, new KeysRequest(ids), JsonNode.class);
+      if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+        throw couchDbExceptionInstance("Couldn't retrieve documents: (" + uri + ")", response);
+      }
+      List<Document> docs = new ArrayList<Document>(ids.size());
+      for (JsonNode row : response.getResponseObject().path("rows")) {
+        String id = row.path("key").getTextValue();
+        JsonNode doc = row.path("doc");
+        if (doc.isObject()) {
+          docs.add(Document.createDocument(dbName, id, doc.path("_rev").getTextValue(), doc));
+        }
+        else {
+          JsonNode value = row.path("value");
+          docs.add(Document.createMissingDocument(
+              dbName, id, value.path("rev").getTextValue(), value.path("deleted").getBooleanValue()));
+        }
+      }
+      return docs;
+    }
+    catch (CouchDbException e) {
+      throw new RuntimeException("Couldn't retrieve documents: (" + uri + ")", e);
+    }
+  }
+
   @Override
   public void deleteDocument(Document doc) {
     deleteDocument(doc.getDatabaseName(), doc.getId(), doc.getRevision());
@@ -173,22 +464,34 @@ public class DefaultResourceManager implements ResourceManager {
 
   @Override
   public void deleteDocument(String dbName, String name, String revisionId) {
-    Map<String, String> args = new HashMap<String, String>();
-    args.put("dbName", dbName);
-    args.put("name", name);
-    args.put("rev", revisionId);
-    String uri = interpolate(REVISION_DOC_URI, args);
+    String uri = REVISION_DOC_URI.expand(dbName, name, revisionId);
+    invalidateCached(dbName, name);
     try {
       CouchResponse<Map> response = session.delete(uri);
       if (!response.isStatusEqualsAndOk(Status.SUCCESS_OK)) {
         throw couchDbExceptionInstance("Couldn't delete document : (" + uri + ")", response);
       }
     }
+    catch (DeadlineExceededException e) {
+      throw e;
+    }
     catch (Exception e) {
       throw new RuntimeException("Couldn't delete document: (" + uri + ")", e);
     }
   }
 
+  /**
+   * Deletes documents through <code>_bulk_docs</code>.  Every document must carry its current revision.
+   *
+   * @param dbName database to delete the documents from
+   * @param docs   documents to delete
+   * @return one result per document, in the order of the given collection
+   */
+  @Override
+  public List<BulkResult> deleteDocuments(String dbName, Collection<Document> docs) {
+    return executeBulk(dbName, docs, true);
+  }
+
   @Override
   public <K, V> ViewResult<K, V> executeTemporaryView(String databaseName, String map, String reduce,
                                                       Class<K> keyType, Class<V> valueType) {
@@ -199,7 +502,21 @@ public class DefaultResourceManager implements ResourceManager {
 
   @Override
   public <K, V> ViewResult<K, V> executeTemporaryView(DesignDocument viewDoc, Class<K> keyType, Class<V> valueType) {
-    String uri = interpolate(CREATE_TEMP_VIEW_URI, Collections.singletonMap("dbName", viewDoc.getDatabaseName()));
+    String hash = temporaryViewHash(viewDoc);
+    String promoted = promotedViewFor(viewDoc, hash);
+    if (promoted != null) {
+      try {
+        return executeView(new ViewQuery(viewDoc.getDatabaseName(), promoted, TemporaryViewPromotion.VIEW_NAME),
+            keyType, valueType);
+      }
+      catch (DeadlineExceededException e) {
+        throw e;
+      }
+      catch (RuntimeException e) {
+        promotedViewFailed(viewDoc, hash);
+      }
+    }
+    String uri = CREATE_TEMP_VIEW_URI.expand(viewDoc.getDatabaseName());
     try {
       CouchResponse<JsonNode> response = session.post(uri, viewDoc, JsonNode.class);
       if (!response.isStatusEquals(Status.SUCCESS_OK)) {
@@ -211,45 +528,152 @@ public class DefaultResourceManager implements ResourceManager {
         rows.add(new ViewResult.ViewResultRow<K, V>(
             node.path("id").getTextValue(),
             node.path("key").toString(), keyType,
-            node.path("value").toString(), valueType
+            node.path("value").toString(), valueType, null
         ));
       }
       return new ViewResult<K, V>(result.path("total_rows").getIntValue(), result.path("offset").getIntValue(), rows);
     }
+    catch (DeadlineExceededException e) {
+      throw e;
+    }
     catch (Exception e) {
       throw new RuntimeException("Couldn't create temporary view: (" + uri + ")", e);
     }
   }
 
+  /**
+   * Streams the rows of a temporary view instead of reading them all into memory.
+   *
+   * @see #streamView(String, String, String, Class, Class)
+   */
+  @Override
+  public <K, V> ViewResultIterator<K, V> streamTemporaryView(DesignDocument viewDoc, Class<K> keyType, Class<V> valueType) {
+    String hash = temporaryViewHash(viewDoc);
+    String promoted = promotedViewFor(viewDoc, hash);
+    if (promoted != null) {
+      try {
+        return streamView(new ViewQuery(viewDoc.getDatabaseName(), promoted, TemporaryViewPromotion.VIEW_NAME),
+            keyType, valueType);
+      }
+      catch (DeadlineExceededException e) {
+        throw e;
+      }
+      catch (RuntimeException e) {
+        promotedViewFailed(viewDoc, hash);
+      }
+    }
+    String uri = CREATE_TEMP_VIEW_URI.expand(viewDoc.getDatabaseName());
+    CouchResponse<InputStream> response = session.postStream(uri, viewDoc);
+    if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+      throw couchDbExceptionInstance("Couldn't create temporary view: (" + uri + ")", response);
+    }
+    return new ViewResultIterator<K, V>(viewDoc.getDatabaseName(), response.getResponseObject(),
+        keyType, valueType);
+  }
+
+  /**
+   * Calls an update handler of a design document, which changes the document on the server in one round trip.
+   *
+   * @param docName    name of the design document, without the <code>_design/</code> prefix
+   * @param docId      the document to update, or null to let the handler create one
+   * @param parameters query parameters passed to the handler, may be null
+   */
+  @Override
+  public UpdateResult callUpdateHandler(String dbName, String docName, String handlerName, String docId,
+                                        Map<String, String> parameters) {
+    StringBuilder uri = new StringBuilder(docId != null ?
+        DOC_UPDATE_HANDLER_URI.expand(dbName, docName, handlerName, docId) :
+        UPDATE_HANDLER_URI.expand(dbName, docName, handlerName));
+    if (parameters != null) {
+      for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+        UriTemplate.appendQueryParameter(uri, parameter.getKey(), parameter.getValue());
+      }
+    }
+    CouchResponse<String> response = session.callUpdateHandler(docId != null ? "PUT" : "POST", uri.toString());
+    if (docId != null) invalidateCached(dbName, docId);
+    if (response.getStatus().isSuccess()) {
+      String id = response.getHeader("X-Couch-Id");
+      return new UpdateResult(id != null ? id : docId, response.getHeader("X-Couch-Update-NewRev"),
+          response.getResponseObject());
+    }
+    throw couchDbExceptionInstance("Couldn't call update handler: (" + uri + ").", response);
+  }
+
+  /**
+   * Reads a document, applies a change to it and saves it.  When saving conflicts with another change, the document
+   * is read again and the change reapplied, after a random backoff which grows with each attempt.
+   *
+   * @return the saved document, or the document as it was read if the updater left it unchanged
+   * @throws CouchDbException if the change still conflicts after {@link #getMaxUpdateAttempts()} attempts
+   */
+  @Override
+  public Document update(String dbName, String id, DocumentUpdater updater) {
+    // Read from the server, a stale replica would make every save conflict
+    return update(dbName, id, fetchDocument(dbName, id, null), updater);
+  }
+
+  /**
+   * Same as {@link #update(String, String, DocumentUpdater)}, starting from a revision the caller already has, so
+   * the document is only read if saving the change conflicts.
+   */
+  @Override
+  public Document update(Document current, DocumentUpdater updater) {
+    return update(current.getDatabaseName(), current.getId(), current, updater);
+  }
 
   @Override
   public DesignDocument createView(DesignDocument view) {
-    String uri = interpolate(CREATE_VIEW_URI, createMapFor("dbName", view.getDatabaseName(), "name", view.getId()));
+    String uri = CREATE_VIEW_URI.expand(view.getDatabaseName(), view.getId());
     try {
       CouchResponse<Map> response = session.put(uri, view);
       if (response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
         Map docInfo = response.getResponseObject();
         return DesignDocument.createDesignDocument(
-            view.getDatabaseName(), ((String) docInfo.get("id")).replace("_design/", ""), (String) docInfo.get("rev"), view.getViews());
+            view.getDatabaseName(), ((String) docInfo.get("id")).replace("_design/", ""), (String) docInfo.get("rev"),
+            view.getViews(), view.getUpdates());
       }
       throw couchDbExceptionInstance("Couldn't delete document : (" + uri + ")", response);
     }
+    catch (DeadlineExceededException e) {
+      throw e;
+    }
     catch (Exception e) {
       throw new RuntimeException("Couldn't create view: (" + uri + ")", e);
     }
   }
 
 
+  /**
+   * Deploys a design document only if its content differs from the stored one, so a redeploy which changes nothing
+   * keeps the view indexes.  A changed design document with views is staged under another id until its index is
+   * built, and the live design document, which answers queries from its old index meanwhile, is only replaced
+   * then.
+   *
+   * @param timeout how long to wait for the index to build
+   * @return the deployed design document, with its current revision
+   * @throws DeadlineExceededException if the index isn't built in time, in which case the live design document is
+   *                                   left as it was and a later sync carries on with the staged build
+   */
+  @Override
+  public DesignDocument syncDesignDocument(DesignDocument doc, long timeout, TimeUnit unit) {
+    return new DesignDocumentSync(this, session).sync(doc, timeout, unit);
+  }
+
   @Override
   public <K, V> ViewResult<K, V> executeView(String dbName, String docName, String viewName, Class<K> keyType, Class<V> valueType) {
-    String uri = interpolate(EXECUTE_VIEW_URI,
-        createMapFor(
-            "dbName", dbName,
-            "docName", docName,
-            "viewName", viewName
-        ));
+    return executeView(new ViewQuery(dbName, docName, viewName), keyType, valueType);
+  }
+
+  /**
+   * Executes a view with query options such as key ranges, limits and grouping.  Queries for a set of
+   * {@link ViewQuery#keys keys} are posted, so the keys don't have to fit in the url.
+   */
+  @Override
+  public <K, V> ViewResult<K, V> executeView(ViewQuery query, Class<K> keyType, Class<V> valueType) {
+    String uri = viewUriFor(query);
     try {
-      CouchResponse<JsonNode> response =
+      CouchResponse<JsonNode> response = query.hasKeys() ?
+          session.post(uri, new KeysRequest(query.getKeys()), JsonNode.class) :
           session.get(uri, JsonNode.class);
       if (!response.isStatusEquals(Status.SUCCESS_OK)) {
         throw couchDbExceptionInstance("Couldn't execute view: (" + uri + ")", response);
@@ -260,7 +684,8 @@ public class DefaultResourceManager implements ResourceManager {
         rows.add(new ViewResult.ViewResultRow<K, V>(
             node.path("id").getTextValue(),
             node.path("key").toString(), keyType,
-            node.path("value").toString(), valueType
+            node.path("value").toString(), valueType,
+            ViewResult.ViewResultRow.documentFor(query.getDatabaseName(), node.get("doc"))
         ));
       }
       return new ViewResult<K, V>(result.path("total_rows").getIntValue(), result.path("offset").getIntValue(), rows);
@@ -270,6 +695,55 @@ public class DefaultResourceManager implements ResourceManager {
     }
   }
 
+  @Override
+  public <K, V> ViewCursor<K, V> openViewCursor(String dbName, String docName, String viewName, int pageSize,
+                                                boolean prefetch, Class<K> keyType, Class<V> valueType) {
+    return openViewCursor(new ViewQuery(dbName, docName, viewName).reduce(false), pageSize, prefetch,
+        keyType, valueType);
+  }
+
+  /**
+   * Opens a cursor over the rows of a view, fetched in pages of <code>pageSize</code> rows.  Pages continue from the
+   * key and document id of the previous page's last row rather than skipping rows, so every page costs the same no
+   * matter how deep into the view it is.
+   *
+   * @param query    the rows to iterate, e.g. a key range, with reduce turned off and without keys.  The cursor sets
+   *                 the limit and start document id itself.
+   * @throws IllegalArgumentException if the query can't be paged by key and document id
+   * @param prefetch fetch the next page in the background while the current one is being iterated
+   */
+  @Override
+  public <K, V> ViewCursor<K, V> openViewCursor(ViewQuery query, int pageSize, boolean prefetch,
+                                                Class<K> keyType, Class<V> valueType) {
+    return new ViewCursor<K, V>(this, query, pageSize, keyType, valueType, prefetch ? backgroundExecutor() : null);
+  }
+
+  /**
+   * Executes a view and streams its rows as they're parsed off the response, so memory use doesn't grow with the size
+   * of the view.  The returned iterator must be closed if it isn't read to the end.
+   */
+  @Override
+  public <K, V> ViewResultIterator<K, V> streamView(String dbName, String docName, String viewName,
+                                                    Class<K> keyType, Class<V> valueType) {
+    return streamView(new ViewQuery(dbName, docName, viewName), keyType, valueType);
+  }
+
+  /**
+   * Same as {@link #executeView(ViewQuery, Class, Class)}, but streams the rows as they're parsed off the response.
+   *
+   * @see #streamView(String, String, String, Class, Class)
+   */
+  @Override
+  public <K, V> ViewResultIterator<K, V> streamView(ViewQuery query, Class<K> keyType, Class<V> valueType) {
+    String uri = viewUriFor(query);
+    CouchResponse<InputStream> response = query.hasKeys() ?
+        session.postStream(uri, new KeysRequest(query.getKeys())) :
+        session.getStream(uri);
+    if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+      throw couchDbExceptionInstance("Couldn't execute view: (" + uri + ")", response);
+    }
+    return new ViewResultIterator<K, V>(query.getDatabaseName(), response.getResponseObject(), keyType, valueType);
+  }
 
   @Override
   public void deleteView(DesignDocument view) {
@@ -281,6 +755,444 @@ public class DefaultResourceManager implements ResourceManager {
     deleteDocument(dbName, "_design/" + viewName, revisionId);
   }
 
+  private List<BulkResult> executeBulk(String dbName, Collection<Document> docs, boolean delete) {
+    String uri = BULK_DOCS_URI.expand(dbName);
+    List<BulkResult> results = new ArrayList<BulkResult>(docs.size());
+    List<Document> chunk = new ArrayList<Document>(Math.min(docs.size(), bulkChunkSize));
+    for (Iterator<Document> it = docs.iterator(); it.hasNext();) {
+      Document doc = it.next();
+      invalidateCached(dbName, doc.getId());
+      chunk.add(doc);
+      if (chunk.size() == bulkChunkSize || !it.hasNext()) {
+        CouchResponse<JsonNode> response = session.post(uri, new BulkDocumentsRequest(chunk, delete), JsonNode.class);
+        if (!response.isStatusEquals(Status.SUCCESS_CREATED)) {
+          throw couchDbExceptionInstance("Couldn't execute bulk request: (" + uri + ")", response);
+        }
+        for (JsonNode node : response.getResponseObject()) {
+          results.add(BulkResult.fromJson(node));
+        }
+        chunk.clear();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Uploads an attachment from the channel's current position to its end.  The bytes are transferred from the file to
+   * the connection by the channel, which maps or copies them a piece at a time, so heap use doesn't depend on the
+   * attachment's size.  The channel isn't closed.
+   *
+   * @param revision the document's current revision, or null to create a new document holding the attachment
+   * @return the document's new revision
+   */
+  @Override
+  public String putAttachment(String dbName, String docId, String revision, String name, String contentType,
+                              FileChannel content) {
+    String uri = revision != null ?
+        REVISION_ATTACHMENT_URI.expand(dbName, docId, name, revision) :
+        ATTACHMENT_URI.expand(dbName, docId, name);
+    try {
+      long position = content.position();
+      CouchResponse<Map> response =
+          session.put(uri, content, position, content.size() - position, MediaType.valueOf(contentType));
+      invalidateCached(dbName, docId);
+      if (response.isStatusEqualsAndOk(Status.SUCCESS_CREATED)) {
+        return (String) response.getResponseObject().get("rev");
+      }
+      throw couchDbExceptionInstance("Couldn't upload attachment: (" + uri + ").", response);
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't upload attachment: (" + uri + ").", e);
+    }
+  }
+
+  @Override
+  public String putAttachment(String dbName, String docId, String revision, String name, String contentType,
+                              File content) {
+    try {
+      FileInputStream in = new FileInputStream(content);
+      try {
+        return putAttachment(dbName, docId, revision, name, contentType, in.getChannel());
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't read attachment from (" + content + ").", e);
+    }
+  }
+
+  /**
+   * Downloads an attachment to the channel, a buffer at a time.
+   *
+   * @return the number of bytes written, or -1 if the attachment doesn't exist
+   */
+  @Override
+  public long getAttachment(String dbName, String docId, String name, WritableByteChannel target) {
+    return getAttachment(dbName, docId, name, 0, -1, target);
+  }
+
+  /**
+   * Downloads part of an attachment through an HTTP range request.  Servers which ignore the range and send the whole
+   * attachment are handled by skipping to the offset and stopping after the length.
+   *
+   * @param offset index of the attachment's first byte to download
+   * @param length number of bytes to download, or -1 for the rest of the attachment
+   * @return the number of bytes written, or -1 if the attachment doesn't exist
+   */
+  @Override
+  public long getAttachment(String dbName, String docId, String name, long offset, long length,
+                            WritableByteChannel target) {
+    String uri = ATTACHMENT_URI.expand(dbName, docId, name);
+    CouchResponse<InputStream> response = session.getStream(uri, offset, length);
+    boolean ranged = offset > 0 || length >= 0;
+    boolean partial = response.isStatusEquals(Status.SUCCESS_PARTIAL_CONTENT);
+    if (!partial && !response.isStatusEquals(Status.SUCCESS_OK)) {
+      return -1;
+    }
+    InputStream in = response.getResponseObject();
+    ReadableByteChannel source = Channels.newChannel(in);
+    try {
+      if (ranged && !partial) {
+        // The range was ignored and the whole attachment is on its way
+        skipFully(in, offset);
+        if (length >= 0) source = Channels.newChannel(new LimitedInputStream(in, length));
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+      long written = 0;
+      while (source.read(buffer) >= 0 || buffer.position() > 0) {
+        buffer.flip();
+        written += target.write(buffer);
+        buffer.compact();
+      }
+      return written;
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't download attachment: (" + uri + ").", e);
+    }
+    finally {
+      try {
+        source.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        if (in.read() < 0) return;
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  /**
+   * Ends a stream after a number of bytes.  Closing it closes the underlying stream.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int b = in.read();
+      if (b >= 0) remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+  }
+
+  /**
+   * Downloads an attachment into a file, which is created or overwritten.
+   *
+   * @return the number of bytes written, or -1 if the attachment doesn't exist, in which case the file isn't touched
+   */
+  @Override
+  public long getAttachment(String dbName, String docId, String name, File target) {
+    String uri = ATTACHMENT_URI.expand(dbName, docId, name);
+    CouchResponse<InputStream> response = session.getStream(uri);
+    if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+      return -1;
+    }
+    ReadableByteChannel source = Channels.newChannel(response.getResponseObject());
+    try {
+      FileChannel out = new FileOutputStream(target).getChannel();
+      try {
+        long written = 0;
+        for (long n; (n = out.transferFrom(source, written, 1 << 20)) > 0;) {
+          written += n;
+        }
+        return written;
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't download attachment: (" + uri + ") to (" + target + ").", e);
+    }
+    finally {
+      try {
+        source.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * @return the document's new revision
+   */
+  @Override
+  public String deleteAttachment(String dbName, String docId, String revision, String name) {
+    String uri = REVISION_ATTACHMENT_URI.expand(dbName, docId, name, revision);
+    CouchResponse<Map> response = session.delete(uri);
+    invalidateCached(dbName, docId);
+    if (response.isStatusEqualsAndOk(Status.SUCCESS_OK)) {
+      return (String) response.getResponseObject().get("rev");
+    }
+    throw couchDbExceptionInstance("Couldn't delete attachment: (" + uri + ").", response);
+  }
+
+  /**
+   * Starts consuming the database's <code>_changes</code> feed in the background.
+   *
+   * @return the running feed, stop it to close its connection
+   * @see ChangesFeed
+   */
+  @Override
+  public ChangesFeed listenForChanges(String dbName, ChangesOptions options, ChangesListener listener) {
+    ChangesFeed feed = new ChangesFeed(session, dbName, options, listener);
+    feed.start();
+    return feed;
+  }
+
+  /**
+   * Keeps a local copy of a database, from which {@link #getDocument(String, String)} is served while the copy is
+   * fresh.  A database can only have one local replica open at a time.
+   *
+   * @param file         the replica's memory-mapped store, created if needed
+   * @param checkpoints  where the replica's last sequence is kept.  The file is only reused if it holds one, so it
+   *                     shouldn't be shared with other feeds of the database.
+   * @param maxStaleness how far behind CouchDB reads from the replica may be
+   */
+  public LocalReplica openLocalReplica(String dbName, File file, CheckpointStore checkpoints,
+                                       long maxStaleness, TimeUnit unit) {
+    if (localReplicas.containsKey(dbName))
+      throw new IllegalStateException("Database (" + dbName + ") already has a local replica open.");
+    LocalReplica replica = new LocalReplica(this, session, dbName, file, checkpoints, unit.toMillis(maxStaleness));
+    replica.open();
+    localReplicas.put(dbName, replica);
+    return replica;
+  }
+
+  public LocalReplica getLocalReplica(String dbName) {
+    return localReplicas.get(dbName);
+  }
+
+  void localReplicaClosed(LocalReplica replica) {
+    localReplicas.remove(replica.getDatabaseName());
+  }
+
+  private synchronized ExecutorService backgroundExecutor() {
+    if (backgroundExecutor == null) {
+      backgroundExecutor = DefaultAsyncResourceManager.createDefaultExecutor();
+    }
+    return backgroundExecutor;
+  }
+
+  private String viewUriFor(ViewQuery query) {
+    StringBuilder uri = EXECUTE_VIEW_URI.expandToBuffer(
+        query.getDatabaseName(), query.getDesignDocName(), query.getViewName());
+    for (Map.Entry<String, String> param : query.getQueryParameters().entrySet()) {
+      UriTemplate.appendQueryParameter(uri, param.getKey(), param.getValue());
+    }
+    return uri.toString();
+  }
+
+  private Document update(String dbName, String id, Document current, DocumentUpdater updater) {
+    for (int attempt = 1; ; attempt++) {
+      // The updater gets its own copy, so the document the caller passed in isn't changed under it
+      Document updated = updater.update(current != null ?
+          Document.fromBytes(dbName, id, current.getRevision(), current.getRawData()) : null);
+      if (updated == null) return current;
+      try {
+        return saveDocument(replacing(dbName, id, updated, current));
+      }
+      catch (CouchDbException e) {
+        if (!Status.CLIENT_ERROR_CONFLICT.equals(e.getStatus()) || attempt >= maxUpdateAttempts) throw e;
+      }
+      backOff(attempt);
+      current = fetchDocument(dbName, id, null);
+    }
+  }
+
+  /**
+   * @return the updated document with the id and revision of the document it replaces.
+   */
+  private static Document replacing(String dbName, String id, Document updated, Document current) {
+    JsonNode data = updated.parsedData();
+    if (data == null || !data.isObject())
+      throw new IllegalArgumentException("Updated document (" + id + ") must be a json object.");
+    String revision = current != null ? current.getRevision() : null;
+    ObjectNode node = createJsonObjectNode();
+    node.put("_id", id);
+    if (revision != null) node.put("_rev", revision);
+    for (Iterator<Map.Entry<String, JsonNode>> fields = ((ObjectNode) data).getFields(); fields.hasNext();) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (!"_id".equals(field.getKey()) && !"_rev".equals(field.getKey()))
+        node.put(field.getKey(), field.getValue());
+    }
+    return Document.createDocument(dbName, id, revision, node);
+  }
+
+  private void backOff(int attempt) {
+    long cap = Math.min(UPDATE_BACKOFF_CAP, UPDATE_BACKOFF_BASE << Math.min(attempt - 1, 16));
+    long pause;
+    synchronized (backoffJitter) {
+      pause = (long) (backoffJitter.nextDouble() * cap);
+    }
+    Deadline deadline = Deadline.current();
+    if (deadline != null && deadline.remaining(TimeUnit.MILLISECONDS) <= pause)
+      throw new DeadlineExceededException("Deadline passed while retrying a conflicting update.");
+    try {
+      Thread.sleep(pause);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while retrying a conflicting update", e);
+    }
+  }
+
+  private String temporaryViewHash(DesignDocument viewDoc) {
+    if (temporaryViewPromotion == null) return null;
+    return DesignDocumentSync.contentHash(parseToJson(viewDoc.asJson(), JsonNode.class));
+  }
+
+  /**
+   * Counts a run of a temporary view, starting its installation as a design document in the background once it's due
+   * to be promoted, and starts a sweep of expired and leftover generated design documents now and then.
+   *
+   * @return name of the design document to run the view on once it's installed, or null to run it as a temporary view
+   */
+  private String promotedViewFor(DesignDocument viewDoc, final String hash) {
+    final TemporaryViewPromotion promotion = temporaryViewPromotion;
+    if (promotion == null) return null;
+    final List<String[]> expired = promotion.takeExpired();
+    if (expired != null) {
+      backgroundExecutor().execute(new Runnable() {
+        public void run() {
+          sweepPromotedViews(promotion, expired);
+        }
+      });
+    }
+    final String dbName = viewDoc.getDatabaseName();
+    String docName = promotion.recordRun(dbName, hash);
+    if (docName != null) return docName;
+    docName = promotion.startInstall(dbName, hash);
+    if (docName == null) return null;
+    DesignDocument.View view = viewDoc.getViews().get(0);
+    final DesignDocument generated = DesignDocument.createDesignDocument(dbName, docName, null,
+        Collections.singletonList(new DesignDocument.View(TemporaryViewPromotion.VIEW_NAME, view.getMap(),
+            view.getReduce())));
+    // Runs keep going to _temp_view while the index builds
+    backgroundExecutor().execute(new Runnable() {
+      public void run() {
+        try {
+          // A no-op when it's installed already, by this or another client
+          syncDesignDocument(generated, PROMOTION_BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+          promotion.installed(dbName, hash);
+        }
+        catch (RuntimeException e) {
+          // Tried again on the view's next run
+          promotion.installFailed(dbName, hash);
+        }
+      }
+    });
+    return null;
+  }
+
+  /**
+   * Falls back to the temporary view after its generated design document couldn't be queried, e.g. because another
+   * client cleaned it up, so it's installed again.
+   */
+  private void promotedViewFailed(DesignDocument viewDoc, String hash) {
+    TemporaryViewPromotion promotion = temporaryViewPromotion;
+    if (promotion != null) promotion.installFailed(viewDoc.getDatabaseName(), hash);
+  }
+
+  /**
+   * Deletes the expired generated design documents, and those in the same databases this process doesn't know about,
+   * left behind by a process which went away before they expired.
+   */
+  private void sweepPromotedViews(TemporaryViewPromotion promotion, List<String[]> expired) {
+    for (String[] view : expired) {
+      deletePromotedView(view[0], view[1]);
+    }
+    String first = "_design/" + TemporaryViewPromotion.DESIGN_DOCUMENT_PREFIX;
+    for (String dbName : promotion.getDatabases()) {
+      String uri = DESIGN_DOCS_URI.expand(dbName, toJson(first), toJson(first + "\ufff0"));
+      try {
+        CouchResponse<JsonNode> response = session.get(uri, JsonNode.class);
+        if (!response.isStatusEquals(Status.SUCCESS_OK)) continue;
+        for (JsonNode row : response.getResponseObject().path("rows")) {
+          String docName = row.path("id").getTextValue().substring("_design/".length());
+          if (!promotion.isKnown(dbName, docName)) deletePromotedView(dbName, docName);
+        }
+      }
+      catch (RuntimeException e) {
+        // Looked for again on the next sweep
+      }
+    }
+  }
+
+  private void deletePromotedView(String dbName, String docName) {
+    try {
+      Document doc = getDocument(dbName, "_design/" + docName);
+      if (doc != null) deleteView(dbName, docName, doc.getRevision());
+      // Removes the deleted view's index files
+      session.post(VIEW_CLEANUP_URI.expand(dbName), Document.createDocument(dbName, null, null, createJsonObjectNode()),
+          Map.class);
+    }
+    catch (RuntimeException e) {
+      // Left for a later cleanup, expiring a view mustn't fail the query which noticed it
+    }
+  }
+
+  private void invalidateCached(String dbName, String name) {
+    DocumentCache cache = documentCache;
+    if (cache != null) cache.invalidate(dbName, name);
+  }
+
   private CouchDbException couchDbExceptionInstance(String msg, CouchResponse response) {
     throw new CouchDbException(msg + "\nReturned: " +
         response.getStatus() + " - " + response.getStatusDescription(), response.getStatus());
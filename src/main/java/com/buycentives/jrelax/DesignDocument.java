@@ -27,9 +27,14 @@ package com.buycentives.jrelax;
 import com.buycentives.jrelax.utils.JsonUtils;
 import org.codehaus.jackson.node.ObjectNode;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Ilya Sterin
@@ -42,16 +47,19 @@ public class DesignDocument implements CouchJsonResource, Serializable {
   private String revision;
   private String language = "javascript";
   private List<View> views;
+  private Map<String, String> updates;
 
   private DesignDocument(String databaseName, String id, String revision, View... views) {
-    this(databaseName, id, revision, Arrays.asList(views));
+    this(databaseName, id, revision, Arrays.asList(views), Collections.<String, String>emptyMap());
   }
 
-  private DesignDocument(String databaseName, String id, String revision, List<View> views) {
+  private DesignDocument(String databaseName, String id, String revision, List<View> views,
+                         Map<String, String> updates) {
     this.databaseName = databaseName;
     this.id = id;
     this.revision = revision;
     this.views = views;
+    this.updates = updates;
   }
 
   public static DesignDocument createDesignDocumentForTemporaryView(String databaseName, String map, String reduce) {
@@ -59,11 +67,24 @@ public class DesignDocument implements CouchJsonResource, Serializable {
   }
 
   public static DesignDocument createDesignDocument(String databaseName, String id, String revision, List<View> views) {
-    if (id == null)
-      throw new IllegalArgumentException("You must provide a design document id in order to create a non-temporary view.");
     if (views == null || views.size() == 0)
       throw new IllegalArgumentException("You must provide at least one view for the design document.");  
-    return new DesignDocument(databaseName, id, revision, views);
+    return createDesignDocument(databaseName, id, revision, views, null);
+  }
+
+  /**
+   * @param updates update handler functions by name, called through
+   *                {@link ResourceManager#callUpdateHandler(String, String, String, String, Map)}
+   */
+  public static DesignDocument createDesignDocument(String databaseName, String id, String revision, List<View> views,
+                                                    Map<String, String> updates) {
+    if (id == null)
+      throw new IllegalArgumentException("You must provide a design document id in order to create a non-temporary view.");
+    if ((views == null || views.isEmpty()) && (updates == null || updates.isEmpty()))
+      throw new IllegalArgumentException("You must provide at least one view or update handler for the design document.");
+    return new DesignDocument(databaseName, id, revision,
+        views != null ? views : Collections.<View>emptyList(),
+        updates != null ? new LinkedHashMap<String, String>(updates) : Collections.<String, String>emptyMap());
   }
 
   public String getDatabaseName() {
@@ -92,8 +113,24 @@ public class DesignDocument implements CouchJsonResource, Serializable {
     return views; 
   }
 
+  /**
+   * @return the update handler functions by name.
+   */
+  public Map<String, String> getUpdates() {
+    return Collections.unmodifiableMap(updates);
+  }
+
   @Override
   public String asJson() {
+    return toJsonNode().toString();
+  }
+
+  @Override
+  public void writeJson(OutputStream out) throws IOException {
+    JsonUtils.writeJson(out, toJsonNode());
+  }
+
+  private ObjectNode toJsonNode() {
     ObjectNode node = JsonUtils.createJsonObjectNode();
     if (this.isTemporary()) {
       View view = this.views.get(0);
@@ -112,9 +149,14 @@ public class DesignDocument implements CouchJsonResource, Serializable {
         if (v.reduce != null) viewNode.put("reduce", v.reduce);
         ((ObjectNode) node.get("views")).put(v.name, viewNode);
       }
+      if (!updates.isEmpty()) {
+        ObjectNode updatesNode = node.putObject("updates");
+        for (Map.Entry<String, String> update : updates.entrySet()) {
+          updatesNode.put(update.getKey(), update.getValue());
+        }
+      }
     }
-
-    return node.toString();
+    return node;
   }
 
   public static class View implements Serializable {
@@ -134,6 +176,18 @@ public class DesignDocument implements CouchJsonResource, Serializable {
       this(null, map, reduce);
     }
 
+    public String getName() {
+      return name;
+    }
+
+    public String getMap() {
+      return map;
+    }
+
+    public String getReduce() {
+      return reduce;
+    }
+
   }
 
 
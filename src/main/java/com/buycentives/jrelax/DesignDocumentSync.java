@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import org.codehaus.jackson.JsonNode;
+import org.restlet.data.Status;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deploys a design document without making its queries wait for the view index to rebuild, see
+ * {@link DefaultResourceManager#syncDesignDocument(DesignDocument, long, TimeUnit)}.
+ * <p/>
+ * A changed design document is first saved under a staging id, and its index built there while the live design
+ * document keeps answering queries from its old index.  CouchDB keeps view indexes by the signature of their
+ * functions rather than by design document, so once the live design document is saved with the same functions it
+ * picks up the built index straight away.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+class DesignDocumentSync {
+
+  private static final String ACTIVE_TASKS_URI = "/_active_tasks";
+  private static final long POLL_INTERVAL = 1000;
+  // Progress reported by CouchDB before 1.2, e.g. "Processed 100 of 1000 changes (10%)"
+  private static final Pattern LEGACY_PROGRESS = Pattern.compile("\\((\\d+)%\\)");
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final DefaultResourceManager resourceMgr;
+  private final Session session;
+
+  DesignDocumentSync(DefaultResourceManager resourceMgr, Session session) {
+    this.resourceMgr = resourceMgr;
+    this.session = session;
+  }
+
+  DesignDocument sync(DesignDocument doc, long timeout, TimeUnit unit) {
+    String dbName = doc.getDatabaseName();
+    String hash = contentHash(JsonUtils.parseToJson(doc.asJson(), JsonNode.class));
+    // From the server, comparing against a replica's older revision would redeploy needlessly or conflict
+    Document live = resourceMgr.fetchDocument(dbName, "_design/" + doc.getId(), null);
+    if (live != null && hash.equals(contentHash(live.parsedData())))
+      return designDocument(doc, doc.getId(), live.getRevision());
+
+    String liveRevision = live != null ? live.getRevision() : null;
+    if (doc.getViews().isEmpty()) return resourceMgr.createView(designDocument(doc, doc.getId(), liveRevision));
+
+    Deadline deadline = Deadline.start(timeout, unit);
+    try {
+      if (live == null) {
+        // Nothing is answering queries yet, so there's nothing to stage around
+        DesignDocument deployed = resourceMgr.createView(designDocument(doc, doc.getId(), null));
+        buildIndex(doc, doc.getId());
+        return deployed;
+      }
+      String stagedId = doc.getId() + "-staged-" + hash.substring(0, 12);
+      Document staged = resourceMgr.fetchDocument(dbName, "_design/" + stagedId, null);
+      String stagedRevision = staged != null ? staged.getRevision() :
+          resourceMgr.createView(DesignDocument.createDesignDocument(dbName, stagedId, null, doc.getViews())).getRevision();
+      buildIndex(doc, stagedId);
+      DesignDocument deployed = resourceMgr.createView(designDocument(doc, doc.getId(), liveRevision));
+      resourceMgr.deleteView(dbName, stagedId, stagedRevision);
+      return deployed;
+    }
+    finally {
+      deadline.end();
+    }
+  }
+
+  /**
+   * Starts the index of a design document building, and waits until it's built.  The wait is spent polling
+   * <code>_active_tasks</code>, as a query waiting for a large index would outlast the socket timeout.
+   */
+  private void buildIndex(DesignDocument doc, String docId) {
+    String viewName = doc.getViews().get(0).getName();
+    resourceMgr.executeView(new ViewQuery(doc.getDatabaseName(), docId, viewName)
+        .limit(0).stale(ViewQuery.Stale.UPDATE_AFTER), Object.class, Object.class);
+    int progress;
+    while ((progress = indexProgress(doc.getDatabaseName(), docId)) >= 0) {
+      Deadline deadline = Deadline.current();
+      if (deadline.remaining(TimeUnit.MILLISECONDS) <= POLL_INTERVAL)
+        throw new DeadlineExceededException("Index of (_design/" + docId + ") is still building, " + progress + "% done.");
+      try {
+        Thread.sleep(POLL_INTERVAL);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for the index of (_design/" + docId + ")", e);
+      }
+    }
+    // The indexer may not have shown up in the tasks yet, this waits for whatever is left of the build
+    resourceMgr.executeView(new ViewQuery(doc.getDatabaseName(), docId, viewName).limit(0), Object.class, Object.class);
+  }
+
+  /**
+   * @return the least progress, in percent, of the indexers building a design document's index, -1 if none is
+   *         running.  Clustered servers run an indexer per shard.
+   */
+  private int indexProgress(String dbName, String docId) {
+    CouchResponse<JsonNode> response = session.get(ACTIVE_TASKS_URI, JsonNode.class);
+    if (!response.isStatusEquals(Status.SUCCESS_OK))
+      throw new CouchDbException("Couldn't list active tasks.\nReturned: " + response.getStatus(), response.getStatus());
+    String designDocument = "_design/" + docId;
+    int progress = -1;
+    for (JsonNode task : response.getResponseObject()) {
+      int taskProgress = -1;
+      if ("indexer".equals(task.path("type").getTextValue())) {
+        String database = task.path("database").getTextValue();
+        if (designDocument.equals(task.path("design_document").getTextValue()) && database != null &&
+            (database.equals(dbName) || database.contains("/" + dbName + ".")))
+          taskProgress = task.path("progress").getIntValue();
+      }
+      else if ("View Group Indexer".equals(task.path("type").getTextValue())) {
+        String description = task.path("task").getTextValue();
+        if ((dbName + " " + designDocument).equals(description)) {
+          Matcher matcher = LEGACY_PROGRESS.matcher(String.valueOf(task.path("status").getTextValue()));
+          taskProgress = matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+        }
+      }
+      if (taskProgress >= 0 && (progress < 0 || taskProgress < progress)) progress = taskProgress;
+    }
+    return progress;
+  }
+
+  private static DesignDocument designDocument(DesignDocument doc, String id, String revision) {
+    return DesignDocument.createDesignDocument(doc.getDatabaseName(), id, revision, doc.getViews(), doc.getUpdates());
+  }
+
+  /**
+   * @return a hash of a design document's json, ignoring its id, revision and the order of its fields.
+   */
+  static String contentHash(JsonNode doc) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      List<String> fields = new ArrayList<String>();
+      for (Iterator<String> names = doc.getFieldNames(); names.hasNext();) {
+        String name = names.next();
+        if (!name.startsWith("_")) fields.add(name);
+      }
+      Collections.sort(fields);
+      for (String field : fields) {
+        update(digest, field);
+        update(digest, doc.get(field));
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-1 isn't available.", e);
+    }
+  }
+
+  private static void update(MessageDigest digest, JsonNode node) {
+    if (node.isObject()) {
+      List<String> names = new ArrayList<String>();
+      for (Iterator<String> it = node.getFieldNames(); it.hasNext();) {
+        names.add(it.next());
+      }
+      Collections.sort(names);
+      digest.update((byte) '{');
+      for (String name : names) {
+        update(digest, name);
+        update(digest, node.get(name));
+      }
+      digest.update((byte) '}');
+    }
+    else if (node.isArray()) {
+      digest.update((byte) '[');
+      for (JsonNode element : node) {
+        update(digest, element);
+      }
+      digest.update((byte) ']');
+    }
+    else {
+      update(digest, node.toString());
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    byte[] bytes = value.getBytes(UTF8);
+    digest.update(bytes);
+    digest.update((byte) 0);
+  }
+
+}
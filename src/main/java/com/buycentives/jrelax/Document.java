@@ -27,7 +27,14 @@ package com.buycentives.jrelax;
 import com.buycentives.jrelax.utils.JsonUtils;
 import org.codehaus.jackson.JsonNode;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
 /**
+ * A CouchDB document.  Documents read from the database keep the body's raw bytes and only parse them when the data is
+ * asked for as a {@link #getJsonData() json tree}.  Until then, saving the document writes the bytes back unchanged.
+ *
  * @author Ilya Sterin
  * @version 1.0
  */
@@ -36,7 +43,12 @@ public class Document implements CouchJsonResource {
   private final String databaseName;
   private final String id;
   private String revision;
-  private JsonNode data;
+  // Parsed lazily, possibly by several threads when the document is shared between them
+  private volatile JsonNode data;
+  private volatile byte[] raw;
+  private boolean deleted;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
 
   public Document(String databaseName, String id, String data) {
     this.databaseName = databaseName;
@@ -49,17 +61,138 @@ public class Document implements CouchJsonResource {
     this.revision = revision;
   }
 
+  private Document(String databaseName, String id, String revision, JsonNode data) {
+    this.databaseName = databaseName;
+    this.id = id;
+    this.revision = revision;
+    this.data = data;
+  }
+
+  /**
+   * Creates a placeholder for a document that was requested but doesn't exist, or has been deleted.
+   */
+  static Document createMissingDocument(String databaseName, String id, String revision, boolean deleted) {
+    Document doc = new Document(databaseName, id, revision, (JsonNode) null);
+    doc.deleted = deleted;
+    return doc;
+  }
+
+  static Document createDocument(String databaseName, String id, String revision, JsonNode data) {
+    return new Document(databaseName, id, revision, data);
+  }
+
+  /**
+   * @return a copy of this document with another revision, sharing its data.
+   */
+  Document withRevision(String revision) {
+    Document doc = new Document(databaseName, id, revision, data);
+    doc.raw = raw;
+    return doc;
+  }
+
+  /**
+   * @return a copy of this document whose tree can be changed without changing this one.  Unparsed bytes are shared,
+   *         as they're never changed.
+   */
+  Document copy() {
+    byte[] bytes = raw;
+    JsonNode tree = data;
+    Document doc = new Document(databaseName, id, revision,
+        bytes == null && tree != null ? JsonUtils.parseToJson(tree.toString(), JsonNode.class) : null);
+    doc.raw = bytes;
+    doc.deleted = deleted;
+    return doc;
+  }
+
+  /**
+   * Creates a document from a UTF-8 json body without parsing it.  The bytes aren't copied and mustn't be changed
+   * afterwards.
+   */
+  public static Document fromBytes(String databaseName, String id, String revision, byte[] json) {
+    if (json == null)
+      throw new IllegalArgumentException("Document (" + id + ") needs a json body.");
+    Document doc = new Document(databaseName, id, revision, (JsonNode) null);
+    doc.raw = json;
+    return doc;
+  }
+
   public String getDatabaseName() {
     return databaseName;
   }
 
   public String getData() {
-    return data.toString();
+    byte[] bytes = raw;
+    if (bytes != null) return new String(bytes, UTF8);
+    JsonNode tree = data;
+    return tree != null ? tree.toString() : null;
+  }
+
+  /**
+   * @return the document's data, parsed on the first call.  The tree may be changed, so from then on the document is
+   *         saved from the tree rather than from the bytes it was read from.
+   */
+  public JsonNode getJsonData() {
+    JsonNode tree = parsedData();
+    raw = null;
+    return tree;
+  }
+
+  /**
+   * @return the document's json as UTF-8 bytes, which are the unparsed bytes it was read from if it hasn't been
+   *         parsed since.  The returned array mustn't be changed.
+   */
+  public byte[] getRawData() {
+    byte[] bytes = raw;
+    if (bytes != null) return bytes;
+    JsonNode tree = data;
+    return tree != null ? tree.toString().getBytes(UTF8) : null;
+  }
+
+  /**
+   * @return true while the document only holds the bytes it was read from, and saving it writes them back as they
+   *         are.
+   */
+  public boolean isRaw() {
+    return raw != null;
+  }
+
+  /**
+   * Read-only access to the tree, for request bodies built from the document.  Unlike {@link #getJsonData()} the raw
+   * bytes are kept.
+   */
+  JsonNode parsedData() {
+    JsonNode tree = data;
+    byte[] bytes = raw;
+    if (tree == null && bytes != null) {
+      data = tree = JsonUtils.parseToJson(bytes, JsonNode.class);
+    }
+    return tree;
+  }
+
+  /**
+   * @return true if this document was requested but not found, in which case it has no data.
+   */
+  public boolean isMissing() {
+    return data == null && raw == null;
+  }
+
+  /**
+   * @return true if the document was found but has been deleted.  Deleted documents are also missing.
+   */
+  public boolean isDeleted() {
+    return deleted;
   }
 
   @Override
   public String asJson() {
-    return data.toString();
+    return getData();
+  }
+
+  @Override
+  public void writeJson(OutputStream out) throws IOException {
+    byte[] bytes = raw;
+    if (bytes != null) out.write(bytes);
+    else JsonUtils.writeJson(out, data);
   }
 
   @Override
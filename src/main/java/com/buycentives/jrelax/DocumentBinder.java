@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.introspect.AnnotatedField;
+import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Binds documents straight between the HTTP streams and plain objects, mapping fields annotated with
+ * {@link DocumentId} and {@link DocumentRevision} to <code>_id</code> and <code>_rev</code>.
+ * <p/>
+ * All bindings share one mapper, which caches the serializer and deserializer it builds for each class, and the
+ * annotated fields of each class are looked up once.  Null properties aren't written, so a new object's missing
+ * revision isn't sent as <code>"_rev": null</code>, and properties the class doesn't have, such as
+ * <code>_attachments</code>, are ignored when reading.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+final class DocumentBinder<T> {
+
+  private static final ObjectMapper mapper = createMapper();
+  private static final ConcurrentMap<Class<?>, DocumentBinder<?>> binders =
+      new ConcurrentHashMap<Class<?>, DocumentBinder<?>>();
+
+  private final Class<T> type;
+  private final Field idField;
+  private final Field revisionField;
+
+  private DocumentBinder(Class<T> type) {
+    this.type = type;
+    this.idField = findField(type, DocumentId.class);
+    this.revisionField = findField(type, DocumentRevision.class);
+  }
+
+  @SuppressWarnings({"unchecked"})
+  static <T> DocumentBinder<T> forClass(Class<T> type) {
+    DocumentBinder<T> binder = (DocumentBinder<T>) binders.get(type);
+    if (binder == null) {
+      binder = new DocumentBinder<T>(type);
+      DocumentBinder<T> existing = (DocumentBinder<T>) binders.putIfAbsent(type, binder);
+      if (existing != null) binder = existing;
+    }
+    return binder;
+  }
+
+  T read(InputStream in) throws IOException {
+    JsonParser parser = JsonUtils.createJsonParser(in);
+    try {
+      return mapper.readValue(parser, type);
+    }
+    finally {
+      parser.close();
+    }
+  }
+
+  void write(OutputStream out, T object) throws IOException {
+    JsonGenerator generator = JsonUtils.createJsonGenerator(out);
+    mapper.writeValue(generator, object);
+    generator.close();
+  }
+
+  String getId(T object) {
+    return (String) get(idField, object);
+  }
+
+  void setId(T object, String id) {
+    set(idField, object, id);
+  }
+
+  String getRevision(T object) {
+    return (String) get(revisionField, object);
+  }
+
+  void setRevision(T object, String revision) {
+    set(revisionField, object, revision);
+  }
+
+  /**
+   * Wraps an object as a request body.
+   */
+  CouchJsonResource asResource(final T object) {
+    return new CouchJsonResource() {
+      public String getId() {
+        return DocumentBinder.this.getId(object);
+      }
+
+      public String getRevision() {
+        return DocumentBinder.this.getRevision(object);
+      }
+
+      public String asJson() {
+        return JsonUtils.toJson(object);
+      }
+
+      public void writeJson(OutputStream out) throws IOException {
+        write(out, object);
+      }
+    };
+  }
+
+  private static Object get(Field field, Object object) {
+    if (field == null) return null;
+    try {
+      return field.get(object);
+    }
+    catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void set(Field field, Object object, String value) {
+    if (field == null) return;
+    try {
+      field.set(object, value);
+    }
+    catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Field findField(Class<?> type, Class<? extends Annotation> annotation) {
+    for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (field.isAnnotationPresent(annotation)) {
+          if (field.getType() != String.class)
+            throw new IllegalArgumentException("Field (" + field + ") annotated with @" +
+                annotation.getSimpleName() + " must be a String.");
+          field.setAccessible(true);
+          return field;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static ObjectMapper createMapper() {
+    ObjectMapper mapper = new ObjectMapper();
+    DocumentAnnotationIntrospector introspector = new DocumentAnnotationIntrospector();
+    mapper.getSerializationConfig().setAnnotationIntrospector(introspector);
+    mapper.getDeserializationConfig().setAnnotationIntrospector(introspector);
+    mapper.configure(SerializationConfig.Feature.WRITE_NULL_PROPERTIES, false);
+    mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    return mapper;
+  }
+
+  /**
+   * Names the annotated id and revision fields after CouchDB's properties, and picks them up even when private.
+   */
+  private static class DocumentAnnotationIntrospector extends JacksonAnnotationIntrospector {
+
+    @Override
+    public boolean isHandled(Annotation annotation) {
+      // Annotations which aren't handled are dropped before the other methods get to see them
+      Class<? extends Annotation> type = annotation.annotationType();
+      return type == DocumentId.class || type == DocumentRevision.class || super.isHandled(annotation);
+    }
+
+    @Override
+    public String findSerializablePropertyName(AnnotatedField field) {
+      String name = documentPropertyName(field);
+      return name != null ? name : super.findSerializablePropertyName(field);
+    }
+
+    @Override
+    public String findDeserializablePropertyName(AnnotatedField field) {
+      String name = documentPropertyName(field);
+      return name != null ? name : super.findDeserializablePropertyName(field);
+    }
+
+    private static String documentPropertyName(AnnotatedField field) {
+      if (field.hasAnnotation(DocumentId.class)) return "_id";
+      if (field.hasAnnotation(DocumentRevision.class)) return "_rev";
+      return null;
+    }
+  }
+
+}
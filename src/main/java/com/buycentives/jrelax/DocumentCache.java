@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least recently used cache of documents for {@link DefaultResourceManager#getDocument(String, String)}.
+ * Cached documents are always revalidated against CouchDB with their revision as the <code>If-None-Match</code> ETag,
+ * so a hit saves transferring and parsing the body but never returns a stale revision.
+ * <p/>
+ * The cache is bounded both by number of documents and by total weight, the size in bytes of the documents' json as
+ * CouchDB sent it.  It keeps its own copies, and every read gets a copy of its own, so callers may change the
+ * documents they're given.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class DocumentCache {
+
+  private final int maxEntries;
+  private final long maxWeight;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long weight;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxEntries maximum number of cached documents
+   * @param maxWeight  maximum total size of cached documents' json, in bytes
+   */
+  public DocumentCache(int maxEntries, long maxWeight) {
+    if (maxEntries < 1 || maxWeight < 1)
+      throw new IllegalArgumentException("Cache bounds must be positive, were " + maxEntries + " entries and " + maxWeight + " weight.");
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * @return number of reads answered from the cache after CouchDB confirmed the revision is current.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of reads which had to transfer the document, either because it wasn't cached or had changed.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of conditional requests made for cached documents, whether they turned out current or not.
+   */
+  public long getRevalidationCount() {
+    return revalidations.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  synchronized Document get(String dbName, String id) {
+    Entry entry = entries.get(keyFor(dbName, id));
+    return entry != null ? entry.doc.copy() : null;
+  }
+
+  synchronized void put(Document doc, long docWeight) {
+    if (docWeight > maxWeight) {
+      invalidate(doc.getDatabaseName(), doc.getId());
+      return;
+    }
+    Entry previous = entries.put(keyFor(doc.getDatabaseName(), doc.getId()), new Entry(doc.copy(), docWeight));
+    if (previous != null) weight -= previous.weight;
+    weight += docWeight;
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && (entries.size() > maxEntries || weight > maxWeight);) {
+      weight -= it.next().weight;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  synchronized void invalidate(String dbName, String id) {
+    Entry previous = entries.remove(keyFor(dbName, id));
+    if (previous != null) weight -= previous.weight;
+  }
+
+  void recordHit() {
+    hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  void recordRevalidation() {
+    revalidations.incrementAndGet();
+  }
+
+  @Override
+  public String toString() {
+    return "[size: " + size() + ", weight: " + getWeight() + ", hits: " + getHitCount() + ", misses: " +
+        getMissCount() + ", revalidations: " + getRevalidationCount() + ", evictions: " + getEvictionCount() + "]";
+  }
+
+  private static String keyFor(String dbName, String id) {
+    return dbName + '/' + id;
+  }
+
+  private static class Entry {
+    private final Document doc;
+    private final long weight;
+
+    Entry(Document doc, long weight) {
+      this.doc = doc;
+      this.weight = weight;
+    }
+  }
+
+}
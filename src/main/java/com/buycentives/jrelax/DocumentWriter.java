@@ -0,0 +1,393 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind saving of documents.  Writes are queued and saved in the background through
+ * {@link ResourceManager#saveDocuments}, in batches of up to the batch size, once a batch is full or its oldest write
+ * has waited for the maximum delay.
+ * <p/>
+ * Writes to a document that's still queued replace the queued version, so only the latest is saved, and every
+ * replaced write's future gets the result of saving the latest.  The queue holds a bounded number of documents, and
+ * writers block while it's full.
+ * <p/>
+ * A write carrying a revision that has since been replaced ends in a conflict, like any other save.  A writer created
+ * to rebase writes instead saves one carrying a revision the writer itself replaced over the revision the writer
+ * created.  That only suits a single producer per document, as it silently overwrites changes made by other
+ * producers writing through the same writer.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class DocumentWriter {
+
+  // Documents whose latest saved revision is remembered, for rebasing writes onto them
+  private static final int REMEMBERED_REVISIONS = 10000;
+
+  private final ResourceManager resourceMgr;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final int maxPending;
+  private final boolean rebaseWrites;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition ready = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+  private final LinkedHashMap<String, Write> pending = new LinkedHashMap<String, Write>();
+  private long lastSequence;
+  private long flushSequence;
+  private long savedSequence;
+  private boolean closed;
+
+  // Only used by the flusher thread
+  private final Map<String, String[]> revisions = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+      return size() > REMEMBERED_REVISIONS;
+    }
+  };
+
+  private final AtomicLong coalescedWrites = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final Thread flusher;
+
+  /**
+   * Creates a writer saving batches of up to 100 documents, at most 50 milliseconds after they're written, and
+   * holding up to 10000 documents.
+   */
+  public DocumentWriter(ResourceManager resourceMgr) {
+    this(resourceMgr, 100, 50, TimeUnit.MILLISECONDS, 10000);
+  }
+
+  /**
+   * @param maxBatchSize most documents saved in one batch
+   * @param maxDelay     longest a write waits for its batch to fill up
+   * @param maxPending   most documents queued, writers block while the queue is full
+   */
+  public DocumentWriter(ResourceManager resourceMgr, int maxBatchSize, long maxDelay, TimeUnit unit, int maxPending) {
+    this(resourceMgr, maxBatchSize, maxDelay, unit, maxPending, false);
+  }
+
+  /**
+   * @param rebaseWrites whether writes carrying a revision this writer replaced are saved over the writer's own
+   *                     revision instead of conflicting, see the class description
+   */
+  public DocumentWriter(ResourceManager resourceMgr, int maxBatchSize, long maxDelay, TimeUnit unit, int maxPending,
+                        boolean rebaseWrites) {
+    if (maxBatchSize < 1)
+      throw new IllegalArgumentException("Batch size must be positive, was " + maxBatchSize + ".");
+    if (maxPending < maxBatchSize)
+      throw new IllegalArgumentException("Queue size (" + maxPending + ") can't be less than the batch size.");
+    this.resourceMgr = resourceMgr;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = unit.toNanos(maxDelay);
+    this.maxPending = maxPending;
+    this.rebaseWrites = rebaseWrites;
+    this.flusher = new Thread(new Runnable() {
+      public void run() {
+        flushBatches();
+      }
+    }, "jrelax-document-writer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Queues a document to be saved, blocking while the queue is full.
+   *
+   * @param doc document with an id, and the revision it replaces if it exists
+   * @return the result of saving the document, or the later version of it which replaced it in the queue.  The
+   *         future fails if the batch couldn't be saved at all.
+   */
+  public Future<BulkResult> write(Document doc) {
+    try {
+      return write(doc, -1, TimeUnit.NANOSECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to queue document (" + doc.getId() + ")", e);
+    }
+  }
+
+  /**
+   * Same as {@link #write(Document)}, giving up after the given time if the queue stays full.
+   *
+   * @param timeout how long to wait for room in the queue, negative to wait for as long as it takes
+   * @return the result, or null if the document couldn't be queued in time
+   */
+  public Future<BulkResult> write(Document doc, long timeout, TimeUnit unit) throws InterruptedException {
+    if (doc.getId() == null)
+      throw new IllegalArgumentException("Documents need an id to be written behind.");
+    String key = doc.getDatabaseName() + '/' + doc.getId();
+    long waitNanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      if (closed) throw new IllegalStateException("Document writer is closed.");
+      Write queued = pending.get(key);
+      if (queued == null) {
+        while (!closed && pending.size() >= maxPending) {
+          if (timeout < 0) notFull.await();
+          else if (waitNanos <= 0) return null;
+          else waitNanos = notFull.awaitNanos(waitNanos);
+        }
+        if (closed) throw new IllegalStateException("Document writer is closed.");
+        // The document may have been queued while waiting
+        queued = pending.get(key);
+      }
+      if (queued != null) {
+        queued.doc = doc;
+        coalescedWrites.incrementAndGet();
+        return queued.result;
+      }
+      Write write = new Write(key, doc, ++lastSequence);
+      pending.put(key, write);
+      if (pending.size() >= maxBatchSize || pending.size() == 1) ready.signal();
+      return write.result;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Saves everything written so far, waiting until it's saved.
+   */
+  public void flush() {
+    lock.lock();
+    try {
+      long target = lastSequence;
+      flushSequence = Math.max(flushSequence, target);
+      ready.signal();
+      while (savedSequence < target) {
+        flushed.await();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while flushing written documents", e);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Saves everything written so far and stops the writer.  Writes made afterwards fail.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      ready.signal();
+      notFull.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while closing the document writer", e);
+    }
+  }
+
+  /**
+   * @return how many documents are queued.
+   */
+  public int getPendingCount() {
+    lock.lock();
+    try {
+      return pending.size();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return how many writes replaced a queued version of their document instead of being saved themselves.
+   */
+  public long getCoalescedCount() {
+    return coalescedWrites.get();
+  }
+
+  /**
+   * @return how many batches have been saved.
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  private void flushBatches() {
+    while (true) {
+      List<Write> batch = nextBatch();
+      if (batch == null) return;
+      save(batch);
+      lock.lock();
+      try {
+        savedSequence = batch.get(batch.size() - 1).sequence;
+        flushed.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Waits for a batch to be due and takes it off the queue.
+   *
+   * @return the batch, or null once the writer is closed and everything is saved
+   */
+  private List<Write> nextBatch() {
+    lock.lock();
+    try {
+      while (true) {
+        if (pending.isEmpty()) {
+          if (closed) return null;
+          ready.awaitUninterruptibly();
+          continue;
+        }
+        Write oldest = pending.values().iterator().next();
+        if (closed || pending.size() >= maxBatchSize || oldest.sequence <= flushSequence) break;
+        long wait = oldest.queuedAt + maxDelayNanos - System.nanoTime();
+        if (wait <= 0) break;
+        try {
+          ready.awaitNanos(wait);
+        }
+        catch (InterruptedException e) {
+          // Only close() stops the flusher
+        }
+      }
+      List<Write> batch = new ArrayList<Write>(Math.min(pending.size(), maxBatchSize));
+      for (Iterator<Write> writes = pending.values().iterator(); writes.hasNext() && batch.size() < maxBatchSize;) {
+        batch.add(writes.next());
+        writes.remove();
+      }
+      notFull.signalAll();
+      return batch;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private void save(List<Write> batch) {
+    Map<String, List<Write>> byDatabase = new LinkedHashMap<String, List<Write>>();
+    for (Write write : batch) {
+      String dbName = write.doc.getDatabaseName();
+      List<Write> writes = byDatabase.get(dbName);
+      if (writes == null) byDatabase.put(dbName, writes = new ArrayList<Write>());
+      writes.add(write);
+    }
+    for (Map.Entry<String, List<Write>> entry : byDatabase.entrySet()) {
+      List<Write> writes = entry.getValue();
+      List<Document> docs = new ArrayList<Document>(writes.size());
+      for (Write write : writes) {
+        docs.add(rebase(write));
+      }
+      try {
+        List<BulkResult> results = resourceMgr.saveDocuments(entry.getKey(), docs);
+        batches.incrementAndGet();
+        for (int i = 0; i < writes.size(); i++) {
+          Write write = writes.get(i);
+          BulkResult result = results.get(i);
+          if (rebaseWrites && result.isOk()) revisions.put(write.key, new String[]{write.doc.getRevision(), result.getRevision()});
+          write.result.complete(result);
+        }
+      }
+      catch (RuntimeException e) {
+        for (Write write : writes) {
+          write.result.fail(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the written document, moved onto the latest revision if it replaces a revision the writer replaced.
+   */
+  private Document rebase(Write write) {
+    if (!rebaseWrites) return write.doc;
+    String[] saved = revisions.get(write.key);
+    String revision = write.doc.getRevision();
+    if (saved == null || !(revision == null ? saved[0] == null : revision.equals(saved[0]))) return write.doc;
+    return write.doc.withRevision(saved[1]);
+  }
+
+  private static class Write {
+
+    final String key;
+    final long sequence;
+    final long queuedAt = System.nanoTime();
+    final Result result = new Result();
+    // Replaced by later writes to the same document while queued, guarded by the writer's lock
+    Document doc;
+
+    Write(String key, Document doc, long sequence) {
+      this.key = key;
+      this.doc = doc;
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Result extends FutureTask<BulkResult> {
+
+    private static final Callable<BulkResult> NOTHING = new Callable<BulkResult>() {
+      public BulkResult call() {
+        return null;
+      }
+    };
+
+    Result() {
+      super(NOTHING);
+    }
+
+    void complete(BulkResult result) {
+      set(result);
+    }
+
+    void fail(Throwable cause) {
+      setException(cause);
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * {@link CheckpointStore} keeping sequences of any number of databases in a properties file.  The file is rewritten
+ * through a temporary file and a rename, so a crash never leaves a half written checkpoint.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+  private final File file;
+  private final Properties sequences = new Properties();
+
+  public FileCheckpointStore(File file) {
+    this.file = file;
+    if (file.exists()) {
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          sequences.load(in);
+        }
+        finally {
+          in.close();
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Couldn't read checkpoints from (" + file + ")", e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized String load(String dbName) {
+    return sequences.getProperty(dbName);
+  }
+
+  @Override
+  public synchronized void save(String dbName, String sequence) {
+    sequences.setProperty(dbName, sequence);
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        sequences.store(out, null);
+      }
+      finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // Windows won't rename over an existing file
+        if (!file.delete() || !tmp.renameTo(file))
+          throw new IOException("Couldn't rename (" + tmp + ") to (" + file + ")");
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't write checkpoint to (" + file + ")", e);
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.metrics.ClientMetricsListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Decorates a {@link ResourceManager}, reporting the duration and outcome of every operation to a
+ * {@link ClientMetricsListener}.  Combine with {@link SessionConfig#setMetricsListener} to also see the individual
+ * HTTP exchanges each operation makes.
+ * <p/>
+ * The decorator is a dynamic proxy of the interface, so every operation is covered, including ones added later, and
+ * is reported under its method name.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class InstrumentedResourceManager implements InvocationHandler {
+
+  private final ResourceManager delegate;
+  private final ClientMetricsListener metricsListener;
+
+  private InstrumentedResourceManager(ResourceManager delegate, ClientMetricsListener listener) {
+    this.delegate = delegate;
+    this.metricsListener = listener;
+  }
+
+  /**
+   * @return a resource manager which calls the delegate and reports each call to the listener
+   */
+  public static ResourceManager instrument(ResourceManager delegate, ClientMetricsListener listener) {
+    return (ResourceManager) Proxy.newProxyInstance(ResourceManager.class.getClassLoader(),
+        new Class[]{ResourceManager.class}, new InstrumentedResourceManager(delegate, listener));
+  }
+
+  /**
+   * @return the manager an instrumented manager decorates, or the given manager if it isn't instrumented
+   */
+  public static ResourceManager getResourceManager(ResourceManager resourceMgr) {
+    if (Proxy.isProxyClass(resourceMgr.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(resourceMgr);
+      if (handler instanceof InstrumentedResourceManager)
+        return ((InstrumentedResourceManager) handler).delegate;
+    }
+    return resourceMgr;
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      if ("equals".equals(method.getName())) return proxy == args[0];
+      if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+      return "Instrumented " + delegate;
+    }
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      Object result = method.invoke(delegate, args);
+      success = true;
+      return result;
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    finally {
+      metricsListener.operationCompleted(method.getName(), System.nanoTime() - start, success);
+    }
+  }
+
+}
@@ -0,0 +1,373 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import com.buycentives.jrelax.utils.UriTemplate;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.restlet.data.Status;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An in-process, read-only copy of a database, kept current from its <code>_changes</code> feed.
+ * <p/>
+ * Documents are appended to a memory-mapped file as they change, and an in-memory index points each id at its latest
+ * record, so reads are served from the page cache without a request.  Deletions are appended as tombstones.  The
+ * first open copies the database from <code>_all_docs</code>; after that the feed's sequence is checkpointed once the
+ * records it covers are forced to disk, and reopening the replica rebuilds the index from the file and resumes the
+ * feed from the checkpoint.
+ * <p/>
+ * The replica is only consulted while it's fresh: the feed must have caught up with CouchDB, and heard from it,
+ * within the staleness bound.  Reads may lag writes by up to that bound, including writes made through the same
+ * manager.  The file only grows, and can't go past 2GB.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ * @see DefaultResourceManager#openLocalReplica
+ */
+public class LocalReplica implements ChangesListener {
+
+  private static final UriTemplate DB_URI = UriTemplate.compile("/${dbName}/");
+  private static final UriTemplate ALL_DOCS_URI = UriTemplate.compile("/${dbName}/_all_docs?include_docs=true");
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int INITIAL_CAPACITY = 1 << 20;
+
+  // Every record starts with its payload's length and checksum
+  private static final int RECORD_HEADER = 8;
+
+  private final DefaultResourceManager resourceMgr;
+  private final Session session;
+  private final String dbName;
+  private final File file;
+  private final CheckpointStore checkpoints;
+  private final long maxStaleness;
+
+  private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+  private final AtomicLong localReads = new AtomicLong();
+
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private volatile MappedByteBuffer buffer;
+  private volatile int end;
+  private volatile ChangesFeed feed;
+
+  LocalReplica(DefaultResourceManager resourceMgr, Session session, String dbName, File file,
+               CheckpointStore checkpoints, long maxStaleness) {
+    this.resourceMgr = resourceMgr;
+    this.session = session;
+    this.dbName = dbName;
+    this.file = file;
+    this.checkpoints = checkpoints;
+    this.maxStaleness = maxStaleness;
+  }
+
+  /**
+   * Opens the file, bootstrapping it from <code>_all_docs</code> unless there's a checkpoint to resume from, and starts
+   * following the changes feed.
+   */
+  void open() {
+    try {
+      String since = checkpoints.load(dbName);
+      boolean resume = since != null && file.length() > 0;
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      if (resume) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_CAPACITY));
+        scan();
+      }
+      else {
+        raf.setLength(0);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+        since = bootstrap();
+        buffer.force();
+        checkpoints.save(dbName, since);
+      }
+      // Heartbeats are what tell the replica it's caught up, so they have to come well within the bound
+      ChangesOptions options = new ChangesOptions()
+          .setSince(since)
+          .setIncludeDocs(true)
+          .setHeartbeat(Math.max(100, maxStaleness / 2))
+          .setCheckpointStore(checkpoints);
+      feed = resourceMgr.listenForChanges(dbName, options, this);
+    }
+    catch (IOException e) {
+      closeFile();
+      throw new RuntimeException("Couldn't open local replica of (" + dbName + ") in " + file + ".", e);
+    }
+    catch (RuntimeException e) {
+      closeFile();
+      throw e;
+    }
+  }
+
+  /**
+   * Copies every document in the database.  The update sequence is read first, so changes made while the copy runs
+   * are replayed by the feed afterwards.
+   *
+   * @return the sequence to follow the feed from
+   */
+  private String bootstrap() throws IOException {
+    String dbUri = DB_URI.expand(dbName);
+    CouchResponse<JsonNode> info = session.get(dbUri, JsonNode.class);
+    if (!info.isStatusEquals(Status.SUCCESS_OK)) {
+      throw new CouchDbException("Couldn't read database: (" + dbUri + ")\nReturned: " +
+          info.getStatus() + " - " + info.getStatusDescription(), info.getStatus());
+    }
+    String since = info.getResponseObject().path("update_seq").getValueAsText();
+
+    String uri = ALL_DOCS_URI.expand(dbName);
+    CouchResponse<InputStream> response = session.getStream(uri);
+    if (!response.isStatusEquals(Status.SUCCESS_OK)) {
+      throw new CouchDbException("Couldn't read documents: (" + uri + ")\nReturned: " +
+          response.getStatus() + " - " + response.getStatusDescription(), response.getStatus());
+    }
+    InputStream in = response.getResponseObject();
+    JsonParser parser = JsonUtils.createJsonParser(in);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("All documents response is not a json object.");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("rows".equals(field)) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            JsonNode doc = JsonUtils.readValue(parser, JsonNode.class).path("doc");
+            if (doc.isObject())
+              append(doc.path("_id").getTextValue(), doc.path("_rev").getTextValue(), doc.toString().getBytes(UTF8));
+          }
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+    }
+    finally {
+      parser.close();
+      in.close();
+    }
+    return since;
+  }
+
+  /**
+   * Rebuilds the index from the file, stopping at the first record which is incomplete or doesn't match its checksum.
+   * Anything after it was written past the last checkpoint and is replayed by the feed.
+   */
+  private void scan() {
+    ByteBuffer view = buffer.duplicate();
+    int pos = 0;
+    CRC32 crc = new CRC32();
+    while (pos + RECORD_HEADER <= view.capacity()) {
+      int length = view.getInt(pos);
+      if (length <= 0 || length > view.capacity() - pos - RECORD_HEADER) break;
+      byte[] payload = new byte[length];
+      view.position(pos + RECORD_HEADER);
+      view.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != view.getInt(pos + 4)) break;
+      ByteBuffer record = ByteBuffer.wrap(payload);
+      String id = readString(record);
+      readString(record);
+      if (record.getInt() >= 0)
+        index.put(id, pos);
+      else
+        index.remove(id);
+      pos += RECORD_HEADER + length;
+    }
+    end = pos;
+  }
+
+  /**
+   * Applies a batch from the feed, forcing it to disk before the feed checkpoints its sequence.
+   */
+  public void onChanges(List<Change> changes) {
+    for (Change change : changes) {
+      if (change.isDeleted()) {
+        append(change.getId(), change.getRevisions().isEmpty() ? null : change.getRevisions().get(0), null);
+      }
+      else if (change.getDocument() != null) {
+        Document doc = change.getDocument();
+        append(doc.getId(), doc.getRevision(), doc.getRawData());
+      }
+    }
+    buffer.force();
+  }
+
+  /**
+   * Appends a record, or a tombstone when the body is null.  Only the feed's thread, or the bootstrap before it,
+   * writes, and the index is only pointed at a record once it's complete.
+   */
+  private void append(String id, String revision, byte[] body) {
+    byte[] idBytes = id.getBytes(UTF8);
+    byte[] revBytes = revision != null ? revision.getBytes(UTF8) : new byte[0];
+    int length = 2 + idBytes.length + 2 + revBytes.length + 4 + (body != null ? body.length : 0);
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    payload.putShort((short) idBytes.length).put(idBytes);
+    payload.putShort((short) revBytes.length).put(revBytes);
+    if (body != null)
+      payload.putInt(body.length).put(body);
+    else
+      payload.putInt(-1);
+    CRC32 crc = new CRC32();
+    crc.update(payload.array());
+
+    int offset = end;
+    ByteBuffer view = ensureCapacity((long) offset + RECORD_HEADER + length).duplicate();
+    view.position(offset);
+    view.putInt(length).putInt((int) crc.getValue()).put(payload.array());
+    end = offset + RECORD_HEADER + length;
+    if (body != null)
+      index.put(id, offset);
+    else
+      index.remove(id);
+  }
+
+  private MappedByteBuffer ensureCapacity(long needed) {
+    MappedByteBuffer current = buffer;
+    if (needed <= current.capacity()) return current;
+    if (needed > Integer.MAX_VALUE)
+      throw new RuntimeException("Local replica of (" + dbName + ") can't grow past 2GB.");
+    long capacity = Math.min(Math.max(needed, (long) current.capacity() * 2), Integer.MAX_VALUE);
+    try {
+      // The old mapping stays valid for readers still holding it until it's collected
+      current.force();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      return buffer;
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Couldn't grow local replica of (" + dbName + ") in " + file + ".", e);
+    }
+  }
+
+  private static String readString(ByteBuffer record) {
+    byte[] bytes = new byte[record.getShort() & 0xffff];
+    record.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Reads a document from the file, whether or not the replica is fresh.  The bytes are handed out unparsed.
+   *
+   * @return the latest copy of the document, or null if it doesn't exist or has been deleted
+   */
+  public Document getDocument(String id) {
+    Integer offset = index.get(id);
+    if (offset == null) return null;
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + RECORD_HEADER);
+    String docId = readString(view);
+    String revision = readString(view);
+    byte[] body = new byte[view.getInt()];
+    view.get(body);
+    localReads.incrementAndGet();
+    return Document.fromBytes(dbName, docId, revision.length() > 0 ? revision : null, body);
+  }
+
+  /**
+   * @return true if the feed is running and has caught up with CouchDB within the staleness bound.  Applying changes
+   *         doesn't count, as the feed may still be working through a backlog.
+   */
+  public boolean isFresh() {
+    ChangesFeed f = feed;
+    if (f == null || !f.isRunning()) return false;
+    long caughtUp = f.getLastCaughtUpTime();
+    if (caughtUp == 0) return false;
+    return System.currentTimeMillis() - caughtUp <= maxStaleness;
+  }
+
+  public String getDatabaseName() {
+    return dbName;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the sequence of the last change applied to the replica.
+   */
+  public String getLastSequence() {
+    ChangesFeed f = feed;
+    return f != null ? f.getLastSequence() : null;
+  }
+
+  public int getDocumentCount() {
+    return index.size();
+  }
+
+  /**
+   * @return the bytes written to the file, including superseded records and tombstones.
+   */
+  public long getSize() {
+    return end;
+  }
+
+  public long getLocalReadCount() {
+    return localReads.get();
+  }
+
+  /**
+   * Stops following the feed and closes the file.  Reads through the manager go back to CouchDB.
+   */
+  public void close() {
+    resourceMgr.localReplicaClosed(this);
+    ChangesFeed f = feed;
+    if (f != null) {
+      f.stop();
+      try {
+        f.awaitTermination(5000);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    buffer.force();
+    closeFile();
+  }
+
+  private void closeFile() {
+    try {
+      if (raf != null) raf.close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+}
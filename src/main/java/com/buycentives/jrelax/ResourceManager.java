@@ -24,7 +24,14 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package com.buycentives.jrelax;
 
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ilya Sterin
@@ -44,18 +51,63 @@ public interface ResourceManager {
 
   Document saveDocument(String dbName, String name, String jsonData);
 
+  String saveDocument(String dbName, String name, InputStream json);
+
+  String saveDocument(String dbName, String name, File json);
+
+  <T> String saveDocument(String dbName, String name, T object);
+
+  List<BulkResult> saveDocuments(String dbName, Collection<Document> docs);
+
   Document getDocument(String dbName, String name);
 
   Document getDocument(String dbName, String name, String revisionId);
 
+  <T> T getDocumentAs(String dbName, String name, Class<T> type);
+
+  List<Document> getDocuments(String dbName, Collection<String> ids);
+
   void deleteDocument(Document doc);
 
   void deleteDocument(String dbName, String name, String revisionId);
 
+  List<BulkResult> deleteDocuments(String dbName, Collection<Document> docs);
+
+  String putAttachment(String dbName, String docId, String revision, String name, String contentType, FileChannel content);
+
+  String putAttachment(String dbName, String docId, String revision, String name, String contentType, File content);
+
+  long getAttachment(String dbName, String docId, String name, WritableByteChannel target);
+
+  long getAttachment(String dbName, String docId, String name, long offset, long length, WritableByteChannel target);
+
+  long getAttachment(String dbName, String docId, String name, File target);
+
+  String deleteAttachment(String dbName, String docId, String revision, String name);
+
+  UpdateResult callUpdateHandler(String dbName, String docName, String handlerName, String docId, Map<String, String> parameters);
+
+  Document update(String dbName, String id, DocumentUpdater updater);
+
+  Document update(Document current, DocumentUpdater updater);
+
   DesignDocument createView(DesignDocument view);
 
+  DesignDocument syncDesignDocument(DesignDocument doc, long timeout, TimeUnit unit);
+
   <K, V> ViewResult<K, V> executeView(String dbName, String docName, String viewName, Class<K> keyType, Class<V> valueType);
 
+  <K, V> ViewResult<K, V> executeView(ViewQuery query, Class<K> keyType, Class<V> valueType);
+
+  <K, V> ViewResultIterator<K, V> streamView(String dbName, String docName, String viewName, Class<K> keyType, Class<V> valueType);
+
+  <K, V> ViewResultIterator<K, V> streamView(ViewQuery query, Class<K> keyType, Class<V> valueType);
+
+  <K, V> ViewCursor<K, V> openViewCursor(String dbName, String docName, String viewName, int pageSize, boolean prefetch,
+                                         Class<K> keyType, Class<V> valueType);
+
+  <K, V> ViewCursor<K, V> openViewCursor(ViewQuery query, int pageSize, boolean prefetch, Class<K> keyType, Class<V> valueType);
+
   void deleteView(DesignDocument view);
 
   void deleteView(String dbName, String viewName, String revisionId);
@@ -64,4 +116,8 @@ public interface ResourceManager {
 
   <K, V> ViewResult<K, V> executeTemporaryView(String databaseName, String map, String reduce, Class<K> keyType, Class<V> valueType);
 
+  <K, V> ViewResultIterator<K, V> streamTemporaryView(DesignDocument viewDoc, Class<K> keyType, Class<V> valueType);
+
+  ChangesFeed listenForChanges(String dbName, ChangesOptions options, ChangesListener listener);
+
 }
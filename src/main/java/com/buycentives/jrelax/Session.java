@@ -25,11 +25,51 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.buycentives.jrelax;
 
 import com.buycentives.jrelax.CouchResponse;
+import com.buycentives.jrelax.metrics.LatencyHistogram;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.Encoding;
+import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
+import org.restlet.data.Preference;
+import org.restlet.data.Protocol;
+import org.restlet.data.Range;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
+import org.restlet.util.Series;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Ilya Sterin
@@ -41,11 +81,107 @@ public class Session {
   public static final String LIST_DBS_URI = "/_all_dbs";
 
   private final String baseUrl;
+  private final SessionConfig config;
+  private final Client client;
+  private final Semaphore connections;
+
+  private final AtomicLong requestBytesCompressed = new AtomicLong();
+  private final AtomicLong requestBytesUncompressed = new AtomicLong();
+  private final AtomicLong responseBytesCompressed = new AtomicLong();
+  private final AtomicLong responseBytesUncompressed = new AtomicLong();
+
+  // Runs the exchanges which must answer by a deadline, or which are hedged, so the caller can stop waiting for them
+  private final ExecutorService exchangeExecutor;
+  private final LatencyHistogram readLatency = new LatencyHistogram();
+  private volatile long hedgeDelay = -1;
+  private final AtomicLong hedgedReads = new AtomicLong();
+  // Abandoned exchanges still waiting on the server, which no longer hold a connection permit
+  private final AtomicInteger abandonedExchanges = new AtomicInteger();
+  // The attempt running on an exchange executor thread, so the exchanges it starts can be abandoned with it
+  private final ThreadLocal<Attempt<?>> currentAttempt = new ThreadLocal<Attempt<?>>();
 
   private ObjectMapper jsonMapper = new ObjectMapper();
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // Attribute under which Restlet keeps the raw HTTP headers
+  private static final String HEADERS_ATTRIBUTE = "org.restlet.http.headers";
+
+  // The hedge delay is recomputed every HEDGE_UPDATE_INTERVAL reads, from the last HEDGE_WINDOW reads at most
+  private static final int HEDGE_MIN_READS = 128;
+  private static final int HEDGE_UPDATE_INTERVAL = 64;
+  private static final int HEDGE_WINDOW = 8192;
+
   public Session(String baseUrl) {
+    this(baseUrl, new SessionConfig());
+  }
+
+  /**
+   * Creates a session whose requests share a single pooled, kept-alive HTTP client.  The session must be
+   * {@link #close() closed} to release its connections.
+   *
+   * @param baseUrl url of the CouchDB server
+   * @param config  connection pool and timeout settings
+   */
+  public Session(String baseUrl, SessionConfig config) {
     this.baseUrl = baseUrl;
+    this.config = config;
+    this.connections = new Semaphore(config.getMaxTotalConnections(), true);
+    this.client = createClient(config);
+    this.exchangeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "jrelax-exchange-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public SessionConfig getConfig() {
+    return config;
+  }
+
+  public ConnectionPoolStats getConnectionPoolStats() {
+    int max = config.getMaxTotalConnections();
+    return new ConnectionPoolStats(max, max - connections.availablePermits(), connections.getQueueLength());
+  }
+
+  /**
+   * @return totals of the gzipped request and response bodies, see {@link SessionConfig#setGzipEnabled}.
+   */
+  public CompressionStats getCompressionStats() {
+    return new CompressionStats(requestBytesCompressed.get(), requestBytesUncompressed.get(),
+        responseBytesCompressed.get(), responseBytesUncompressed.get());
+  }
+
+  /**
+   * @return how many reads were sent a second time because the first went unanswered for too long, see
+   *         {@link SessionConfig#setHedgePercentile}.
+   */
+  public long getHedgedReadCount() {
+    return hedgedReads.get();
+  }
+
+  /**
+   * @return how many exchanges the caller gave up on are still waiting for the server to answer or the read timeout
+   *         to pass.
+   */
+  public int getAbandonedExchangeCount() {
+    return abandonedExchanges.get();
+  }
+
+  /**
+   * Stops the underlying HTTP client, closing all pooled connections.
+   */
+  public void close() {
+    exchangeExecutor.shutdown();
+    try {
+      client.stop();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Unable to stop the HTTP client for (" + baseUrl + ")", e);
+    }
   }
 
   /*
@@ -55,88 +191,834 @@ public class Session {
   /**
    * @param uri            relative uri path to the resource.
    * @param jsonResultType The type of the result object.  It's usually JSONObject or JSONArray, but can be any type
-   *                       that has a constructor which excepts a json string.
+   *                       that has a constructor which excepts a json string.  <code>byte[]</code> returns the body
+   *                       unparsed.
    * @param <T>            The response object type
    * @return Returns the CouchResponse who's responseObject property is set to the return JSON string parsed into the
-   *         <T> jsonResultType object, using it's constructor which accepts a single String argument.
+   *         <T> jsonResultType object, using it's constructor which accepts a single String argument.  The read is
+   *         hedged, see {@link SessionConfig#setHedgePercentile}.
    */
-  <T> CouchResponse<T> get(String uri, Class<T> jsonResultType) {
-    try {
-      ClientResource resource = new ClientResource(fullUrlFor(uri));
-      resource.get();
-      if (resource.getStatus().isSuccess()) {
-        System.err.println("Response entity: " + resource.getStatus());
-        T obj = jsonMapper.readValue(resource.getResponseEntity().getText(), jsonResultType);
-        return new CouchResponse<T>(resource.getStatus(), obj);
+  <T> CouchResponse<T> get(final String uri, final Class<T> jsonResultType) {
+    return execute(uri, true, new Call<CouchResponse<T>>() {
+      CouchResponse<T> call() {
+        Exchange exchange = new Exchange("GET", uri);
+        try {
+          exchange.resource.get();
+          if (exchange.resource.getStatus().isSuccess()) {
+            CouchResponse<T> response =
+                new CouchResponse<T>(exchange.resource.getStatus(), exchange.readBody(jsonResultType));
+            response.setEntityTag(exchange.entityTag());
+            readCompleted(System.nanoTime() - exchange.start);
+            return response;
+          }
+          return new CouchResponse<T>(exchange.resource.getStatus());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to retrieve resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          exchange.complete();
+        }
       }
-      return new CouchResponse<T>(resource.getStatus());
-    }
-    catch (Exception e) {
-      throw new RuntimeException("Unable to retrieve resource (" + fullUrlFor(uri) + ")", e);
-    }
+    });
   }
 
-  <T> CouchResponse<T> post(String uri, CouchJsonResource object, Class<T> jsonResultType) {
-    System.err.println("POSTING TO: " + fullUrlFor(uri));
-    ClientResource resource = new ClientResource(fullUrlFor(uri));
-    try {
-      if (object != null) {
-        System.err.println("PUTTING: " + object.asJson());
-        resource.post(new JsonRepresentation(object.asJson()));
+  /**
+   * Conditional version of {@link #get(String, Class)}, sending the given entity tag as <code>If-None-Match</code>.
+   *
+   * @return Returns a CouchResponse with status {@link Status#REDIRECTION_NOT_MODIFIED} and no response object if
+   *         the resource still matches the tag, otherwise the same as {@link #get(String, Class)}.
+   */
+  <T> CouchResponse<T> getIfNoneMatch(final String uri, final String entityTag, final Class<T> jsonResultType) {
+    return execute(uri, false, new Call<CouchResponse<T>>() {
+      CouchResponse<T> call() {
+        Exchange exchange = new Exchange("GET", uri);
+        try {
+          exchange.resource.getConditions().setNoneMatch(Collections.singletonList(new Tag(entityTag, false)));
+          exchange.resource.get();
+          if (exchange.resource.getStatus().isSuccess()) {
+            CouchResponse<T> response =
+                new CouchResponse<T>(exchange.resource.getStatus(), exchange.readBody(jsonResultType));
+            response.setEntityTag(exchange.entityTag());
+            return response;
+          }
+          return new CouchResponse<T>(exchange.resource.getStatus());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to retrieve resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          exchange.complete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #get(String, Class)}, but hands back the response body unread so it can be streamed.  The caller
+   * owns the stream and must close it, which returns the connection to the pool.
+   *
+   * @param uri relative uri path to the resource.
+   * @return Returns the CouchResponse who's responseObject property is the response body stream, if successful.
+   */
+  CouchResponse<InputStream> getStream(String uri) {
+    return getStream(uri, 0, -1);
+  }
+
+  /**
+   * Same as {@link #getStream(String)}, asking for a range of the resource's bytes.  A deadline only bounds the wait
+   * for the response to start, not the reading of the stream.
+   *
+   * @param offset index of the first byte
+   * @param length number of bytes, or -1 for the rest of the resource.  No range is asked for if this is -1 and
+   *               the offset is 0.
+   */
+  CouchResponse<InputStream> getStream(final String uri, final long offset, final long length) {
+    return execute(uri, false, new StreamCall() {
+      CouchResponse<InputStream> call() {
+        Exchange exchange = new Exchange("GET", uri);
+        boolean streaming = false;
+        try {
+          if (offset > 0 || length >= 0)
+            exchange.resource.getRanges().add(new Range(offset, length >= 0 ? length : Range.SIZE_MAX));
+          exchange.resource.get();
+          if (exchange.resource.getStatus().isSuccess()) {
+            InputStream in = exchange.openStream();
+            streaming = true;
+            return new CouchResponse<InputStream>(exchange.resource.getStatus(), in);
+          }
+          return new CouchResponse<InputStream>(exchange.resource.getStatus());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to retrieve resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          if (!streaming) exchange.complete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #post(String, CouchJsonResource, Class)}, but hands back the response body unread so it can be
+   * streamed.  The caller owns the stream and must close it, which returns the connection to the pool.
+   */
+  CouchResponse<InputStream> postStream(final String uri, final CouchJsonResource object) {
+    return execute(uri, false, new StreamCall() {
+      CouchResponse<InputStream> call() {
+        Exchange exchange = new Exchange("POST", uri);
+        boolean streaming = false;
+        try {
+          exchange.resource.post(exchange.jsonEntity(object));
+          if (exchange.resource.getStatus().isSuccess()) {
+            InputStream in = exchange.openStream();
+            streaming = true;
+            return new CouchResponse<InputStream>(exchange.resource.getStatus(), in);
+          }
+          return new CouchResponse<InputStream>(exchange.resource.getStatus());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to post resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          if (!streaming) exchange.complete();
+        }
+      }
+    });
+  }
+
+  <T> CouchResponse<T> post(final String uri, final CouchJsonResource object, final Class<T> jsonResultType) {
+    return execute(uri, false, new Call<CouchResponse<T>>() {
+      CouchResponse<T> call() {
+        Exchange exchange = new Exchange("POST", uri);
+        try {
+          exchange.resource.post(exchange.jsonEntity(object));
+          if (exchange.resource.getStatus().isSuccess()) {
+            return new CouchResponse<T>(exchange.resource.getStatus(), exchange.readBody(jsonResultType));
+          }
+          return new CouchResponse<T>(exchange.resource.getStatus());
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to post resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          exchange.complete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Calls a design document's update handler, reading back whatever the handler answers as text.  The response
+   * headers are kept, as CouchDB reports the revision the handler saved in one.
+   *
+   * @param method <code>PUT</code> to update a given document, <code>POST</code> to let the handler create one
+   */
+  CouchResponse<String> callUpdateHandler(final String method, final String uri) {
+    return execute(uri, false, new Call<CouchResponse<String>>() {
+      CouchResponse<String> call() {
+        Exchange exchange = new Exchange(method, uri);
+        try {
+          if ("PUT".equals(method)) exchange.resource.put(null);
+          else exchange.resource.post(null);
+          CouchResponse<String> response = new CouchResponse<String>(exchange.resource.getStatus(), exchange.readText());
+          response.setHeaders(exchange.responseHeaders());
+          return response;
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to call update handler (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          exchange.complete();
+        }
       }
-      else {
-        resource.post(null);
+    });
+  }
+
+  CouchResponse<Map> delete(final String uri) {
+    return execute(uri, false, new Call<CouchResponse<Map>>() {
+      CouchResponse<Map> call() {
+        Exchange exchange = new Exchange("DELETE", uri);
+        try {
+          exchange.resource.delete();
+          return new CouchResponse<Map>(exchange.resource.getStatus(),
+              jsonMapper.readValue(exchange.readText(), Map.class));
+        }
+        catch (Exception e) {
+          throw new RuntimeException("Unable to delete resource (" + fullUrlFor(uri) + ")", e);
+        }
+        finally {
+          exchange.complete();
+        }
       }
-      if (resource.getStatus().isSuccess()) {
-        String responseBody = resource.getResponseEntity().getText();
-        System.err.println("RESPONSE: " + responseBody);
-        return new CouchResponse<T>(resource.getStatus(),
-            jsonMapper.readValue(responseBody, jsonResultType));
+    });
+  }
+
+  CouchResponse<Map> put(final String uri, final CouchJsonResource object) {
+    return execute(uri, false, new Call<CouchResponse<Map>>() {
+      CouchResponse<Map> call() {
+        Exchange exchange = new Exchange("PUT", uri);
+        return put(exchange, exchange.jsonEntity(object), uri);
+      }
+    });
+  }
+
+  /**
+   * Puts a json body read from the given stream, without parsing or buffering it.  The stream isn't closed.
+   *
+   * @param size the body's length in bytes, or -1 if unknown
+   */
+  CouchResponse<Map> put(final String uri, final InputStream json, final long size) {
+    return execute(uri, false, new Call<CouchResponse<Map>>() {
+      CouchResponse<Map> call() {
+        Exchange exchange = new Exchange("PUT", uri);
+        return put(exchange, exchange.streamEntity(json, size), uri);
+      }
+    });
+  }
+
+  /**
+   * Puts part of a file as a binary body, transferred from the channel to the connection without passing through the
+   * heap in one piece.  Binary bodies are never gzipped.  The channel isn't closed.
+   */
+  CouchResponse<Map> put(final String uri, final FileChannel content, final long position, final long count,
+                         final MediaType mediaType) {
+    return execute(uri, false, new Call<CouchResponse<Map>>() {
+      CouchResponse<Map> call() {
+        Exchange exchange = new Exchange("PUT", uri);
+        return put(exchange, exchange.entity(mediaType, count, false, new Body() {
+          void writeTo(OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            for (long sent = 0; sent < count;) {
+              long n = content.transferTo(position + sent, count - sent, target);
+              if (n <= 0)
+                throw new IOException("File ended " + (count - sent) + " bytes short of the expected size.");
+              sent += n;
+            }
+          }
+        }), uri);
       }
-      return new CouchResponse<T>(resource.getStatus()); 
+    });
+  }
+
+  /*
+  ------------- Hooks for sessions spanning several servers -------------
+  */
+
+  /**
+   * Picks the server an exchange goes to.  Every call is matched by a call to {@link #exchangeCompleted}.
+   *
+   * @param method the exchange's HTTP method
+   * @return the base url of the server
+   */
+  protected String selectBaseUrl(String method) {
+    return baseUrl;
+  }
+
+  /**
+   * Called once an exchange has completed, including when its response stream is closed.
+   *
+   * @param baseUrl    the server the exchange went to
+   * @param statusCode the response status, 1000 and up for connector errors and 0 if the request never got a status
+   */
+  protected void exchangeCompleted(String baseUrl, int statusCode, long durationNanos) {
+  }
+
+  /**
+   * Called instead of {@link #exchangeCompleted} when an exchange fails before its request is sent, after its server
+   * was selected.
+   *
+   * @param baseUrl the server the exchange would have gone to
+   */
+  protected void exchangeNotSent(String baseUrl) {
+  }
+
+  /**
+   * Checks whether a server answers at its root url, outside of the connection limit.
+   */
+  protected boolean isReachable(String baseUrl) {
+    ClientResource resource = new ClientResource(baseUrl + "/");
+    resource.setNext(client);
+    try {
+      resource.get();
+      return resource.getStatus().isSuccess();
     }
     catch (Exception e) {
-      throw new RuntimeException("Unable to post resource (" + fullUrlFor(uri) + ")", e);
+      return false;
+    }
+    finally {
+      resource.release();
     }
   }
 
-  CouchResponse<Map> delete(String uri) {
-    System.err.println("Deleting: " + fullUrlFor(uri));
+  /*
+  ------------- Private methods below -------------
+  */
+
+  private CouchResponse<Map> put(Exchange exchange, Representation entity, String uri) {
     try {
-      ClientResource resource = new ClientResource(fullUrlFor(uri));
-      resource.delete();
-      return new CouchResponse<Map>(resource.getStatus(),
-          jsonMapper.readValue(resource.getResponseEntity().getText(), Map.class));
+      exchange.resource.put(entity);
+      return new CouchResponse<Map>(exchange.resource.getStatus(),
+          jsonMapper.readValue(exchange.readText(), Map.class));
     }
     catch (Exception e) {
-      throw new RuntimeException("Unable to delete resource (" + fullUrlFor(uri) + ")", e);
+      throw new RuntimeException("Unable to create resource (" + fullUrlFor(uri) + ")", e);
+    }
+    finally {
+      exchange.complete();
     }
   }
 
-  CouchResponse<Map> put(String uri, CouchJsonResource object) {
-    System.err.println("PUTTING TO: " + fullUrlFor(uri));
-    ClientResource resource = new ClientResource(fullUrlFor(uri));
+  /**
+   * Runs a call on the calling thread, unless a {@link Deadline} is in effect or the call is a hedged read.  Then it
+   * runs on the exchange executor while the caller waits until the deadline, and a hedged read is sent again if it
+   * hasn't answered after the hedge delay, the first answer winning.
+   * <p/>
+   * The HTTP connector can't cut an exchange short, so an abandoned call keeps its thread and socket until the server
+   * answers or the read timeout passes.  It gives back its connection permit right away though, so it doesn't hold up
+   * other requests meanwhile.  At most {@link SessionConfig#getMaxTotalConnections()} abandoned exchanges do so, the
+   * connector's pool being sized for them, and any beyond that keep their permit until they return.
+   */
+  private <R> R execute(String uri, boolean hedged, Call<R> call) {
+    Deadline deadline = Deadline.current();
+    long hedgeAfter = hedged ? hedgeDelay : -1;
+    if (deadline == null && hedgeAfter < 0) return call.call();
+    long timeout = deadline != null ? deadline.remaining(TimeUnit.NANOSECONDS) : Long.MAX_VALUE;
+    if (timeout == 0) throw deadlineExceeded(uri);
+
+    CompletionService<R> completions = new ExecutorCompletionService<R>(exchangeExecutor);
+    List<Attempt<R>> attempts = new ArrayList<Attempt<R>>(2);
+    List<Future<R>> futures = new ArrayList<Future<R>>(2);
+    Future<R> winner = null;
+    long start = System.nanoTime();
     try {
-      if (object != null) {
-        System.err.println("PUTTING: " + object.asJson());
-        resource.put(new JsonRepresentation(object.asJson()));
+      submit(completions, call, attempts, futures);
+      int pending = 1;
+      boolean hedge = hedgeAfter >= 0;
+      ExecutionException failure = null;
+      while (true) {
+        long elapsed = System.nanoTime() - start;
+        if (elapsed >= timeout) throw deadlineExceeded(uri);
+        long wait = timeout - elapsed;
+        if (hedge) {
+          if (elapsed >= hedgeAfter) {
+            submit(completions, call, attempts, futures);
+            hedgedReads.incrementAndGet();
+            pending++;
+            hedge = false;
+            continue;
+          }
+          wait = Math.min(wait, hedgeAfter - elapsed);
+        }
+        if (pending == 0) throw unwrap(failure);
+        Future<R> done = completions.poll(wait, TimeUnit.NANOSECONDS);
+        if (done == null) continue;
+        pending--;
+        try {
+          R result = done.get();
+          winner = done;
+          return result;
+        }
+        catch (ExecutionException e) {
+          // Wait for a hedged request already in flight, but don't send one after a failure
+          failure = e;
+          hedge = false;
+        }
       }
-      else
-        resource.put(null);
-      return new CouchResponse<Map>(resource.getStatus(),
-          jsonMapper.readValue(resource.getResponseEntity().getText(), Map.class));
     }
-    catch (Exception e) {
-      throw new RuntimeException("Unable to create resource (" + fullUrlFor(uri) + ")", e);
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for (" + fullUrlFor(uri) + ")", e);
+    }
+    finally {
+      for (int i = 0; i < futures.size(); i++) {
+        if (futures.get(i) == winner) continue;
+        futures.get(i).cancel(true);
+        attempts.get(i).abandon();
+      }
     }
   }
 
-  /*
-  ------------- Private methods below -------------
-  */
+  private <R> void submit(CompletionService<R> completions, Call<R> call, List<Attempt<R>> attempts,
+                          List<Future<R>> futures) {
+    Attempt<R> attempt = new Attempt<R>(call);
+    attempts.add(attempt);
+    futures.add(completions.submit(attempt));
+  }
+
+  private static RuntimeException unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException) return (RuntimeException) cause;
+    if (cause instanceof Error) throw (Error) cause;
+    return new RuntimeException(cause);
+  }
+
+  private DeadlineExceededException deadlineExceeded(String uri) {
+    return new DeadlineExceededException("Deadline passed before (" + fullUrlFor(uri) + ") answered.");
+  }
+
+  /**
+   * Records the latency of a successful hedgeable read, updating the hedge delay now and then.
+   */
+  private void readCompleted(long durationNanos) {
+    double percentile = config.getHedgePercentile();
+    if (percentile <= 0) return;
+    readLatency.recordNanos(durationNanos);
+    long count = readLatency.getCount();
+    if (count >= HEDGE_MIN_READS && count % HEDGE_UPDATE_INTERVAL == 0) {
+      long delay = TimeUnit.MICROSECONDS.toNanos(readLatency.getValueAtPercentile(percentile));
+      hedgeDelay = Math.max(delay, TimeUnit.MILLISECONDS.toNanos(config.getHedgeMinDelay()));
+      if (count >= HEDGE_WINDOW) readLatency.reset();
+    }
+  }
 
   private String fullUrlFor(String uri) {
     return baseUrl + uri;
   }
 
-}
\ No newline at end of file
+  private static Client createClient(SessionConfig config) {
+    // Parameter names understood by the Apache HttpClient connector (org.restlet.ext.httpclient)
+    Context context = new Context();
+    Series<Parameter> params = context.getParameters();
+    // Room for the abandoned exchanges which gave back their permit but still hold a socket, see execute()
+    int abandonedLimit = config.getMaxTotalConnections();
+    params.add("maxConnectionsPerHost", String.valueOf(config.getMaxConnectionsPerHost() + abandonedLimit));
+    params.add("maxTotalConnections", String.valueOf(config.getMaxTotalConnections() + abandonedLimit));
+    params.add("idleTimeout", String.valueOf(config.getIdleTimeout()));
+    params.add("idleCheckInterval", String.valueOf(config.getIdleCheckInterval()));
+    params.add("connectTimeout", String.valueOf(config.getConnectTimeout()));
+    params.add("socketTimeout", String.valueOf(config.getReadTimeout()));
+    Client client = new Client(context, Protocol.HTTP);
+    try {
+      client.start();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Unable to start the HTTP client.", e);
+    }
+    return client;
+  }
+
+  /**
+   * A single HTTP exchange.  Holds a pooled connection from creation until {@link #complete()}, and reports the
+   * exchange to the metrics listener when it completes.
+   */
+  private class Exchange {
+
+    final ClientResource resource;
+    private final String method;
+    private final String server;
+    private final long start;
+    private CountingOutputStream sentOnWire;
+    private CountingOutputStream sentUncompressed;
+    private CountingInputStream receivedOnWire;
+    private CountingInputStream receivedUncompressed;
+    private boolean completed;
+    private boolean permitHeld;
+    private boolean abandoned;
+
+    Exchange(String method, String uri) {
+      this.method = method;
+      try {
+        connections.acquire();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for a connection to (" + fullUrlFor(uri) + ")", e);
+      }
+      // The exchange isn't completed if it fails before it's built, so undo what was taken for it
+      String selected = null;
+      boolean built = false;
+      try {
+        selected = selectBaseUrl(method);
+        this.server = selected;
+        this.resource = new ClientResource(server + uri);
+        resource.setNext(client);
+        if (config.isGzipEnabled())
+          resource.getClientInfo().getAcceptedEncodings().add(new Preference<Encoding>(Encoding.GZIP));
+        if (config.getMetricsListener() != null) config.getMetricsListener().requestStarted(method);
+        built = true;
+      }
+      finally {
+        if (!built) {
+          connections.release();
+          if (selected != null) exchangeNotSent(selected);
+        }
+      }
+      this.permitHeld = true;
+      this.start = System.nanoTime();
+      Attempt<?> attempt = currentAttempt.get();
+      if (attempt != null) attempt.started(this);
+    }
+
+    /**
+     * Gives back the connection permit of an exchange nobody waits for anymore, unless too many abandoned exchanges
+     * are still out.  The exchange itself runs on until it completes.
+     */
+    synchronized void abandon() {
+      if (completed || !permitHeld) return;
+      if (abandonedExchanges.incrementAndGet() > config.getMaxTotalConnections()) {
+        abandonedExchanges.decrementAndGet();
+        return;
+      }
+      abandoned = true;
+      permitHeld = false;
+      connections.release();
+    }
+
+    /**
+     * The object is written straight to the connection as it's sent.  Bodies of unknown length go out with chunked
+     * transfer encoding, so they're never built up in memory.
+     */
+    Representation jsonEntity(final CouchJsonResource object) {
+      if (object == null) return null;
+      long size = object instanceof Document && ((Document) object).isRaw() ?
+          ((Document) object).getRawData().length : Representation.UNKNOWN_SIZE;
+      return entity(MediaType.APPLICATION_JSON, size, true, new Body() {
+        void writeTo(OutputStream out) throws IOException {
+          object.writeJson(out);
+        }
+      });
+    }
+
+    /**
+     * Copies an already serialized json body to the connection.
+     *
+     * @param size the body's length, or -1 if unknown to send it chunked
+     */
+    Representation streamEntity(final InputStream json, long size) {
+      return entity(MediaType.APPLICATION_JSON, size, true, new Body() {
+        void writeTo(OutputStream out) throws IOException {
+          byte[] buffer = new byte[8192];
+          for (int n; (n = json.read(buffer)) != -1;) {
+            out.write(buffer, 0, n);
+          }
+        }
+      });
+    }
+
+    Representation entity(MediaType mediaType, long size, boolean compressible, final Body body) {
+      long threshold = config.getGzipRequestThreshold();
+      final boolean gzip = compressible && config.isGzipEnabled() && threshold >= 0 && (size < 0 || size >= threshold);
+      Representation entity = new OutputRepresentation(mediaType, gzip ? Representation.UNKNOWN_SIZE : size) {
+        @Override
+        public void write(OutputStream out) throws IOException {
+          sentOnWire = new CountingOutputStream(out);
+          if (gzip) {
+            GZIPOutputStream compressed = new GZIPOutputStream(sentOnWire, 8192);
+            sentUncompressed = new CountingOutputStream(compressed);
+            body.writeTo(sentUncompressed);
+            compressed.finish();
+          }
+          else {
+            body.writeTo(sentOnWire);
+          }
+          sentOnWire.flush();
+        }
+      };
+      if (gzip) entity.getEncodings().add(Encoding.GZIP);
+      return entity;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    <T> T readBody(Class<T> type) throws IOException {
+      if (type == byte[].class) return (T) readBytes();
+      return jsonMapper.readValue(readText(), type);
+    }
+
+    byte[] readBytes() throws IOException {
+      Representation entity = resource.getResponseEntity();
+      InputStream in = responseBody(false);
+      if (in == null) return null;
+      long size = entity.getSize();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int) size : 4096);
+      try {
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) != -1;) {
+          out.write(buffer, 0, n);
+        }
+      }
+      finally {
+        in.close();
+      }
+      return out.toByteArray();
+    }
+
+    String entityTag() {
+      Representation entity = resource.getResponseEntity();
+      Tag tag = entity != null ? entity.getTag() : null;
+      return tag != null ? tag.getName() : null;
+    }
+
+    Series<?> responseHeaders() {
+      Object headers = resource.getResponseAttributes().get(HEADERS_ATTRIBUTE);
+      return headers instanceof Series ? (Series<?>) headers : null;
+    }
+
+    String readText() throws IOException {
+      byte[] bytes = readBytes();
+      return bytes != null ? new String(bytes, UTF8) : null;
+    }
+
+    /**
+     * Opens the response body, the exchange completes when the returned stream is closed.
+     */
+    InputStream openStream() throws IOException {
+      return responseBody(true);
+    }
+
+    /**
+     * @return the response body, ungzipped as it's read if the server compressed it, or null if there's none.
+     */
+    private InputStream responseBody(boolean completeOnClose) throws IOException {
+      Representation entity = resource.getResponseEntity();
+      InputStream in = entity != null ? entity.getStream() : null;
+      if (in == null) return null;
+      receivedOnWire = new CountingInputStream(in);
+      in = completeOnClose ? new ExchangeInputStream(this, receivedOnWire) : receivedOnWire;
+      List<Encoding> encodings = entity.getEncodings();
+      if (encodings != null && encodings.contains(Encoding.GZIP)) {
+        receivedUncompressed = new CountingInputStream(new GZIPInputStream(in, 8192));
+        return receivedUncompressed;
+      }
+      return in;
+    }
+
+    void complete() {
+      boolean releasePermit;
+      synchronized (this) {
+        if (completed) return;
+        completed = true;
+        releasePermit = permitHeld;
+        permitHeld = false;
+        if (abandoned) abandonedExchanges.decrementAndGet();
+      }
+      try {
+        resource.release();
+      }
+      finally {
+        if (releasePermit) connections.release();
+        long duration = System.nanoTime() - start;
+        Status status = resource.getStatus();
+        int statusCode = status != null ? status.getCode() : 0;
+        exchangeCompleted(server, statusCode, duration);
+        long bytesSent = sentOnWire != null ? sentOnWire.count : 0;
+        long bytesReceived = receivedOnWire != null ? receivedOnWire.count : 0;
+        if (sentUncompressed != null) {
+          requestBytesCompressed.addAndGet(bytesSent);
+          requestBytesUncompressed.addAndGet(sentUncompressed.count);
+        }
+        if (receivedUncompressed != null) {
+          responseBytesCompressed.addAndGet(bytesReceived);
+          responseBytesUncompressed.addAndGet(receivedUncompressed.count);
+        }
+        if (config.getMetricsListener() != null) {
+          config.getMetricsListener().requestCompleted(method, statusCode, duration, bytesSent, bytesReceived);
+        }
+      }
+    }
+  }
+
+  /**
+   * The work of a request, which may run on another thread than the caller's, or more than once when hedged.
+   */
+  private static abstract class Call<R> {
+
+    abstract R call();
+
+    /**
+     * Releases the result of a call nobody waits for anymore.
+     */
+    void discard(R result) {
+    }
+  }
+
+  private static abstract class StreamCall extends Call<CouchResponse<InputStream>> {
+
+    @Override
+    void discard(CouchResponse<InputStream> response) {
+      InputStream in = response.getResponseObject();
+      try {
+        if (in != null) in.close();
+      }
+      catch (IOException e) {
+        // Nothing more to release
+      }
+    }
+  }
+
+  /**
+   * A call running on the exchange executor, whose result is discarded if it arrives after the caller gave up on it.
+   * The exchanges it started are abandoned with it.
+   */
+  private class Attempt<R> implements Callable<R> {
+
+    private final Call<R> call;
+    private final List<Exchange> exchanges = new ArrayList<Exchange>(1);
+    private R result;
+    private boolean abandoned;
+
+    Attempt(Call<R> call) {
+      this.call = call;
+    }
+
+    public R call() {
+      R r;
+      currentAttempt.set(this);
+      try {
+        r = call.call();
+      }
+      finally {
+        currentAttempt.remove();
+      }
+      synchronized (this) {
+        if (!abandoned) {
+          result = r;
+          return r;
+        }
+      }
+      call.discard(r);
+      return null;
+    }
+
+    void started(Exchange exchange) {
+      synchronized (this) {
+        if (!abandoned) {
+          exchanges.add(exchange);
+          return;
+        }
+      }
+      exchange.abandon();
+    }
+
+    void abandon() {
+      R r;
+      List<Exchange> started;
+      synchronized (this) {
+        abandoned = true;
+        r = result;
+        result = null;
+        started = new ArrayList<Exchange>(exchanges);
+        exchanges.clear();
+      }
+      for (Exchange exchange : started) {
+        exchange.abandon();
+      }
+      if (r != null) call.discard(r);
+    }
+  }
+
+  /**
+   * A request body, written when the request is sent.
+   */
+  private static abstract class Body {
+    abstract void writeTo(OutputStream out) throws IOException;
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) count += n;
+      return n;
+    }
+  }
+
+  /**
+   * Response body stream which completes its exchange, returning the connection to the pool, when closed.
+   */
+  private static class ExchangeInputStream extends FilterInputStream {
+
+    private final Exchange exchange;
+
+    ExchangeInputStream(Exchange exchange, InputStream in) {
+      super(in);
+      this.exchange = exchange;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      }
+      finally {
+        exchange.complete();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.metrics.ClientMetricsListener;
+
+/**
+ * Tunables for a {@link Session}'s HTTP client.  All durations are in milliseconds.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class SessionConfig {
+
+  private int maxConnectionsPerHost = 10;
+  private int maxTotalConnections = 20;
+  private long idleTimeout = 10000;
+  private long idleCheckInterval = 5000;
+  private int connectTimeout = 5000;
+  private int readTimeout = 60000;
+  private long healthCheckInterval = 5000;
+  private double hedgePercentile;
+  private long hedgeMinDelay = 10;
+  private ClientMetricsListener metricsListener;
+  private boolean gzipEnabled;
+  private long gzipRequestThreshold = 8192;
+
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  public SessionConfig setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+    this.maxConnectionsPerHost = positive("maxConnectionsPerHost", maxConnectionsPerHost);
+    return this;
+  }
+
+  /**
+   * @return the maximum number of requests the session runs at once.  Further requests wait for a connection to
+   *         be returned to the pool.
+   */
+  public int getMaxTotalConnections() {
+    return maxTotalConnections;
+  }
+
+  public SessionConfig setMaxTotalConnections(int maxTotalConnections) {
+    this.maxTotalConnections = positive("maxTotalConnections", maxTotalConnections);
+    return this;
+  }
+
+  /**
+   * @return how long a kept-alive connection may sit idle in the pool before it's closed.
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public SessionConfig setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+    return this;
+  }
+
+  /**
+   * @return how often idle connections are looked for and evicted, 0 disables eviction.
+   */
+  public long getIdleCheckInterval() {
+    return idleCheckInterval;
+  }
+
+  public SessionConfig setIdleCheckInterval(long idleCheckInterval) {
+    this.idleCheckInterval = idleCheckInterval;
+    return this;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public SessionConfig setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * @return socket read timeout, 0 waits forever.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  public SessionConfig setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+    return this;
+  }
+
+  /**
+   * @return how often a {@link ClusterSession} probes its servers, marking them up or down.
+   */
+  public long getHealthCheckInterval() {
+    return healthCheckInterval;
+  }
+
+  public SessionConfig setHealthCheckInterval(long healthCheckInterval) {
+    this.healthCheckInterval = positive("healthCheckInterval", healthCheckInterval);
+    return this;
+  }
+
+  /**
+   * @return the percentile of recent document and view read latencies after which a read which hasn't been answered
+   *         is sent a second time, the first answer being used.  0, the default, never sends a read twice.
+   */
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public SessionConfig setHedgePercentile(double hedgePercentile) {
+    if (hedgePercentile < 0 || hedgePercentile > 100)
+      throw new IllegalArgumentException("hedgePercentile must be between 0 and 100, was " + hedgePercentile + ".");
+    this.hedgePercentile = hedgePercentile;
+    return this;
+  }
+
+  /**
+   * @return the least time, in milliseconds, a read waits before it's sent a second time.
+   */
+  public long getHedgeMinDelay() {
+    return hedgeMinDelay;
+  }
+
+  public SessionConfig setHedgeMinDelay(long hedgeMinDelay) {
+    this.hedgeMinDelay = hedgeMinDelay;
+    return this;
+  }
+
+  public ClientMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  /**
+   * @param metricsListener receives an event for every HTTP exchange of the session, e.g. a
+   *                        {@link com.buycentives.jrelax.metrics.ClientMetrics}.  May be null.
+   */
+  public SessionConfig setMetricsListener(ClientMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+    return this;
+  }
+
+  public boolean isGzipEnabled() {
+    return gzipEnabled;
+  }
+
+  /**
+   * @param gzipEnabled ask for gzipped responses, which are decompressed as they're read, and gzip request bodies
+   *                    over the {@link #setGzipRequestThreshold threshold}.  The server must accept gzipped request
+   *                    bodies.
+   */
+  public SessionConfig setGzipEnabled(boolean gzipEnabled) {
+    this.gzipEnabled = gzipEnabled;
+    return this;
+  }
+
+  /**
+   * @return the request body size from which bodies are gzipped.  Bodies of unknown size, which are streamed, are
+   *         always gzipped.  -1 never gzips request bodies.
+   */
+  public long getGzipRequestThreshold() {
+    return gzipRequestThreshold;
+  }
+
+  public SessionConfig setGzipRequestThreshold(long gzipRequestThreshold) {
+    this.gzipRequestThreshold = gzipRequestThreshold;
+    return this;
+  }
+
+  private static int positive(String name, int value) {
+    if (value < 1)
+      throw new IllegalArgumentException(name + " must be positive, was " + value + ".");
+    return value;
+  }
+
+  private static long positive(String name, long value) {
+    if (value < 1)
+      throw new IllegalArgumentException(name + " must be positive, was " + value + ".");
+    return value;
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Promotion of temporary views which are run over and over into generated design documents, for
+ * {@link DefaultResourceManager#setTemporaryViewPromotion(TemporaryViewPromotion)}.  A temporary view's index is built
+ * from scratch on every run, while a design document's index is kept and updated incrementally.
+ * <p/>
+ * Temporary views are told apart by a hash of their map and reduce functions.  Once a view has run the given number
+ * of times, it's installed as a design document in the background, and its runs query that instead once its index is
+ * built.  Generated design documents which go unused for the expiry time are deleted, and so are generated design
+ * documents this process doesn't know about, left over by an earlier process or abandoned by another client.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class TemporaryViewPromotion {
+
+  /**
+   * Prefix of the generated design documents' names.
+   */
+  public static final String DESIGN_DOCUMENT_PREFIX = "jrelax_temp_";
+  /**
+   * Name of the view in a generated design document.
+   */
+  public static final String VIEW_NAME = "view";
+
+  // Longest time between looking for expired views
+  private static final long MAX_SWEEP_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+  private final int promoteAfterRuns;
+  private final long expireAfterNanos;
+  private final long sweepIntervalNanos;
+  private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+  // Databases views have run on, swept for leftover generated design documents
+  private final Set<String> databases = new HashSet<String>();
+  private long lastSweep = System.nanoTime();
+
+  private final AtomicLong promotions = new AtomicLong();
+  private final AtomicLong promotedRuns = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * @param promoteAfterRuns how many times a temporary view runs before it's promoted
+   * @param expireAfter      how long a view, promoted or not, is remembered after its last run
+   */
+  public TemporaryViewPromotion(int promoteAfterRuns, long expireAfter, TimeUnit unit) {
+    if (promoteAfterRuns < 1)
+      throw new IllegalArgumentException("Runs before promotion must be positive, was " + promoteAfterRuns + ".");
+    this.promoteAfterRuns = promoteAfterRuns;
+    this.expireAfterNanos = unit.toNanos(expireAfter);
+    this.sweepIntervalNanos = Math.min(expireAfterNanos, MAX_SWEEP_INTERVAL);
+  }
+
+  /**
+   * @return number of temporary views installed as design documents.
+   */
+  public long getPromotionCount() {
+    return promotions.get();
+  }
+
+  /**
+   * @return number of temporary view runs answered from a generated design document.
+   */
+  public long getPromotedRunCount() {
+    return promotedRuns.get();
+  }
+
+  /**
+   * @return number of generated design documents expired for going unused.
+   */
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+
+  /**
+   * Counts a run of a temporary view.
+   *
+   * @return the name of the design document the view runs on once it's installed, or null if it should still run as
+   *         a temporary view
+   */
+  synchronized String recordRun(String dbName, String hash) {
+    String key = dbName + '/' + hash;
+    Candidate candidate = candidates.get(key);
+    if (candidate == null) candidates.put(key, candidate = new Candidate(dbName, DESIGN_DOCUMENT_PREFIX + hash));
+    databases.add(dbName);
+    candidate.runs++;
+    candidate.lastRun = System.nanoTime();
+    if (candidate.installed) {
+      promotedRuns.incrementAndGet();
+      return candidate.docName;
+    }
+    return null;
+  }
+
+  /**
+   * Claims the installation of a view which is due to be promoted, so it's installed only once.  Either
+   * {@link #installed} or {@link #installFailed} must follow.
+   *
+   * @return the name of the design document to install, or null if the view isn't due or is already being installed
+   */
+  synchronized String startInstall(String dbName, String hash) {
+    Candidate candidate = candidates.get(dbName + '/' + hash);
+    if (candidate == null || candidate.installed || candidate.installing || candidate.runs < promoteAfterRuns)
+      return null;
+    candidate.installing = true;
+    return candidate.docName;
+  }
+
+  /**
+   * Records that a view's design document is installed.
+   */
+  synchronized void installed(String dbName, String hash) {
+    Candidate candidate = candidates.get(dbName + '/' + hash);
+    if (candidate != null && !candidate.installed) {
+      candidate.installed = true;
+      candidate.installing = false;
+      promotions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records that a view's design document couldn't be installed, or has gone missing since, so the view runs as a
+   * temporary view again and the installation is retried on its next run.
+   */
+  synchronized void installFailed(String dbName, String hash) {
+    Candidate candidate = candidates.get(dbName + '/' + hash);
+    if (candidate != null) {
+      candidate.installed = false;
+      candidate.installing = false;
+    }
+  }
+
+  /**
+   * @return whether a generated design document belongs to a view this process is running, installed or not.
+   */
+  synchronized boolean isKnown(String dbName, String docName) {
+    if (!docName.startsWith(DESIGN_DOCUMENT_PREFIX)) return false;
+    return candidates.containsKey(dbName + '/' + docName.substring(DESIGN_DOCUMENT_PREFIX.length()));
+  }
+
+  /**
+   * Forgets the views which haven't run for the expiry time, looking for them at most every so often.
+   *
+   * @return the database and name of each expired design document which was installed, to be deleted, or null if it
+   *         isn't time to look yet
+   */
+  synchronized List<String[]> takeExpired() {
+    long now = System.nanoTime();
+    if (now - lastSweep < sweepIntervalNanos) return null;
+    lastSweep = now;
+    List<String[]> expired = new ArrayList<String[]>();
+    for (Iterator<Candidate> it = candidates.values().iterator(); it.hasNext();) {
+      Candidate candidate = it.next();
+      if (now - candidate.lastRun < expireAfterNanos) continue;
+      it.remove();
+      if (candidate.installed) {
+        expired.add(new String[]{candidate.dbName, candidate.docName});
+        expirations.incrementAndGet();
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @return the databases views have run on, to look for leftover generated design documents in.
+   */
+  synchronized List<String> getDatabases() {
+    return new ArrayList<String>(databases);
+  }
+
+  private static class Candidate {
+
+    final String dbName;
+    final String docName;
+    int runs;
+    long lastRun;
+    boolean installing;
+    boolean installed;
+
+    Candidate(String dbName, String docName) {
+      this.dbName = dbName;
+      this.docName = docName;
+    }
+  }
+
+}
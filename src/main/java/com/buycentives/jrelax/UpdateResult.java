@@ -0,0 +1,74 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+/**
+ * Outcome of calling a design document's update handler.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class UpdateResult {
+
+  private final String id;
+  private final String revision;
+  private final String body;
+
+  public UpdateResult(String id, String revision, String body) {
+    this.id = id;
+    this.revision = revision;
+    this.body = body;
+  }
+
+  /**
+   * @return the id of the updated document, or of the document the handler created.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the revision the handler saved, or null if it left the document as it was.
+   */
+  public String getRevision() {
+    return revision;
+  }
+
+  /**
+   * @return the response the handler returned.
+   */
+  public String getBody() {
+    return body;
+  }
+
+  public boolean isSaved() {
+    return revision != null;
+  }
+
+  @Override
+  public String toString() {
+    return isSaved() ? id + "@" + revision : id + " (unchanged)";
+  }
+}
@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over every row of a view, a page at a time.  Each page is requested with one row more than the page size,
+ * and that extra row's key and document id become the <code>startkey</code> and <code>startkey_docid</code> of the
+ * next page.  Unlike paging with <code>skip</code>, deep pages are as cheap as the first one.
+ * <p/>
+ * Paging by document id only works for map views, so queries must turn reduce off, and can't ask for a set of keys
+ * as start keys don't apply to them.  The cursor overrides the query's limit, and after the first page its skip and
+ * start key options.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ViewCursor<K, V> implements Iterator<ViewResult.ViewResultRow<K, V>>,
+    Iterable<ViewResult.ViewResultRow<K, V>>, Closeable {
+
+  private final DefaultResourceManager manager;
+  private final ViewQuery query;
+  private final int pageSize;
+  private final Class<K> keyType;
+  private final Class<V> valueType;
+  private final ExecutorService prefetchExecutor;
+
+  private Iterator<ViewResult.ViewResultRow<K, V>> page = Collections.<ViewResult.ViewResultRow<K, V>>emptyList().iterator();
+  private ViewResult.ViewResultRow<K, V> nextPageStart;
+  private Future<ViewResult<K, V>> prefetched;
+  private int totalRows = -1;
+  private int pageCount;
+  private boolean exhausted;
+  private boolean closed;
+
+  ViewCursor(DefaultResourceManager manager, ViewQuery query, int pageSize,
+             Class<K> keyType, Class<V> valueType, ExecutorService prefetchExecutor) {
+    if (pageSize < 1)
+      throw new IllegalArgumentException("Page size must be positive, was " + pageSize + ".");
+    if (query.hasKeys())
+      throw new IllegalArgumentException("View cursors page by start key, which doesn't apply to queries for keys.");
+    if (!Boolean.FALSE.equals(query.getReduce()))
+      throw new IllegalArgumentException("View cursors page by document id, which reduced rows don't have.  " +
+          "Query the view with reduce(false).");
+    this.manager = manager;
+    this.query = query.copy();
+    this.pageSize = pageSize;
+    this.keyType = keyType;
+    this.valueType = valueType;
+    this.prefetchExecutor = prefetchExecutor;
+  }
+
+  /**
+   * @return the total number of rows in the view as reported with the first page, or -1 before it's fetched.
+   */
+  public int getTotalRows() {
+    return totalRows;
+  }
+
+  /**
+   * @return the number of pages fetched so far.
+   */
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  @Override
+  public Iterator<ViewResult.ViewResultRow<K, V>> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!page.hasNext()) {
+      if (closed || exhausted) return false;
+      advance();
+    }
+    return true;
+  }
+
+  @Override
+  public ViewResult.ViewResultRow<K, V> next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    return page.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("View rows can't be removed.");
+  }
+
+  /**
+   * Stops iterating, cancelling a page being prefetched.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (prefetched != null) {
+      prefetched.cancel(true);
+      prefetched = null;
+    }
+  }
+
+  private void advance() {
+    ViewResult<K, V> result = prefetched != null ? awaitPrefetched() : fetch(nextPageStart);
+    prefetched = null;
+    pageCount++;
+    if (totalRows < 0) totalRows = result.getTotalRows();
+
+    List<ViewResult.ViewResultRow<K, V>> rows = result.getResultRows();
+    if (rows.size() > pageSize) {
+      nextPageStart = rows.get(pageSize);
+      rows = rows.subList(0, pageSize);
+      if (prefetchExecutor != null) {
+        final ViewResult.ViewResultRow<K, V> start = nextPageStart;
+        prefetched = prefetchExecutor.submit(new Callable<ViewResult<K, V>>() {
+          public ViewResult<K, V> call() {
+            return fetch(start);
+          }
+        });
+      }
+    }
+    else {
+      nextPageStart = null;
+      exhausted = true;
+    }
+    page = rows.iterator();
+  }
+
+  private ViewResult<K, V> awaitPrefetched() {
+    try {
+      return prefetched.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while fetching a page of view (" + query.getDesignDocName() + "/" + query.getViewName() + ")", e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("Couldn't fetch a page of view (" + query.getDesignDocName() + "/" + query.getViewName() + ")", e.getCause());
+    }
+  }
+
+  private ViewResult<K, V> fetch(ViewResult.ViewResultRow<K, V> start) {
+    ViewQuery page = query.copy().limit(pageSize + 1);
+    if (start != null) {
+      // The key as the view returned it, binding it to the key type may not give back the same json
+      if (start.getKeyJson() != null)
+        page.startKeyJson(start.getKeyJson());
+      else
+        page.startKey(start.getKey());
+      page.startKeyDocId(start.getId()).skip(0);
+    }
+    return manager.executeView(page, keyType, valueType);
+  }
+
+}
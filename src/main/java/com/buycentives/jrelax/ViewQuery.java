@@ -0,0 +1,277 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options of a view query, passed to {@link ResourceManager#executeView(ViewQuery, Class, Class)}.  Keys can be any
+ * object that serializes to the json keys emitted by the view, e.g. a List for array keys.  Options left unset aren't
+ * sent, so CouchDB's defaults apply.
+ * <pre>
+ *   new ViewQuery("db", "orders", "by_date").startKey("2011-01-01").endKey("2011-02-01").limit(100)
+ * </pre>
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ViewQuery {
+
+  public enum Stale {
+    /**
+     * Return whatever is in the index without updating it.
+     */
+    OK("ok"),
+    /**
+     * Return whatever is in the index, then start updating it.
+     */
+    UPDATE_AFTER("update_after");
+
+    private final String value;
+
+    Stale(String value) {
+      this.value = value;
+    }
+  }
+
+  private final String databaseName;
+  private final String designDocName;
+  private final String viewName;
+
+  private Object key;
+  private boolean hasKey;
+  private List<Object> keys;
+  private Object startKey;
+  private String startKeyJson;
+  private boolean hasStartKey;
+  private String startKeyDocId;
+  private Object endKey;
+  private boolean hasEndKey;
+  private String endKeyDocId;
+  private Integer limit;
+  private Integer skip;
+  private Boolean descending;
+  private Boolean reduce;
+  private Boolean group;
+  private Integer groupLevel;
+  private Boolean includeDocs;
+  private Boolean inclusiveEnd;
+  private Stale stale;
+
+  public ViewQuery(String databaseName, String designDocName, String viewName) {
+    this.databaseName = databaseName;
+    this.designDocName = designDocName;
+    this.viewName = viewName;
+  }
+
+  public String getDatabaseName() {
+    return databaseName;
+  }
+
+  public String getDesignDocName() {
+    return designDocName;
+  }
+
+  public String getViewName() {
+    return viewName;
+  }
+
+  /**
+   * Only return rows with exactly this key.
+   */
+  public ViewQuery key(Object key) {
+    this.key = key;
+    this.hasKey = true;
+    return this;
+  }
+
+  /**
+   * Only return rows with these keys, in this order.  The keys are sent in the request body, so there's no limit on
+   * how many there are.
+   */
+  public ViewQuery keys(Collection<?> keys) {
+    this.keys = new ArrayList<Object>(keys);
+    return this;
+  }
+
+  public ViewQuery startKey(Object startKey) {
+    this.startKey = startKey;
+    this.startKeyJson = null;
+    this.hasStartKey = true;
+    return this;
+  }
+
+  /**
+   * Starts at a key given as json, sent as it is.
+   */
+  ViewQuery startKeyJson(String startKeyJson) {
+    this.startKey = null;
+    this.startKeyJson = startKeyJson;
+    this.hasStartKey = true;
+    return this;
+  }
+
+  /**
+   * Document id to start at among rows with the start key, for paging through duplicate keys.
+   */
+  public ViewQuery startKeyDocId(String startKeyDocId) {
+    this.startKeyDocId = startKeyDocId;
+    return this;
+  }
+
+  public ViewQuery endKey(Object endKey) {
+    this.endKey = endKey;
+    this.hasEndKey = true;
+    return this;
+  }
+
+  public ViewQuery endKeyDocId(String endKeyDocId) {
+    this.endKeyDocId = endKeyDocId;
+    return this;
+  }
+
+  public ViewQuery limit(int limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Skips rows on the server.  CouchDB still walks the skipped rows, prefer a {@link ViewCursor} for deep paging.
+   */
+  public ViewQuery skip(int skip) {
+    this.skip = skip;
+    return this;
+  }
+
+  public ViewQuery descending(boolean descending) {
+    this.descending = descending;
+    return this;
+  }
+
+  /**
+   * @param reduce false to return the mapped rows of a view which has a reduce function
+   */
+  public ViewQuery reduce(boolean reduce) {
+    this.reduce = reduce;
+    return this;
+  }
+
+  public ViewQuery group(boolean group) {
+    this.group = group;
+    return this;
+  }
+
+  public ViewQuery groupLevel(int groupLevel) {
+    this.groupLevel = groupLevel;
+    return this;
+  }
+
+  /**
+   * Asks for each row's document, which comes back as the row's {@link ViewResult.ViewResultRow#getDocument()}.
+   */
+  public ViewQuery includeDocs(boolean includeDocs) {
+    this.includeDocs = includeDocs;
+    return this;
+  }
+
+  public ViewQuery inclusiveEnd(boolean inclusiveEnd) {
+    this.inclusiveEnd = inclusiveEnd;
+    return this;
+  }
+
+  public ViewQuery stale(Stale stale) {
+    this.stale = stale;
+    return this;
+  }
+
+  public boolean hasKeys() {
+    return keys != null;
+  }
+
+  List<Object> getKeys() {
+    return keys;
+  }
+
+  /**
+   * @return whether the query asks for the view to be reduced, or null to leave it to the view.
+   */
+  Boolean getReduce() {
+    return reduce;
+  }
+
+  ViewQuery copy() {
+    ViewQuery copy = new ViewQuery(databaseName, designDocName, viewName);
+    copy.key = key;
+    copy.hasKey = hasKey;
+    copy.keys = keys;
+    copy.startKey = startKey;
+    copy.startKeyJson = startKeyJson;
+    copy.hasStartKey = hasStartKey;
+    copy.startKeyDocId = startKeyDocId;
+    copy.endKey = endKey;
+    copy.hasEndKey = hasEndKey;
+    copy.endKeyDocId = endKeyDocId;
+    copy.limit = limit;
+    copy.skip = skip;
+    copy.descending = descending;
+    copy.reduce = reduce;
+    copy.group = group;
+    copy.groupLevel = groupLevel;
+    copy.includeDocs = includeDocs;
+    copy.inclusiveEnd = inclusiveEnd;
+    copy.stale = stale;
+    return copy;
+  }
+
+  /**
+   * @return the query string parameters, unencoded.  Keys are json, keys passed with {@link #keys} aren't included
+   *         as they go in the request body.
+   */
+  Map<String, String> getQueryParameters() {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    if (hasKey) params.put("key", JsonUtils.toJson(key));
+    if (hasStartKey) params.put("startkey", startKeyJson != null ? startKeyJson : JsonUtils.toJson(startKey));
+    if (startKeyDocId != null) params.put("startkey_docid", startKeyDocId);
+    if (hasEndKey) params.put("endkey", JsonUtils.toJson(endKey));
+    if (endKeyDocId != null) params.put("endkey_docid", endKeyDocId);
+    if (limit != null) params.put("limit", limit.toString());
+    if (skip != null) params.put("skip", skip.toString());
+    if (descending != null) params.put("descending", descending.toString());
+    if (reduce != null) params.put("reduce", reduce.toString());
+    if (group != null) params.put("group", group.toString());
+    if (groupLevel != null) params.put("group_level", groupLevel.toString());
+    if (includeDocs != null) params.put("include_docs", includeDocs.toString());
+    if (inclusiveEnd != null) params.put("inclusive_end", inclusiveEnd.toString());
+    if (stale != null) params.put("stale", stale.value);
+    return params;
+  }
+
+}
@@ -25,6 +25,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.buycentives.jrelax;
 
 import com.buycentives.jrelax.utils.JsonUtils;
+import org.codehaus.jackson.JsonNode;
 
 import java.util.List;
 
@@ -61,11 +62,53 @@ public class ViewResult<K, V> {
     private final String id;
     private final K key;
     private final V value;
+    private final Document doc;
+    // The key as json, when the row was built from it
+    private final String keyJson;
 
-    ViewResultRow(String id, String key, Class<K> keyType, String value, Class<V> valueType) {
+    ViewResultRow(String id, String key, Class<K> keyType, String value, Class<V> valueType, Document doc) {
       this.id = id;
       this.key = JsonUtils.parseToJson(key, keyType);
       this.value = JsonUtils.parseToJson(value, valueType);
+      this.doc = doc;
+      this.keyJson = key;
+    }
+
+    ViewResultRow(String id, K key, V value) {
+      this(id, key, value, null);
+    }
+
+    ViewResultRow(String id, K key, V value, Document doc) {
+      this.id = id;
+      this.key = key;
+      this.value = value;
+      this.doc = doc;
+      this.keyJson = null;
+    }
+
+    /**
+     * @return the key as json as the view returned it, or null if the row wasn't built from json.  Unlike the bound
+     *         key, it always matches the view's key exactly.
+     */
+    String getKeyJson() {
+      return keyJson;
+    }
+
+    /**
+     * @return the row's document if the view was queried with {@link ViewQuery#includeDocs}, or null if it wasn't or
+     *         the document has been deleted.
+     */
+    public Document getDocument() {
+      return doc;
+    }
+
+    /**
+     * @return the document of a row's <code>doc</code> field, or null if it isn't a document.
+     */
+    static Document documentFor(String dbName, JsonNode docNode) {
+      if (docNode == null || !docNode.isObject()) return null;
+      return Document.createDocument(dbName, docNode.path("_id").getTextValue(), docNode.path("_rev").getTextValue(),
+          docNode);
     }
 
     public String getId() {
@@ -0,0 +1,197 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the rows of a view response as they are read off the wire, instead of materializing the whole
+ * {@link ViewResult}.  Memory use stays constant regardless of the number of rows.  The iterator holds on to the
+ * underlying connection, so it must be closed unless it was iterated to the end.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ViewResultIterator<K, V> implements Iterator<ViewResult.ViewResultRow<K, V>>,
+    Iterable<ViewResult.ViewResultRow<K, V>>, Closeable {
+
+  private final String dbName;
+  private final InputStream in;
+  private final JsonParser parser;
+  private final Class<K> keyType;
+  private final Class<V> valueType;
+
+  private int totalRows = -1;
+  private int offset = -1;
+  private boolean inRows;
+  private boolean closed;
+  private ViewResult.ViewResultRow<K, V> next;
+
+  ViewResultIterator(InputStream in, Class<K> keyType, Class<V> valueType) {
+    this(null, in, keyType, valueType);
+  }
+
+  /**
+   * @param dbName database the rows' documents are from, if the view was queried with their documents
+   */
+  ViewResultIterator(String dbName, InputStream in, Class<K> keyType, Class<V> valueType) {
+    this.dbName = dbName;
+    this.in = in;
+    this.keyType = keyType;
+    this.valueType = valueType;
+    try {
+      this.parser = JsonUtils.createJsonParser(in);
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IllegalStateException("View response is not a json object.");
+      readFields();
+    }
+    catch (IOException e) {
+      closeQuietly();
+      throw new RuntimeException("Couldn't read view response.", e);
+    }
+  }
+
+  /**
+   * @return the total number of rows in the view, or -1 if it hasn't been read yet or the view is reduced.
+   */
+  public int getTotalRows() {
+    return totalRows;
+  }
+
+  /**
+   * @return the offset of the first row, or -1 if it hasn't been read yet or the view is reduced.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  @Override
+  public Iterator<ViewResult.ViewResultRow<K, V>> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !closed) {
+      next = readRow();
+    }
+    return next != null;
+  }
+
+  @Override
+  public ViewResult.ViewResultRow<K, V> next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    ViewResult.ViewResultRow<K, V> row = next;
+    next = null;
+    return row;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("View rows can't be removed.");
+  }
+
+  @Override
+  public void close() {
+    closeQuietly();
+  }
+
+  private ViewResult.ViewResultRow<K, V> readRow() {
+    try {
+      if (inRows && parser.nextToken() == JsonToken.START_OBJECT) {
+        String id = null;
+        K key = null;
+        V value = null;
+        Document doc = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken token = parser.nextToken();
+          if ("id".equals(field))
+            id = token == JsonToken.VALUE_NULL ? null : parser.getText();
+          else if ("key".equals(field))
+            key = JsonUtils.readValue(parser, keyType);
+          else if ("value".equals(field))
+            value = JsonUtils.readValue(parser, valueType);
+          else if ("doc".equals(field))
+            doc = ViewResult.ViewResultRow.documentFor(dbName, JsonUtils.readValue(parser, JsonNode.class));
+          else
+            parser.skipChildren();
+        }
+        return new ViewResult.ViewResultRow<K, V>(id, key, value, doc);
+      }
+      // End of the rows array, pick up any trailing fields and release the connection
+      inRows = false;
+      readFields();
+      closeQuietly();
+      return null;
+    }
+    catch (IOException e) {
+      closeQuietly();
+      throw new RuntimeException("Couldn't read view row.", e);
+    }
+  }
+
+  /**
+   * Reads top level fields up to the start of the rows array, or to the end of the response.
+   */
+  private void readFields() throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("rows".equals(field)) {
+        inRows = true;
+        return;
+      }
+      else if ("total_rows".equals(field))
+        totalRows = parser.getIntValue();
+      else if ("offset".equals(field))
+        offset = parser.getIntValue();
+      else
+        parser.skipChildren();
+    }
+  }
+
+  private void closeQuietly() {
+    if (closed) return;
+    closed = true;
+    try {
+      if (parser != null) parser.close();
+      in.close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default {@link ClientMetricsListener}, keeping latency histograms per HTTP method and per resource manager
+ * operation, request counts per status code, bytes transferred and requests in flight.  All counters are lock free,
+ * so it can be read at any time, e.g. by a metrics scraper, while requests are being recorded.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ClientMetrics implements ClientMetricsListener {
+
+  // HTTP status codes are counted by index, anything outside 100-599 (e.g. connector errors) is counted under 0
+  private static final int MAX_STATUS = 600;
+
+  private final ConcurrentMap<String, LatencyHistogram> requestLatencies =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final ConcurrentMap<String, LatencyHistogram> operationLatencies =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final ConcurrentMap<String, AtomicLong> operationFailures = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS);
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  @Override
+  public void requestStarted(String method) {
+    inFlight.incrementAndGet();
+  }
+
+  @Override
+  public void requestCompleted(String method, int statusCode, long durationNanos, long bytesSent, long bytesReceived) {
+    inFlight.decrementAndGet();
+    histogramFor(requestLatencies, method).recordNanos(durationNanos);
+    statusCounts.incrementAndGet(statusCode >= 100 && statusCode < MAX_STATUS ? statusCode : 0);
+    if (bytesSent > 0) this.bytesSent.addAndGet(bytesSent);
+    if (bytesReceived > 0) this.bytesReceived.addAndGet(bytesReceived);
+  }
+
+  @Override
+  public void operationCompleted(String operation, long durationNanos, boolean success) {
+    histogramFor(operationLatencies, operation).recordNanos(durationNanos);
+    if (!success) {
+      AtomicLong failures = operationFailures.get(operation);
+      if (failures == null) {
+        AtomicLong created = new AtomicLong();
+        failures = operationFailures.putIfAbsent(operation, created);
+        if (failures == null) failures = created;
+      }
+      failures.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param method HTTP method name, e.g. GET
+   * @return the latency histogram of the method's requests, empty if none were made
+   */
+  public LatencyHistogram getRequestLatency(String method) {
+    LatencyHistogram histogram = requestLatencies.get(method);
+    return histogram != null ? histogram : new LatencyHistogram();
+  }
+
+  /**
+   * @param operation resource manager operation name, e.g. getDocument
+   * @return the latency histogram of the operation, empty if it never ran
+   */
+  public LatencyHistogram getOperationLatency(String operation) {
+    LatencyHistogram histogram = operationLatencies.get(operation);
+    return histogram != null ? histogram : new LatencyHistogram();
+  }
+
+  public long getOperationFailures(String operation) {
+    AtomicLong failures = operationFailures.get(operation);
+    return failures != null ? failures.get() : 0;
+  }
+
+  public Map<String, LatencyHistogram> getRequestLatencies() {
+    return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(requestLatencies));
+  }
+
+  public Map<String, LatencyHistogram> getOperationLatencies() {
+    return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(operationLatencies));
+  }
+
+  /**
+   * @return request counts keyed by HTTP status code, requests which failed without a response are counted under 0
+   */
+  public Map<Integer, Long> getStatusCounts() {
+    Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+    for (int i = 0; i < MAX_STATUS; i++) {
+      long n = statusCounts.get(i);
+      if (n > 0) counts.put(i, n);
+    }
+    return counts;
+  }
+
+  public long getStatusCount(int statusCode) {
+    return statusCode >= 0 && statusCode < MAX_STATUS ? statusCounts.get(statusCode) : 0;
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("requests: ").append(getRequestLatencies()).append('\n');
+    sb.append("operations: ").append(getOperationLatencies()).append('\n');
+    sb.append("statuses: ").append(getStatusCounts()).append('\n');
+    sb.append("bytes sent: ").append(getBytesSent()).append(", bytes received: ").append(getBytesReceived());
+    sb.append(", in flight: ").append(getInFlight());
+    return sb.toString();
+  }
+
+  private static LatencyHistogram histogramFor(ConcurrentMap<String, LatencyHistogram> histograms, String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) histogram = created;
+    }
+    return histogram;
+  }
+
+}
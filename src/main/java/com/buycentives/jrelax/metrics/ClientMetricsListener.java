@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax.metrics;
+
+/**
+ * Receives timing and traffic events from a {@link com.buycentives.jrelax.Session} and from an
+ * {@link com.buycentives.jrelax.InstrumentedResourceManager}.  Implementations are called on the requesting thread,
+ * so they must be thread safe and cheap.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public interface ClientMetricsListener {
+
+  /**
+   * An HTTP exchange is about to be sent.
+   *
+   * @param method HTTP method name, e.g. GET
+   */
+  void requestStarted(String method);
+
+  /**
+   * An HTTP exchange has finished.  For streamed responses this is when the response stream is closed.
+   *
+   * @param method        HTTP method name, e.g. GET
+   * @param statusCode    HTTP status code, or 0 if the request failed without a response
+   * @param durationNanos time from sending the request until the response was read
+   * @param bytesSent     size of the request body
+   * @param bytesReceived size of the response body
+   */
+  void requestCompleted(String method, int statusCode, long durationNanos, long bytesSent, long bytesReceived);
+
+  /**
+   * A {@link com.buycentives.jrelax.ResourceManager} operation has finished.
+   *
+   * @param operation     name of the operation, e.g. getDocument
+   * @param durationNanos time the operation took, including all of its HTTP exchanges
+   * @param success       false if the operation threw an exception
+   */
+  void operationCompleted(String operation, long durationNanos, boolean success);
+
+}
@@ -24,11 +24,17 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 package com.buycentives.jrelax.utils;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -52,6 +58,56 @@ public class JsonUtils {
     }
   }
 
+  public static <T> T parseToJson(byte[] json, Class<T> clazz) {
+    try {
+      return mapper.readValue(json, 0, json.length, clazz);
+    }
+    catch (IOException e) {
+      throw new IllegalArgumentException("Couldn't parse json bytes into (" + clazz.getName() + ")", e);
+    }
+  }
+
+  public static JsonParser createJsonParser(InputStream in) throws IOException {
+    return mapper.getJsonFactory().createJsonParser(in);
+  }
+
+  /**
+   * Binds the value at the parser's current token, leaving the parser positioned after it.
+   */
+  public static <T> T readValue(JsonParser parser, Class<T> clazz) throws IOException {
+    return mapper.readValue(parser, clazz);
+  }
+
+  public static String toJson(Object value) {
+    try {
+      StringWriter writer = new StringWriter();
+      mapper.writeValue(writer, value);
+      return writer.toString();
+    }
+    catch (IOException e) {
+      throw new IllegalArgumentException("Couldn't serialize (" + value + ") to json.", e);
+    }
+  }
+
+  /**
+   * @return a UTF-8 generator which leaves the stream open when it's closed.
+   */
+  public static JsonGenerator createJsonGenerator(OutputStream out) throws IOException {
+    JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    generator.setCodec(mapper);
+    return generator;
+  }
+
+  /**
+   * Serializes the value as UTF-8 json straight to the stream, leaving the stream open.
+   */
+  public static void writeJson(OutputStream out, Object value) throws IOException {
+    JsonGenerator generator = createJsonGenerator(out);
+    mapper.writeValue(generator, value);
+    generator.close();
+  }
+
   public static ObjectNode createJsonObjectNode() {
     return new ObjectNode(mapper.getNodeFactory());
   }
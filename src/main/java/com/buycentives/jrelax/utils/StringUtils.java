@@ -38,6 +38,11 @@ public class StringUtils {
   private StringUtils() {
   }
 
+  /**
+   * @deprecated compiles a regular expression per placeholder and doesn't encode the values, use a
+   *             {@link UriTemplate} instead.
+   */
+  @Deprecated
   public static String interpolate(String uri, Map<String, String> values) {
     for (Map.Entry entry : values.entrySet()) {
       uri = uri.replaceAll("\\$\\{" + entry.getKey() + "\\}", String.valueOf(entry.getValue()));
@@ -45,6 +50,24 @@ public class StringUtils {
     return uri;
   }
 
+  /**
+   * @return the number of bytes the given characters take up when encoded as UTF-8, without encoding them.
+   */
+  public static long utf8Length(CharSequence chars) {
+    long length = 0;
+    for (int i = 0, n = chars.length(); i < n; i++) {
+      char c = chars.charAt(i);
+      if (c < 0x80) length++;
+      else if (c < 0x800) length += 2;
+      else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        length += 4;
+        i++;
+      }
+      else length += 3;
+    }
+    return length;
+  }
+
   public static JSONObject parseJSONObject(String data) {
     try {
       return new JSONObject(data);
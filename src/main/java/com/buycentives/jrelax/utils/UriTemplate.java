@@ -0,0 +1,217 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A uri with <code>${name}</code> placeholders, parsed once and expanded from positional values.  Values are
+ * percent-encoded as UTF-8 for the part of the uri they're in: as a single path segment before the <code>?</code>, and
+ * as a query component after it.  A value starting with <code>_design/</code> or <code>_local/</code> keeps that slash,
+ * so design and local document ids can be passed as they are.
+ * <p/>
+ * Templates are immutable and can be shared between threads.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public final class UriTemplate {
+
+  private static final String HEX = "0123456789ABCDEF";
+  private static final String[] RESERVED_ID_PREFIXES = {"_design/", "_local/"};
+
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(128);
+    }
+  };
+
+  private final String template;
+  private final String[] literals;
+  private final String[] names;
+  private final boolean[] inQuery;
+
+  private UriTemplate(String template, List<String> literals, List<String> names, List<Boolean> inQuery) {
+    this.template = template;
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.names = names.toArray(new String[names.size()]);
+    this.inQuery = new boolean[inQuery.size()];
+    for (int i = 0; i < this.inQuery.length; i++) {
+      this.inQuery[i] = inQuery.get(i);
+    }
+  }
+
+  public static UriTemplate compile(String template) {
+    List<String> literals = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    List<Boolean> inQuery = new ArrayList<Boolean>();
+    int query = template.indexOf('?');
+    int pos = 0;
+    while (true) {
+      int start = template.indexOf("${", pos);
+      if (start < 0) break;
+      int end = template.indexOf('}', start);
+      if (end < 0)
+        throw new IllegalArgumentException("Unterminated placeholder at " + start + " in (" + template + ").");
+      literals.add(template.substring(pos, start));
+      names.add(template.substring(start + 2, end));
+      inQuery.add(query >= 0 && start > query);
+      pos = end + 1;
+    }
+    literals.add(template.substring(pos));
+    return new UriTemplate(template, literals, names, inQuery);
+  }
+
+  /**
+   * @return the placeholder names, in the order their values are expected.
+   */
+  public String[] getVariableNames() {
+    return names.clone();
+  }
+
+  /**
+   * Expands the template with one value per placeholder, in order.  Values are converted with
+   * {@link String#valueOf(Object)}.
+   */
+  public String expand(Object... values) {
+    return expandToBuffer(values).toString();
+  }
+
+  /**
+   * Same as {@link #expand}, but appends to the given builder so that query parameters can be added before the uri is
+   * turned into a string.
+   */
+  public StringBuilder expandTo(StringBuilder uri, Object... values) {
+    if (values.length != names.length)
+      throw new IllegalArgumentException("Template (" + template + ") takes " + names.length + " values, got " +
+          values.length + ".");
+    for (int i = 0; i < names.length; i++) {
+      uri.append(literals[i]);
+      String value = String.valueOf(values[i]);
+      if (inQuery[i]) appendQueryComponent(uri, value);
+      else appendPathSegment(uri, value);
+    }
+    return uri.append(literals[names.length]);
+  }
+
+  /**
+   * @return a builder holding the expanded template, reused by the calling thread.  It's only valid until the next
+   *         expansion on the same thread.
+   */
+  public StringBuilder expandToBuffer(Object... values) {
+    StringBuilder uri = BUFFER.get();
+    uri.setLength(0);
+    return expandTo(uri, values);
+  }
+
+  /**
+   * Appends <code>name=value</code> to the query of a uri, starting the query if the uri doesn't have one yet.
+   */
+  public static StringBuilder appendQueryParameter(StringBuilder uri, String name, String value) {
+    uri.append(uri.indexOf("?") < 0 ? '?' : '&');
+    appendQueryComponent(uri, name);
+    uri.append('=');
+    appendQueryComponent(uri, value);
+    return uri;
+  }
+
+  static void appendPathSegment(StringBuilder uri, String value) {
+    int from = 0;
+    for (String prefix : RESERVED_ID_PREFIXES) {
+      if (value.startsWith(prefix) && value.length() > prefix.length()) {
+        uri.append(prefix);
+        from = prefix.length();
+        break;
+      }
+    }
+    appendEncoded(uri, value, from, false);
+  }
+
+  static void appendQueryComponent(StringBuilder uri, String value) {
+    appendEncoded(uri, value, 0, true);
+  }
+
+  private static void appendEncoded(StringBuilder uri, String value, int from, boolean query) {
+    int length = value.length();
+    int i = from;
+    // Most ids and names don't need any escaping, append them in one go
+    while (i < length && isAllowed(value.charAt(i), query)) i++;
+    uri.append(value, from, i);
+    while (i < length) {
+      char c = value.charAt(i);
+      if (isAllowed(c, query)) {
+        uri.append(c);
+      }
+      else if (c < 0x80) {
+        appendEscaped(uri, c);
+      }
+      else if (c < 0x800) {
+        appendEscaped(uri, 0xC0 | (c >> 6));
+        appendEscaped(uri, 0x80 | (c & 0x3F));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        appendEscaped(uri, 0xF0 | (codePoint >> 18));
+        appendEscaped(uri, 0x80 | ((codePoint >> 12) & 0x3F));
+        appendEscaped(uri, 0x80 | ((codePoint >> 6) & 0x3F));
+        appendEscaped(uri, 0x80 | (codePoint & 0x3F));
+      }
+      else {
+        appendEscaped(uri, 0xE0 | (c >> 12));
+        appendEscaped(uri, 0x80 | ((c >> 6) & 0x3F));
+        appendEscaped(uri, 0x80 | (c & 0x3F));
+      }
+      i++;
+    }
+  }
+
+  private static boolean isAllowed(char c, boolean query) {
+    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))
+      return true;
+    switch (c) {
+      case '-': case '.': case '_': case '~':
+      case '!': case '$': case '\'': case '(': case ')': case '*': case ',': case ';': case ':': case '@':
+        return true;
+      case '/': case '?':
+        return query;
+      case '=': case '&':
+        return !query;
+      default:
+        return false;
+    }
+  }
+
+  private static void appendEscaped(StringBuilder uri, int b) {
+    uri.append('%').append(HEX.charAt((b >> 4) & 0xF)).append(HEX.charAt(b & 0xF));
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+
+}
@@ -0,0 +1,892 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.utils.JsonUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for CouchDB, serving the endpoints jrelax uses over HTTP so tests and load runs don't need a
+ * real server.
+ * <p/>
+ * Databases, <code>_all_dbs</code>, documents with revisions and 409 conflicts, <code>_bulk_docs</code>,
+ * <code>_all_docs</code>, design document views and <code>_temp_view</code> are supported.  Views aren't indexed,
+ * every query maps the whole database.  Map functions are run by {@link SimpleMapFunction}, which understands the
+ * common <code>if</code>/<code>emit</code> subset of JavaScript; anything beyond it can be given a Java
+ * implementation with {@link #defineMapFunction}.  Reduce functions are limited to <code>_count</code>,
+ * <code>_sum</code>, <code>_stats</code> and their JavaScript spellings.  Other endpoints answer 501.
+ * <p/>
+ * Every request can be delayed by a random latency within a configured range, to stand in for a remote server.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class CouchDbEmulator {
+
+  private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+  private final Map<String, Database> databases = new ConcurrentHashMap<String, Database>();
+  private final Map<String, MapFunction> mapFunctions = new ConcurrentHashMap<String, MapFunction>();
+  private final AtomicLong requests = new AtomicLong();
+  private final Random latencyJitter = new Random();
+
+  private volatile long minLatency;
+  private volatile long maxLatency;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * Receives the rows emitted by a map function.
+   */
+  public interface Emitter {
+    void emit(JsonNode key, JsonNode value);
+  }
+
+  public interface MapFunction {
+    void map(JsonNode doc, Emitter emitter);
+  }
+
+  /**
+   * Starts serving on an ephemeral port of the loopback interface.
+   */
+  public synchronized void start() throws IOException {
+    if (server != null) return;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public synchronized void stop() {
+    if (server == null) return;
+    server.stop(0);
+    executor.shutdownNow();
+    server = null;
+  }
+
+  public synchronized String getBaseUrl() {
+    if (server == null) throw new IllegalStateException("Emulator isn't started.");
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Delays every request by a uniformly random time between the bounds.
+   */
+  public void setLatency(long min, long max, TimeUnit unit) {
+    if (min < 0 || max < min)
+      throw new IllegalArgumentException("Latency bounds must be non-negative and ordered, were " + min + " and " +
+          max + ".");
+    minLatency = unit.toNanos(min);
+    maxLatency = unit.toNanos(max);
+  }
+
+  /**
+   * Runs a map function with the given source as Java rather than through {@link SimpleMapFunction}.  Sources are
+   * matched ignoring whitespace.
+   */
+  public void defineMapFunction(String source, MapFunction function) {
+    mapFunctions.put(normalize(source), function);
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /* Request handling */
+
+  private void serve(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      delay();
+      Request request = new Request(exchange);
+      route(request);
+    }
+    catch (BadRequest e) {
+      respond(exchange, 400, error("bad_request", e.getMessage()));
+    }
+    catch (Exception e) {
+      respond(exchange, 500, error("unknown_error", String.valueOf(e)));
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private void delay() throws InterruptedException {
+    long min = minLatency, max = maxLatency;
+    if (max == 0) return;
+    long nanos = min;
+    if (max > min) {
+      synchronized (latencyJitter) {
+        nanos += (long) (latencyJitter.nextDouble() * (max - min));
+      }
+    }
+    TimeUnit.NANOSECONDS.sleep(nanos);
+  }
+
+  private void route(Request request) throws IOException {
+    List<String> path = request.path;
+    String method = request.method;
+    if (path.isEmpty()) {
+      ObjectNode welcome = NODES.objectNode();
+      welcome.put("couchdb", "Welcome");
+      welcome.put("version", "emulator");
+      request.respond(200, welcome);
+      return;
+    }
+    if (path.size() == 1 && "_all_dbs".equals(path.get(0))) {
+      ArrayNode names = NODES.arrayNode();
+      List<String> sorted = new ArrayList<String>(databases.keySet());
+      Collections.sort(sorted);
+      for (String name : sorted) names.add(name);
+      request.respond(200, names);
+      return;
+    }
+    String dbName = path.get(0);
+    if (path.size() == 1) {
+      serveDatabase(request, dbName);
+      return;
+    }
+    Database db = databases.get(dbName);
+    if (db == null) {
+      request.respond(404, error("not_found", "no_db_file"));
+      return;
+    }
+    String second = path.get(1);
+    if (path.size() == 2 && "_bulk_docs".equals(second) && "POST".equals(method)) {
+      bulkDocs(request, db);
+    }
+    else if (path.size() == 2 && "_all_docs".equals(second)) {
+      allDocs(request, db);
+    }
+    else if (path.size() == 2 && "_temp_view".equals(second) && "POST".equals(method)) {
+      JsonNode body = request.body();
+      queryView(request, db, body.path("map").getTextValue(), body.path("reduce").getTextValue());
+    }
+    else if (path.size() == 5 && "_design".equals(second) && "_view".equals(path.get(3))) {
+      designView(request, db, "_design/" + path.get(2), path.get(4));
+    }
+    else if (path.size() == 2 && !second.startsWith("_")) {
+      serveDocument(request, db, second);
+    }
+    else if (path.size() == 3 && "_design".equals(second)) {
+      serveDocument(request, db, "_design/" + path.get(2));
+    }
+    else {
+      request.respond(501, error("not_implemented", "The emulator doesn't support " + method + " " +
+          request.exchange.getRequestURI().getRawPath()));
+    }
+  }
+
+  private void serveDatabase(Request request, String dbName) throws IOException {
+    String method = request.method;
+    if ("PUT".equals(method)) {
+      Database db = new Database();
+      synchronized (databases) {
+        if (databases.containsKey(dbName)) {
+          request.respond(412, error("file_exists", "The database could not be created, the file already exists."));
+          return;
+        }
+        databases.put(dbName, db);
+      }
+      request.respond(201, ok());
+    }
+    else if ("DELETE".equals(method)) {
+      if (databases.remove(dbName) == null)
+        request.respond(404, error("not_found", "missing"));
+      else
+        request.respond(200, ok());
+    }
+    else if ("GET".equals(method) || "HEAD".equals(method)) {
+      Database db = databases.get(dbName);
+      if (db == null) {
+        request.respond(404, error("not_found", "no_db_file"));
+        return;
+      }
+      ObjectNode info = NODES.objectNode();
+      info.put("db_name", dbName);
+      synchronized (db) {
+        info.put("doc_count", db.liveCount());
+        info.put("update_seq", db.updateSeq);
+      }
+      request.respond(200, info);
+    }
+    else if ("POST".equals(method)) {
+      Database db = databases.get(dbName);
+      if (db == null) {
+        request.respond(404, error("not_found", "no_db_file"));
+        return;
+      }
+      ObjectNode body = request.objectBody();
+      String id = body.path("_id").getTextValue();
+      saveAndRespond(request, db, id != null ? id : newId(), body, body.path("_rev").getTextValue());
+    }
+    else {
+      request.respond(405, error("method_not_allowed", "Only GET,HEAD,PUT,POST,DELETE allowed"));
+    }
+  }
+
+  private void serveDocument(Request request, Database db, String id) throws IOException {
+    String method = request.method;
+    if ("GET".equals(method) || "HEAD".equals(method)) {
+      Entry entry;
+      synchronized (db) {
+        entry = db.docs.get(id);
+      }
+      String rev = request.param("rev");
+      if (entry == null || (entry.deleted && rev == null) || (rev != null && !rev.equals(entry.rev))) {
+        request.respond(404, error("not_found", entry != null && entry.deleted ? "deleted" : "missing"));
+        return;
+      }
+      String etag = "\"" + entry.rev + "\"";
+      request.exchange.getResponseHeaders().set("ETag", etag);
+      if (etag.equals(request.exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        request.respondEmpty(304);
+        return;
+      }
+      request.respond(200, entry.body);
+    }
+    else if ("PUT".equals(method)) {
+      ObjectNode body = request.objectBody();
+      String rev = request.param("rev");
+      saveAndRespond(request, db, id, body, rev != null ? rev : body.path("_rev").getTextValue());
+    }
+    else if ("DELETE".equals(method)) {
+      ObjectNode tombstone = NODES.objectNode();
+      tombstone.put("_deleted", true);
+      saveAndRespond(request, db, id, tombstone, request.param("rev"));
+    }
+    else {
+      request.respond(405, error("method_not_allowed", "Only GET,HEAD,PUT,DELETE allowed"));
+    }
+  }
+
+  private void saveAndRespond(Request request, Database db, String id, ObjectNode body, String rev) throws IOException {
+    String saved;
+    synchronized (db) {
+      saved = db.save(id, body, rev);
+    }
+    if (saved == null) {
+      request.respond(409, error("conflict", "Document update conflict."));
+      return;
+    }
+    request.exchange.getResponseHeaders().set("ETag", "\"" + saved + "\"");
+    ObjectNode result = ok();
+    result.put("id", id);
+    result.put("rev", saved);
+    request.respond("DELETE".equals(request.method) ? 200 : 201, result);
+  }
+
+  private void bulkDocs(Request request, Database db) throws IOException {
+    JsonNode docs = request.body().path("docs");
+    ArrayNode results = NODES.arrayNode();
+    synchronized (db) {
+      for (JsonNode doc : docs) {
+        if (!doc.isObject()) throw new BadRequest("Documents must be json objects.");
+        String id = doc.path("_id").getTextValue();
+        if (id == null) id = newId();
+        ObjectNode result = results.addObject();
+        result.put("id", id);
+        String saved = db.save(id, (ObjectNode) doc, doc.path("_rev").getTextValue());
+        if (saved != null) {
+          result.put("rev", saved);
+        }
+        else {
+          result.put("error", "conflict");
+          result.put("reason", "Document update conflict.");
+        }
+      }
+    }
+    request.respond(201, results);
+  }
+
+  private void allDocs(Request request, Database db) throws IOException {
+    List<Row> rows = new ArrayList<Row>();
+    synchronized (db) {
+      for (Entry entry : db.docs.values()) {
+        if (entry.deleted) continue;
+        ObjectNode value = NODES.objectNode();
+        value.put("rev", entry.rev);
+        rows.add(new Row(entry.id, NODES.textNode(entry.id), value, entry.body));
+      }
+    }
+    JsonNode keys = "POST".equals(request.method) ? request.body().path("keys") : request.jsonParam("keys");
+    if (keys != null && keys.isArray()) {
+      // Requested ids come back in order, with an error row for those that don't exist
+      Map<String, Row> byId = new HashMap<String, Row>();
+      for (Row row : rows) byId.put(row.id, row);
+      ArrayNode out = NODES.arrayNode();
+      for (JsonNode key : keys) {
+        Row row = byId.get(key.getTextValue());
+        if (row != null) {
+          out.add(row.toJson(request.flag("include_docs", false)));
+        }
+        else {
+          ObjectNode missing = out.addObject();
+          missing.put("key", key);
+          missing.put("error", "not_found");
+        }
+      }
+      request.respond(200, viewResponse(rows.size(), 0, out));
+      return;
+    }
+    respondRows(request, rows, null);
+  }
+
+  private void designView(Request request, Database db, String designId, String viewName) throws IOException {
+    JsonNode view;
+    synchronized (db) {
+      Entry design = db.docs.get(designId);
+      view = design != null && !design.deleted ? design.body.path("views").path(viewName) : null;
+    }
+    if (view == null || !view.isObject()) {
+      request.respond(404, error("not_found", "missing_named_view"));
+      return;
+    }
+    queryView(request, db, view.path("map").getTextValue(), view.path("reduce").getTextValue());
+  }
+
+  private void queryView(Request request, Database db, String map, String reduce) throws IOException {
+    if (map == null) throw new BadRequest("View has no map function.");
+    MapFunction function = mapFunction(map);
+    List<Row> rows = new ArrayList<Row>();
+    List<Entry> entries;
+    synchronized (db) {
+      entries = new ArrayList<Entry>(db.docs.values());
+    }
+    for (final Entry entry : entries) {
+      if (entry.deleted || entry.id.startsWith("_design/")) continue;
+      final List<Row> emitted = rows;
+      try {
+        function.map(entry.body, new Emitter() {
+          public void emit(JsonNode key, JsonNode value) {
+            emitted.add(new Row(entry.id, orNull(key), orNull(value), entry.body));
+          }
+        });
+      }
+      catch (RuntimeException e) {
+        // CouchDB skips documents its map function throws on
+      }
+    }
+    Collections.sort(rows, new Comparator<Row>() {
+      public int compare(Row a, Row b) {
+        int c = Collation.compare(a.key, b.key);
+        return c != 0 ? c : a.id.compareTo(b.id);
+      }
+    });
+    respondRows(request, rows, request.flag("reduce", true) ? reduce : null);
+  }
+
+  /**
+   * Applies the key range, ordering, paging and reduction of a query to sorted rows.
+   */
+  private void respondRows(Request request, List<Row> rows, String reduce) throws IOException {
+    int total = rows.size();
+    boolean descending = request.flag("descending", false);
+    JsonNode keys = "POST".equals(request.method) ? request.body().path("keys") : request.jsonParam("keys");
+    JsonNode key = request.jsonParam("key");
+    List<Row> selected = new ArrayList<Row>();
+    if (keys != null && keys.isArray()) {
+      for (JsonNode k : keys) {
+        for (Row row : rows) {
+          if (Collation.compare(row.key, k) == 0) selected.add(row);
+        }
+      }
+    }
+    else {
+      if (descending) Collections.reverse(rows);
+      JsonNode start = request.jsonParam("startkey");
+      JsonNode end = request.jsonParam("endkey");
+      boolean inclusiveEnd = request.flag("inclusive_end", true);
+      int direction = descending ? -1 : 1;
+      for (Row row : rows) {
+        if (key != null && Collation.compare(row.key, key) != 0) continue;
+        if (start != null && direction * Collation.compare(row.key, start) < 0) continue;
+        if (end != null) {
+          int c = direction * Collation.compare(row.key, end);
+          if (c > 0 || (c == 0 && !inclusiveEnd)) continue;
+        }
+        selected.add(row);
+      }
+    }
+
+    if (reduce != null) {
+      request.respond(200, reduce(request, selected, reduce));
+      return;
+    }
+    int offset = selected.isEmpty() ? total : rows.indexOf(selected.get(0));
+    int skip = request.intParam("skip", 0);
+    int limit = request.intParam("limit", Integer.MAX_VALUE);
+    boolean includeDocs = request.flag("include_docs", false);
+    ArrayNode out = NODES.arrayNode();
+    for (int i = skip; i < selected.size() && out.size() < limit; i++) {
+      out.add(selected.get(i).toJson(includeDocs));
+    }
+    request.respond(200, viewResponse(total, Math.min(total, offset + skip), out));
+  }
+
+  private JsonNode reduce(Request request, List<Row> rows, String reduce) {
+    Reducer reducer = Reducer.forSource(reduce);
+    int groupLevel = request.flag("group", false) ? Integer.MAX_VALUE : request.intParam("group_level", 0);
+    Map<String, List<Row>> groups = new LinkedHashMap<String, List<Row>>();
+    Map<String, JsonNode> groupKeys = new HashMap<String, JsonNode>();
+    for (Row row : rows) {
+      JsonNode groupKey = groupKey(row.key, groupLevel);
+      String text = groupKey.toString();
+      List<Row> group = groups.get(text);
+      if (group == null) {
+        groups.put(text, group = new ArrayList<Row>());
+        groupKeys.put(text, groupKey);
+      }
+      group.add(row);
+    }
+    ArrayNode out = NODES.arrayNode();
+    if (groups.isEmpty() && groupLevel == 0) groups.put("null", Collections.<Row>emptyList());
+    for (Map.Entry<String, List<Row>> group : groups.entrySet()) {
+      ObjectNode row = out.addObject();
+      row.put("key", groupKeys.containsKey(group.getKey()) ? groupKeys.get(group.getKey()) : NODES.nullNode());
+      row.put("value", reducer.reduce(group.getValue()));
+    }
+    ObjectNode response = NODES.objectNode();
+    response.put("rows", out);
+    return response;
+  }
+
+  private static JsonNode groupKey(JsonNode key, int level) {
+    if (level == 0) return NODES.nullNode();
+    if (level == Integer.MAX_VALUE || !key.isArray() || key.size() <= level) return key;
+    ArrayNode prefix = NODES.arrayNode();
+    for (int i = 0; i < level; i++) prefix.add(key.get(i));
+    return prefix;
+  }
+
+  private static ObjectNode viewResponse(int total, int offset, ArrayNode rows) {
+    ObjectNode response = NODES.objectNode();
+    response.put("total_rows", total);
+    response.put("offset", offset);
+    response.put("rows", rows);
+    return response;
+  }
+
+  private MapFunction mapFunction(String source) {
+    String normalized = normalize(source);
+    MapFunction function = mapFunctions.get(normalized);
+    if (function == null) {
+      try {
+        function = SimpleMapFunction.parse(source);
+      }
+      catch (IllegalArgumentException e) {
+        throw new BadRequest("Couldn't compile map function: " + e.getMessage());
+      }
+      mapFunctions.put(normalized, function);
+    }
+    return function;
+  }
+
+  private static String normalize(String source) {
+    return source.replaceAll("\\s+", "");
+  }
+
+  private static JsonNode orNull(JsonNode node) {
+    return node == null || node.isMissingNode() ? NODES.nullNode() : node;
+  }
+
+  private static ObjectNode ok() {
+    ObjectNode ok = NODES.objectNode();
+    ok.put("ok", true);
+    return ok;
+  }
+
+  private static ObjectNode error(String error, String reason) {
+    ObjectNode node = NODES.objectNode();
+    node.put("error", error);
+    node.put("reason", reason);
+    return node;
+  }
+
+  private static String newId() {
+    return UUID.randomUUID().toString().replace("-", "");
+  }
+
+  private static void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+    byte[] bytes = body.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  /* Storage */
+
+  private static class Entry {
+    final String id;
+    final String rev;
+    final ObjectNode body;
+    final boolean deleted;
+
+    Entry(String id, String rev, ObjectNode body, boolean deleted) {
+      this.id = id;
+      this.rev = rev;
+      this.body = body;
+      this.deleted = deleted;
+    }
+  }
+
+  private static class Database {
+    final TreeMap<String, Entry> docs = new TreeMap<String, Entry>();
+    long updateSeq;
+
+    /**
+     * Saves a new revision unless the given one isn't the current one.  Deleted documents may be recreated without
+     * a revision.
+     *
+     * @return the new revision, or null on a conflict
+     */
+    String save(String id, ObjectNode body, String rev) {
+      Entry current = docs.get(id);
+      boolean exists = current != null && !current.deleted;
+      if (exists ? !current.rev.equals(rev) : rev != null && (current == null || !current.rev.equals(rev)))
+        return null;
+      int generation = current != null ? Integer.parseInt(current.rev.substring(0, current.rev.indexOf('-'))) + 1 : 1;
+      boolean deleted = body.path("_deleted").getBooleanValue();
+      // Stored documents are copies, so the tree the caller holds can't change them
+      ObjectNode stored = (ObjectNode) JsonUtils.parseToJson(body.toString(), JsonNode.class);
+      stored.remove("_id");
+      stored.remove("_rev");
+      stored.remove("_deleted");
+      String newRev = generation + "-" + digest(id + (current != null ? current.rev : "") + stored);
+      ObjectNode doc = NODES.objectNode();
+      doc.put("_id", id);
+      doc.put("_rev", newRev);
+      if (deleted) {
+        doc.put("_deleted", true);
+      }
+      else {
+        Iterator<Map.Entry<String, JsonNode>> fields = stored.getFields();
+        while (fields.hasNext()) {
+          Map.Entry<String, JsonNode> field = fields.next();
+          doc.put(field.getKey(), field.getValue());
+        }
+      }
+      docs.put(id, new Entry(id, newRev, doc, deleted));
+      updateSeq++;
+      return newRev;
+    }
+
+    int liveCount() {
+      int count = 0;
+      for (Entry entry : docs.values()) {
+        if (!entry.deleted) count++;
+      }
+      return count;
+    }
+  }
+
+  private static String digest(String text) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(32);
+      for (byte b : hash) hex.append(String.format("%02x", b & 0xff));
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class Row {
+    final String id;
+    final JsonNode key;
+    final JsonNode value;
+    final JsonNode doc;
+
+    Row(String id, JsonNode key, JsonNode value, JsonNode doc) {
+      this.id = id;
+      this.key = key;
+      this.value = value;
+      this.doc = doc;
+    }
+
+    JsonNode toJson(boolean includeDoc) {
+      ObjectNode row = NODES.objectNode();
+      row.put("id", id);
+      row.put("key", key);
+      row.put("value", value);
+      if (includeDoc) row.put("doc", doc);
+      return row;
+    }
+  }
+
+  /**
+   * The built in reduce functions, which the common JavaScript reduce functions are mapped to.  Groups are reduced in
+   * one pass, so there's no rereduce.
+   */
+  private enum Reducer {
+    COUNT {
+      JsonNode reduce(List<Row> rows) {
+        return NODES.numberNode(rows.size());
+      }
+    },
+    SUM {
+      JsonNode reduce(List<Row> rows) {
+        double sum = 0;
+        for (Row row : rows) sum += row.value.getDoubleValue();
+        return number(sum);
+      }
+    },
+    STATS {
+      JsonNode reduce(List<Row> rows) {
+        double sum = 0, sumsqr = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (Row row : rows) {
+          double value = row.value.getDoubleValue();
+          sum += value;
+          sumsqr += value * value;
+          min = Math.min(min, value);
+          max = Math.max(max, value);
+        }
+        ObjectNode stats = NODES.objectNode();
+        stats.put("sum", number(sum));
+        stats.put("count", rows.size());
+        stats.put("min", number(rows.isEmpty() ? 0 : min));
+        stats.put("max", number(rows.isEmpty() ? 0 : max));
+        stats.put("sumsqr", number(sumsqr));
+        return stats;
+      }
+    };
+
+    abstract JsonNode reduce(List<Row> rows);
+
+    static Reducer forSource(String source) {
+      String code = normalize(source);
+      if (code.equals("_count") || code.contains("returnvalues.length") || code.contains("returnsum(values.length)"))
+        return COUNT;
+      if (code.equals("_sum") || code.contains("returnsum(values)"))
+        return SUM;
+      if (code.equals("_stats"))
+        return STATS;
+      throw new BadRequest("The emulator doesn't support reduce function " + source);
+    }
+
+    static JsonNode number(double value) {
+      return value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE ?
+          NODES.numberNode((long) value) : NODES.numberNode(value);
+    }
+  }
+
+  /**
+   * Orders view keys the way CouchDB does: null, false, true, numbers, strings, arrays and then objects.  Strings are
+   * compared case-insensitively first with lower case before upper case, close to CouchDB's ICU collation.
+   */
+  static class Collation {
+
+    static int compare(JsonNode a, JsonNode b) {
+      int rank = rank(a) - rank(b);
+      if (rank != 0) return rank < 0 ? -1 : 1;
+      if (a.isNumber()) return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+      if (a.isTextual()) {
+        int c = String.CASE_INSENSITIVE_ORDER.compare(a.getTextValue(), b.getTextValue());
+        return c != 0 ? c : b.getTextValue().compareTo(a.getTextValue());
+      }
+      if (a.isArray()) {
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+          int c = compare(a.get(i), b.get(i));
+          if (c != 0) return c;
+        }
+        return a.size() - b.size();
+      }
+      if (a.isObject()) {
+        Iterator<String> aNames = a.getFieldNames();
+        Iterator<String> bNames = b.getFieldNames();
+        while (aNames.hasNext() && bNames.hasNext()) {
+          String aName = aNames.next();
+          String bName = bNames.next();
+          int c = aName.compareTo(bName);
+          if (c == 0) c = compare(a.get(aName), b.get(bName));
+          if (c != 0) return c;
+        }
+        return a.size() - b.size();
+      }
+      return 0;
+    }
+
+    private static int rank(JsonNode node) {
+      if (node == null || node.isNull() || node.isMissingNode()) return 0;
+      if (node.isBoolean()) return node.getBooleanValue() ? 2 : 1;
+      if (node.isNumber()) return 3;
+      if (node.isTextual()) return 4;
+      if (node.isArray()) return 5;
+      return 6;
+    }
+  }
+
+  private static class BadRequest extends RuntimeException {
+    BadRequest(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * The parsed path, query string and body of an exchange.
+   */
+  private static class Request {
+    final HttpExchange exchange;
+    final String method;
+    final List<String> path = new ArrayList<String>();
+    final Map<String, String> params = new HashMap<String, String>();
+    private JsonNode body;
+
+    Request(HttpExchange exchange) throws UnsupportedEncodingException {
+      this.exchange = exchange;
+      this.method = exchange.getRequestMethod();
+      for (String segment : exchange.getRequestURI().getRawPath().split("/")) {
+        if (segment.length() > 0) path.add(decode(segment));
+      }
+      // A design document's id may come with its slash encoded
+      if (path.size() >= 2 && path.get(1).startsWith("_design/")) {
+        path.add(2, path.get(1).substring("_design/".length()));
+        path.set(1, "_design");
+      }
+      String query = exchange.getRequestURI().getRawQuery();
+      if (query != null) {
+        for (String pair : query.split("&")) {
+          int eq = pair.indexOf('=');
+          if (eq > 0) params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+        }
+      }
+    }
+
+    private static String decode(String text) throws UnsupportedEncodingException {
+      return URLDecoder.decode(text.replace("+", "%2B"), "UTF-8");
+    }
+
+    String param(String name) {
+      return params.get(name);
+    }
+
+    JsonNode jsonParam(String name) {
+      String value = params.get(name);
+      if (value == null) return null;
+      try {
+        return JsonUtils.parseToJson(value, JsonNode.class);
+      }
+      catch (RuntimeException e) {
+        throw new BadRequest("Parameter " + name + " isn't json: " + value);
+      }
+    }
+
+    boolean flag(String name, boolean defaultValue) {
+      String value = params.get(name);
+      return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    int intParam(String name, int defaultValue) {
+      String value = params.get(name);
+      try {
+        return value != null ? Integer.parseInt(value) : defaultValue;
+      }
+      catch (NumberFormatException e) {
+        throw new BadRequest("Parameter " + name + " isn't a number: " + value);
+      }
+    }
+
+    JsonNode body() throws IOException {
+      if (body == null) {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+        try {
+          body = bytes.size() > 0 ? JsonUtils.parseToJson(bytes.toByteArray(), JsonNode.class) : NODES.objectNode();
+        }
+        catch (RuntimeException e) {
+          throw new BadRequest("Request body isn't json.");
+        }
+      }
+      return body;
+    }
+
+    ObjectNode objectBody() throws IOException {
+      JsonNode node = body();
+      if (!node.isObject()) throw new BadRequest("Document must be a json object.");
+      return (ObjectNode) node;
+    }
+
+    void respond(int status, JsonNode response) throws IOException {
+      CouchDbEmulator.respond(exchange, status, response);
+    }
+
+    void respondEmpty(int status) throws IOException {
+      exchange.sendResponseHeaders(status, -1);
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the client against the in-memory {@link CouchDbEmulator}, so unlike {@link DefaultResourceManagerTest} it
+ * needs no CouchDB.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class CouchDbEmulatorTest {
+
+  private CouchDbEmulator emulator;
+  private DefaultResourceManager resourceMgr;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    emulator = new CouchDbEmulator();
+    emulator.start();
+    resourceMgr = new DefaultResourceManager(emulator.getBaseUrl());
+    resourceMgr.createDatabase("emulated");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    emulator.stop();
+  }
+
+  @Test
+  public void saveWithRevisions() {
+    Document doc = resourceMgr.saveDocument("emulated", "revised", "{\"value\": 1}");
+    assertTrue(doc.getRevision().startsWith("1-"));
+    assertTrue(resourceMgr.listDatabases().contains("emulated"));
+
+    try {
+      resourceMgr.saveDocument("emulated", "revised", "{\"value\": 2}");
+      fail("Saving without the current revision should conflict.");
+    }
+    catch (CouchDbException e) {
+      assertEquals(e.getStatus().getCode(), 409);
+    }
+
+    Document read = resourceMgr.getDocument("emulated", "revised");
+    assertEquals(read.getRevision(), doc.getRevision());
+    resourceMgr.deleteDocument(read);
+    assertNull(resourceMgr.getDocument("emulated", "revised"));
+  }
+
+  @Test
+  public void queryViews() {
+    resourceMgr.saveDocuments("emulated", Arrays.asList(
+        new Document("emulated", "viewed1", "{\"kind\": \"viewed\", \"rank\": 2}"),
+        new Document("emulated", "viewed2", "{\"kind\": \"viewed\", \"rank\": 1}"),
+        new Document("emulated", "viewed3", "{\"kind\": \"other\", \"rank\": 3}")));
+    resourceMgr.createView(DesignDocument.createDesignDocument("emulated", "ranks", null,
+        Collections.singletonList(new DesignDocument.View("by_rank",
+            "function(doc) { if (doc.kind == 'viewed') emit(doc.rank, 1); }", "_count"))));
+
+    ViewResult<Integer, Integer> rows = resourceMgr.executeView(
+        new ViewQuery("emulated", "ranks", "by_rank").reduce(false), Integer.class, Integer.class);
+    assertEquals(rows.getResultRows().size(), 2);
+    assertEquals(rows.getResultRows().get(0).getId(), "viewed2");
+
+    ViewResult<Object, Integer> count = resourceMgr.executeView(
+        new ViewQuery("emulated", "ranks", "by_rank"), Object.class, Integer.class);
+    assertEquals(count.getResultRows().get(0).getValue(), Integer.valueOf(2));
+
+    ViewResult<Object, Integer> temp = resourceMgr.executeTemporaryView("emulated",
+        "function(doc) { if (doc.rank) emit(null, doc.rank); }", "_sum", Object.class, Integer.class);
+    assertEquals(temp.getResultRows().get(0).getValue(), Integer.valueOf(6));
+  }
+
+  @Test
+  public void correctForCoordinatedOmission() throws InterruptedException {
+    LoadGenerator generator = new LoadGenerator(resourceMgr, "emulated_load").setDocuments(10);
+    generator.prepare();
+
+    LoadGenerator.Report report = generator.setRate(200).setDuration(1, TimeUnit.SECONDS).run();
+    assertEquals(report.getErrorCount(), 0);
+    assertEquals(report.getCount(), 200);
+
+    // A single worker can't keep up with calls taking 10ms, so operations queue and are charged for the wait
+    emulator.setLatency(10, 10, TimeUnit.MILLISECONDS);
+    try {
+      report = generator.setThreads(1).setMix(1, 0, 0).setRate(200).setDuration(1, TimeUnit.SECONDS).run();
+    }
+    finally {
+      emulator.setLatency(0, 0, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(report.getErrorCount(), 0);
+    assertTrue(report.getLatency(LoadGenerator.Operation.READ).getP99() >
+        10 * report.getServiceTime(LoadGenerator.Operation.READ).getP99());
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the async manager over a stub {@link ResourceManager}, which records the thread and deadline each call ran
+ * with.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class DefaultAsyncResourceManagerTest {
+
+  private ExecutorService executor;
+  private DefaultAsyncResourceManager asyncMgr;
+
+  private volatile Thread calledOn;
+  private volatile Deadline calledWith;
+
+  @BeforeClass
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    ResourceManager stub = (ResourceManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[]{ResourceManager.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            calledOn = Thread.currentThread();
+            calledWith = Deadline.current();
+            if ("deleteDatabase".equals(method.getName()))
+              throw new CouchDbException("Couldn't delete database.", null);
+            return "databaseExists".equals(method.getName()) ? Boolean.TRUE : null;
+          }
+        });
+    asyncMgr = new DefaultAsyncResourceManager(stub, executor);
+  }
+
+  @AfterClass
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void runOnExecutor() throws Exception {
+    assertTrue(asyncMgr.databaseExists("async_test").get(5, TimeUnit.SECONDS));
+    assertNotNull(calledOn);
+    assertNotSame(calledOn, Thread.currentThread());
+    assertNull(calledWith);
+  }
+
+  @Test
+  public void surfaceErrorsFromFuture() throws Exception {
+    try {
+      asyncMgr.deleteDatabase("async_test").get(5, TimeUnit.SECONDS);
+      fail("The delegate's exception should surface from the future.");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CouchDbException);
+    }
+  }
+
+  @Test
+  public void carryDeadlineToWorker() throws Exception {
+    Deadline deadline = Deadline.start(10, TimeUnit.SECONDS);
+    try {
+      asyncMgr.databaseExists("async_test").get(5, TimeUnit.SECONDS);
+    }
+    finally {
+      deadline.end();
+    }
+    assertNotNull(calledWith);
+    assertTrue(calledWith.remaining(TimeUnit.MILLISECONDS) <= 10000);
+    assertTrue(calledWith.remaining(TimeUnit.MILLISECONDS) > 5000);
+
+    // The worker doesn't keep the deadline for later calls
+    asyncMgr.databaseExists("async_test").get(5, TimeUnit.SECONDS);
+    assertNull(calledWith);
+  }
+
+}
@@ -25,16 +25,38 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.buycentives.jrelax;
 
 import com.buycentives.jrelax.*;
+import com.buycentives.jrelax.metrics.ClientMetricsListener;
+import com.buycentives.jrelax.utils.JsonUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
 import static org.testng.Assert.*;
 import static org.testng.Assert.assertEquals;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ilya Sterin
@@ -87,6 +109,36 @@ public class DefaultResourceManagerTest {
     resourceMgr.deleteDocument("ilya_test", "ilyas_doc2", doc.getRevision());
   }
 
+  @Test(dependsOnMethods = "createDatabase")
+  public void bulkSaveAndDeleteDocuments() {
+    ((DefaultResourceManager) resourceMgr).setBulkChunkSize(2);
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 5; i++) {
+      docs.add(new Document("ilya_test", "bulk_doc" + i, "{\"value\": " + i + "}"));
+    }
+    List<BulkResult> results = resourceMgr.saveDocuments("ilya_test", docs);
+    assertEquals(results.size(), 5);
+    List<Document> saved = new ArrayList<Document>();
+    for (int i = 0; i < 5; i++) {
+      BulkResult result = results.get(i);
+      assertTrue(result.isOk());
+      assertEquals(result.getId(), "bulk_doc" + i);
+      assertNotNull(result.getRevision());
+      saved.add(new Document("ilya_test", result.getId(), result.getRevision(), "{}"));
+    }
+
+    results = resourceMgr.saveDocuments("ilya_test", docs.subList(0, 1));
+    assertEquals(results.size(), 1);
+    assertTrue(results.get(0).isConflict());
+
+    results = resourceMgr.deleteDocuments("ilya_test", saved);
+    assertEquals(results.size(), 5);
+    for (BulkResult result : results) {
+      assertTrue(result.isOk());
+    }
+    ((DefaultResourceManager) resourceMgr).setBulkChunkSize(DefaultResourceManager.DEFAULT_BULK_CHUNK_SIZE);
+  }
+
   @Test
   public void retrieveDocuments() {
     Document doc =
@@ -101,6 +153,471 @@ public class DefaultResourceManagerTest {
     assertEquals(doc3.getRevision(), doc.getRevision());
   }
 
+  @Test(dependsOnMethods = "createDatabase")
+  public void retrieveCachedDocuments() {
+    DefaultResourceManager mgr = (DefaultResourceManager) resourceMgr;
+    DocumentCache cache = new DocumentCache(10, 100000);
+    mgr.setDocumentCache(cache);
+    try {
+      createDoc("ilya_test", "cached_doc", "{\"value\": 1}");
+      Document first = mgr.getDocument("ilya_test", "cached_doc");
+      assertEquals(cache.getMissCount(), 1);
+      Document second = mgr.getDocument("ilya_test", "cached_doc");
+      assertNotSame(second, first);
+      assertEquals(second.getRevision(), first.getRevision());
+      assertEquals(cache.getHitCount(), 1);
+      assertEquals(cache.getRevalidationCount(), 1);
+
+      // Changing a document read through the cache doesn't change what other readers get
+      ((ObjectNode) second.getJsonData()).put("value", 2);
+      assertEquals(mgr.getDocument("ilya_test", "cached_doc").getJsonData().path("value").getIntValue(), 1);
+      assertEquals(cache.getHitCount(), 2);
+
+      Document updated = mgr.saveDocument(new Document("ilya_test", "cached_doc", first.getRevision(), first.getData()));
+      Document third = mgr.getDocument("ilya_test", "cached_doc");
+      assertEquals(third.getRevision(), updated.getRevision());
+      assertEquals(cache.getMissCount(), 2);
+
+      mgr.deleteDocument(third);
+      assertNull(mgr.getDocument("ilya_test", "cached_doc"));
+      assertEquals(cache.size(), 0);
+    }
+    finally {
+      mgr.setDocumentCache(null);
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void roundTripRawDocument() {
+    createDoc("ilya_test", "raw_doc", "{\"value\": \"caf\u00e9\"}");
+    Document doc = resourceMgr.getDocument("ilya_test", "raw_doc");
+    assertTrue(doc.isRaw());
+    assertNotNull(doc.getRevision());
+
+    Document saved = resourceMgr.saveDocument(doc);
+    assertTrue(saved.isRaw());
+    assertFalse(saved.getRevision().equals(doc.getRevision()));
+
+    Document reread = resourceMgr.getDocument("ilya_test", "raw_doc");
+    assertEquals(reread.getJsonData().path("value").getTextValue(), "caf\u00e9");
+    assertFalse(reread.isRaw());
+    resourceMgr.deleteDocument(reread);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void saveStreamedDocuments() throws IOException {
+    String rev = resourceMgr.saveDocument("ilya_test", "streamed_doc",
+        new ByteArrayInputStream("{\"value\": 1}".getBytes("UTF-8")));
+    assertEquals(resourceMgr.getDocument("ilya_test", "streamed_doc").getRevision(), rev);
+
+    File file = File.createTempFile("jrelax", ".json");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      writer.write("{\"_rev\": \"" + rev + "\", \"value\": 2}");
+      writer.close();
+      String updated = resourceMgr.saveDocument("ilya_test", "streamed_doc", file);
+      Document doc = resourceMgr.getDocument("ilya_test", "streamed_doc");
+      assertEquals(doc.getRevision(), updated);
+      assertEquals(doc.getJsonData().path("value").getIntValue(), 2);
+      resourceMgr.deleteDocument(doc);
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void bindDocumentsToObjects() {
+    Person person = new Person();
+    person.name = "Ilya";
+    person.age = 30;
+    String rev = resourceMgr.saveDocument("ilya_test", "bound_doc", person);
+    assertEquals(person.id, "bound_doc");
+    assertEquals(person.rev, rev);
+
+    Person read = resourceMgr.getDocumentAs("ilya_test", "bound_doc", Person.class);
+    assertEquals(read.id, "bound_doc");
+    assertEquals(read.rev, rev);
+    assertEquals(read.name, "Ilya");
+    assertEquals(read.age, 30);
+
+    read.age = 31;
+    resourceMgr.saveDocument("ilya_test", null, read);
+    assertFalse(read.rev.equals(rev));
+    assertNull(resourceMgr.getDocumentAs("ilya_test", "no_such_doc", Person.class));
+    resourceMgr.deleteDocument("ilya_test", read.id, read.rev);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void saveGzippedDocuments() {
+    Session session = new Session("http://localhost:5984", new SessionConfig().setGzipEnabled(true).setGzipRequestThreshold(0));
+    try {
+      ResourceManager gzipMgr = new DefaultResourceManager(session);
+      List<Document> docs = new ArrayList<Document>();
+      for (int i = 0; i < 50; i++) {
+        docs.add(new Document("ilya_test", "gzip_doc" + i, "{\"text\": \"the same text, over and over again\"}"));
+      }
+      List<BulkResult> results = gzipMgr.saveDocuments("ilya_test", docs);
+      assertEquals(gzipMgr.getDocument("ilya_test", "gzip_doc7").getRevision(), results.get(7).getRevision());
+
+      CompressionStats stats = session.getCompressionStats();
+      assertTrue(stats.getRequestBytesCompressed() > 0);
+      assertTrue(stats.getRequestBytesCompressed() < stats.getRequestBytesUncompressed());
+
+      List<Document> saved = new ArrayList<Document>();
+      for (BulkResult result : results) {
+        saved.add(new Document("ilya_test", result.getId(), result.getRevision(), "{}"));
+      }
+      gzipMgr.deleteDocuments("ilya_test", saved);
+    }
+    finally {
+      session.close();
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void balanceOverClusterNodes() {
+    ClusterSession session = new ClusterSession(Arrays.asList("http://localhost:5984", "http://127.0.0.1:5984",
+        "http://localhost:1"), new SessionConfig(), ClusterSession.Balancing.LEAST_OUTSTANDING, true);
+    try {
+      session.checkHealth();
+      assertEquals(session.getAvailableBaseUrls(), Arrays.asList("http://localhost:5984", "http://127.0.0.1:5984"));
+
+      ResourceManager clusterMgr = new DefaultResourceManager(session);
+      Document saved = clusterMgr.saveDocument(createDoc("ilya_test", "cluster_doc", "{\"node\": 1}"));
+      for (int i = 0; i < 4; i++) {
+        assertEquals(clusterMgr.getDocument("ilya_test", "cluster_doc").getRevision(), saved.getRevision());
+      }
+      clusterMgr.deleteDocument("ilya_test", "cluster_doc", saved.getRevision());
+    }
+    finally {
+      session.close();
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void updateDocuments() throws Exception {
+    Map<String, String> updates = Collections.singletonMap("add",
+        "function(doc, req) { doc.count += parseInt(req.query.by); return [doc, 'added ' + req.query.by]; }");
+    DesignDocument design = resourceMgr.createView(DesignDocument.createDesignDocument("ilya_test", "counters", null,
+        null, updates));
+    Document counter = createDoc("ilya_test", "counter", "{\"count\": 0}");
+
+    UpdateResult result = resourceMgr.callUpdateHandler("ilya_test", "counters", "add", "counter",
+        Collections.singletonMap("by", "5"));
+    assertTrue(result.isSaved());
+    assertEquals(result.getBody(), "added 5");
+    assertEquals(resourceMgr.getDocument("ilya_test", "counter").getRevision(), result.getRevision());
+
+    // Concurrent updates conflict, and are retried until they all land
+    final DocumentUpdater increment = new DocumentUpdater() {
+      public Document update(Document current) {
+        ObjectNode data = (ObjectNode) current.getJsonData();
+        data.put("count", data.path("count").getIntValue() + 1);
+        return current;
+      }
+    };
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 5; j++) {
+            resourceMgr.update("ilya_test", "counter", increment);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    counter = resourceMgr.getDocument("ilya_test", "counter");
+    assertEquals(counter.getJsonData().path("count").getIntValue(), 25);
+
+    resourceMgr.deleteDocument(counter);
+    resourceMgr.deleteView(design);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void coalesceWritesBehind() throws Exception {
+    DocumentWriter writer = new DocumentWriter(resourceMgr, 10, 1, TimeUnit.SECONDS, 100);
+    List<Future<BulkResult>> results = new ArrayList<Future<BulkResult>>();
+    try {
+      for (int i = 0; i < 5; i++) {
+        results.add(writer.write(new Document("ilya_test", "hot_doc", "{\"count\": " + i + "}")));
+      }
+      for (int i = 0; i < 3; i++) {
+        results.add(writer.write(new Document("ilya_test", "cold_doc" + i, "{}")));
+      }
+      writer.flush();
+      assertEquals(writer.getCoalescedCount(), 4);
+      assertEquals(writer.getBatchCount(), 1);
+
+      // A later write from the same stale revision conflicts
+      assertTrue(writer.write(new Document("ilya_test", "hot_doc", "{\"count\": 5}")).get().isConflict());
+      Document hot = resourceMgr.getDocument("ilya_test", "hot_doc");
+      assertEquals(hot.getJsonData().path("count").getIntValue(), 4);
+      resourceMgr.deleteDocument(hot);
+    }
+    finally {
+      writer.close();
+    }
+    try {
+      writer.write(new Document("ilya_test", "hot_doc", "{}"));
+      fail("Expected writes to a closed writer to fail.");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+    for (int i = 0; i < results.size(); i++) {
+      assertTrue(results.get(i).get().isOk());
+      if (i < 5) assertEquals(results.get(i).get(), results.get(0).get());
+    }
+    for (int i = 0; i < 3; i++) {
+      resourceMgr.deleteDocument("ilya_test", "cold_doc" + i, results.get(5 + i).get().getRevision());
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void rebaseWritesBehind() throws Exception {
+    DocumentWriter writer = new DocumentWriter(resourceMgr, 10, 1, TimeUnit.SECONDS, 100, true);
+    try {
+      assertTrue(writer.write(new Document("ilya_test", "rebased_doc", "{\"count\": 0}")).get().isOk());
+      // A later write from the same stale revision is moved onto the revision the writer saved
+      assertTrue(writer.write(new Document("ilya_test", "rebased_doc", "{\"count\": 1}")).get().isOk());
+      Document doc = resourceMgr.getDocument("ilya_test", "rebased_doc");
+      assertEquals(doc.getJsonData().path("count").getIntValue(), 1);
+      resourceMgr.deleteDocument(doc);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void rangeIgnoredByServer() throws IOException {
+    // Answers every request with the whole attachment, whatever range was asked for
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = "0123456789".getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    Session session = new Session("http://localhost:" + server.getAddress().getPort());
+    try {
+      DefaultResourceManager mgr = new DefaultResourceManager(session);
+      ByteArrayOutputStream range = new ByteArrayOutputStream();
+      assertEquals(mgr.getAttachment("ilya_test", "attached_doc", "data.bin", 2, 5, Channels.newChannel(range)), 5);
+      assertEquals(range.toString("UTF-8"), "23456");
+
+      range.reset();
+      assertEquals(mgr.getAttachment("ilya_test", "attached_doc", "data.bin", 2, -1, Channels.newChannel(range)), 8);
+      assertEquals(range.toString("UTF-8"), "23456789");
+    }
+    finally {
+      session.close();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void releaseConnectionOfUnsentExchange() {
+    SessionConfig config = new SessionConfig().setMaxTotalConnections(1).setMetricsListener(new ClientMetricsListener() {
+      public void requestStarted(String method) {
+        throw new IllegalStateException("Listener failed.");
+      }
+
+      public void requestCompleted(String method, int statusCode, long durationNanos, long bytesSent,
+                                   long bytesReceived) {
+      }
+
+      public void operationCompleted(String operation, long durationNanos, boolean success) {
+      }
+    });
+    Session session = new Session("http://localhost:5984", config);
+    try {
+      for (int i = 0; i < 2; i++) {
+        try {
+          new DefaultResourceManager(session).getDocument("ilya_test", "never_sent");
+          fail("Expected the exchange to fail before it's sent.");
+        }
+        catch (RuntimeException e) {
+          // expected
+        }
+        assertEquals(session.getConnectionPoolStats().getLeased(), 0);
+      }
+    }
+    finally {
+      session.close();
+    }
+  }
+
+  @Test
+  public void failAtDeadline() throws IOException {
+    // Accepts connections but never answers
+    ServerSocket silent = new ServerSocket(0);
+    Session session = new Session("http://localhost:" + silent.getLocalPort());
+    Deadline deadline = Deadline.start(300, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    try {
+      new DefaultResourceManager(session).getDocument("ilya_test", "never_answered");
+      fail("Expected the deadline to pass.");
+    }
+    catch (DeadlineExceededException e) {
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+      // The abandoned exchange waits out the read timeout without holding a connection permit
+      assertEquals(session.getConnectionPoolStats().getLeased(), 0);
+      assertEquals(session.getAbandonedExchangeCount(), 1);
+    }
+    finally {
+      deadline.end();
+      session.close();
+      silent.close();
+    }
+    assertNull(Deadline.current());
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void streamAttachments() throws IOException {
+    byte[] content = new byte[300000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    File upload = File.createTempFile("jrelax", ".bin");
+    File download = File.createTempFile("jrelax", ".bin");
+    try {
+      FileOutputStream out = new FileOutputStream(upload);
+      out.write(content);
+      out.close();
+      String rev = resourceMgr.putAttachment("ilya_test", "attached_doc", null, "data.bin",
+          "application/octet-stream", upload);
+      assertNotNull(rev);
+
+      assertEquals(resourceMgr.getAttachment("ilya_test", "attached_doc", "data.bin", download), content.length);
+      assertEquals(download.length(), (long) content.length);
+
+      ByteArrayOutputStream range = new ByteArrayOutputStream();
+      assertEquals(resourceMgr.getAttachment("ilya_test", "attached_doc", "data.bin", 1000, 10,
+          Channels.newChannel(range)), 10);
+      assertEquals(range.toByteArray(), Arrays.copyOfRange(content, 1000, 1010));
+      assertEquals(resourceMgr.getAttachment("ilya_test", "attached_doc", "missing.bin",
+          Channels.newChannel(range)), -1);
+
+      rev = resourceMgr.deleteAttachment("ilya_test", "attached_doc", rev, "data.bin");
+      resourceMgr.deleteDocument("ilya_test", "attached_doc", rev);
+    }
+    finally {
+      upload.delete();
+      download.delete();
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void retrieveMultipleDocuments() {
+    Document doc1 = createDoc("ilya_test", "multi_doc1", "{\"value\": 1}");
+    Document doc2 = createDoc("ilya_test", "multi_doc2", "{\"value\": 2}");
+    Document deleted = createDoc("ilya_test", "multi_doc3", "{\"value\": 3}");
+    resourceMgr.deleteDocument(deleted);
+
+    List<Document> docs = resourceMgr.getDocuments("ilya_test",
+        Arrays.asList("multi_doc2", "multi_missing", "multi_doc1", "multi_doc3"));
+    assertEquals(docs.size(), 4);
+    assertEquals(docs.get(0).getId(), "multi_doc2");
+    assertEquals(docs.get(0).getRevision(), doc2.getRevision());
+    assertFalse(docs.get(0).isMissing());
+    assertTrue(docs.get(1).isMissing());
+    assertFalse(docs.get(1).isDeleted());
+    assertEquals(docs.get(2).getId(), "multi_doc1");
+    assertTrue(docs.get(3).isMissing());
+    assertTrue(docs.get(3).isDeleted());
+
+    resourceMgr.deleteDocument(doc1);
+    resourceMgr.deleteDocument(doc2);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void listenForChanges() throws InterruptedException {
+    final CountDownLatch received = new CountDownLatch(1);
+    ChangesFeed feed = resourceMgr.listenForChanges("ilya_test", new ChangesOptions().setSince("now").setIncludeDocs(true),
+        new ChangesListener() {
+          public void onChanges(List<Change> changes) {
+            for (Change change : changes) {
+              if (change.getId().equals("changed_doc") && change.getDocument() != null) received.countDown();
+            }
+          }
+        });
+    try {
+      Document doc = createDoc("ilya_test", "changed_doc", "{\"value\": 1}");
+      assertTrue(received.await(10, TimeUnit.SECONDS));
+      assertNotNull(feed.getLastSequence());
+      resourceMgr.deleteDocument(doc);
+    }
+    finally {
+      feed.stop();
+    }
+    assertTrue(feed.awaitTermination(5000));
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void readFromLocalReplica() throws Exception {
+    Document doc = createDoc("ilya_test", "replicated_doc", "{\"value\": 1}");
+    File file = File.createTempFile("jrelax-replica", ".dat");
+    File checkpoints = File.createTempFile("jrelax-replica", ".properties");
+    file.delete();
+    checkpoints.delete();
+    DefaultResourceManager mgr = (DefaultResourceManager) resourceMgr;
+    LocalReplica replica = mgr.openLocalReplica("ilya_test", file, new FileCheckpointStore(checkpoints),
+        1, TimeUnit.SECONDS);
+    try {
+      assertNotNull(replica.getDocument("replicated_doc"));
+      ((ObjectNode) doc.getJsonData()).put("value", 2);
+      Document updated = resourceMgr.saveDocument(doc);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (System.currentTimeMillis() < deadline &&
+          !updated.getRevision().equals(replica.getDocument("replicated_doc").getRevision())) {
+        Thread.sleep(50);
+      }
+      while (System.currentTimeMillis() < deadline && !replica.isFresh()) {
+        Thread.sleep(50);
+      }
+      long reads = replica.getLocalReadCount();
+      Document read = resourceMgr.getDocument("ilya_test", "replicated_doc");
+      assertEquals(read.getRevision(), updated.getRevision());
+      assertEquals(read.getJsonData().path("value").getIntValue(), 2);
+      assertEquals(replica.getLocalReadCount(), reads + 1);
+      replica.close();
+
+      // Reopening resumes from the checkpoint with the index rebuilt from the file
+      int count = replica.getDocumentCount();
+      replica = mgr.openLocalReplica("ilya_test", file, new FileCheckpointStore(checkpoints),
+          1, TimeUnit.SECONDS);
+      assertEquals(replica.getDocumentCount(), count);
+      assertEquals(replica.getDocument("replicated_doc").getRevision(), updated.getRevision());
+
+      // Updates read from the server, as a replica lagging behind would make every save conflict
+      reads = replica.getLocalReadCount();
+      updated = resourceMgr.update("ilya_test", "replicated_doc", new DocumentUpdater() {
+        public Document update(Document current) {
+          ((ObjectNode) current.getJsonData()).put("value", 3);
+          return current;
+        }
+      });
+      assertEquals(updated.getJsonData().path("value").getIntValue(), 3);
+      assertEquals(replica.getLocalReadCount(), reads);
+      resourceMgr.deleteDocument(updated);
+    }
+    finally {
+      replica.close();
+      file.delete();
+      checkpoints.delete();
+    }
+  }
+
   @Test(dependsOnMethods = "createDatabase")
   public void executeTemporaryView() {
     Document doc1 = createDoc("ilya_test", "ilyas_doc", "{\"value\": 1, \"test2\": { \"val\": 1 }}");
@@ -126,6 +643,59 @@ public class DefaultResourceManagerTest {
     resourceMgr.deleteDocument(doc2);
   }
 
+  @Test(dependsOnMethods = "createDatabase")
+  public void promoteTemporaryViews() throws InterruptedException {
+    DefaultResourceManager promotingMgr = new DefaultResourceManager("http://localhost:5984");
+    TemporaryViewPromotion promotion = new TemporaryViewPromotion(2, 1, TimeUnit.HOURS);
+    promotingMgr.setTemporaryViewPromotion(promotion);
+    Document doc = createDoc("ilya_test", "promoted_doc", "{\"promoted\": 7}");
+    String map = "function(doc) { if (doc.promoted) emit(doc._id, doc.promoted); }";
+
+    for (int i = 0; i < 3; i++) {
+      ViewResult<String, Integer> result = promotingMgr.executeTemporaryView("ilya_test", map, null, String.class, Integer.class);
+      assertEquals(result.getResultRows().size(), 1);
+      assertEquals(result.getResultRows().get(0).getValue().intValue(), 7);
+      // The view is installed in the background, running as a temporary view until it's built
+      if (i == 1) {
+        assertEquals(promotion.getPromotedRunCount(), 0);
+        for (int wait = 0; promotion.getPromotionCount() == 0 && wait < 100; wait++) {
+          Thread.sleep(100);
+        }
+      }
+    }
+    assertEquals(promotion.getPromotionCount(), 1);
+    assertEquals(promotion.getPromotedRunCount(), 1);
+
+    // Generated design documents are named after the hash of the view
+    String hash = DesignDocumentSync.contentHash(JsonUtils.parseToJson(
+        DesignDocument.createDesignDocumentForTemporaryView("ilya_test", map, null).asJson(), JsonNode.class));
+    Document generated = resourceMgr.getDocument("ilya_test", "_design/" + TemporaryViewPromotion.DESIGN_DOCUMENT_PREFIX + hash);
+    assertNotNull(generated);
+    resourceMgr.deleteDocument(generated);
+    resourceMgr.deleteDocument(doc);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void sweepLeftoverPromotedViews() throws InterruptedException {
+    // Left behind by an earlier process
+    String leftoverName = TemporaryViewPromotion.DESIGN_DOCUMENT_PREFIX + "leftover";
+    resourceMgr.createView(DesignDocument.createDesignDocument("ilya_test", leftoverName, null,
+        Collections.singletonList(new DesignDocument.View(TemporaryViewPromotion.VIEW_NAME,
+            "function(doc) { emit(null, null); }", null))));
+
+    DefaultResourceManager promotingMgr = new DefaultResourceManager("http://localhost:5984");
+    promotingMgr.setTemporaryViewPromotion(new TemporaryViewPromotion(100, 1, TimeUnit.MILLISECONDS));
+    String map = "function(doc) { if (doc.swept) emit(doc._id, null); }";
+    promotingMgr.executeTemporaryView("ilya_test", map, null, String.class, Object.class);
+    Thread.sleep(10);
+    // The sweep starts on a later run, once the databases views ran on are known
+    promotingMgr.executeTemporaryView("ilya_test", map, null, String.class, Object.class);
+    for (int wait = 0; resourceMgr.getDocument("ilya_test", "_design/" + leftoverName) != null && wait < 100; wait++) {
+      Thread.sleep(100);
+    }
+    assertNull(resourceMgr.getDocument("ilya_test", "_design/" + leftoverName));
+  }
+
   @Test(dependsOnMethods = "createDatabase")
   public void createAndExecuteDesignDocumentView() {
     Document doc1 = createDoc("ilya_test", "ilyas_doc", "{\"value\": 1, \"test2\": { \"val\": 1 }}");
@@ -159,6 +729,123 @@ public class DefaultResourceManagerTest {
     resourceMgr.deleteDocument(doc2);
   }
 
+  @Test(dependsOnMethods = "createDatabase")
+  public void syncDesignDocuments() {
+    Document doc = createDoc("ilya_test", "synced_doc", "{\"value\": 3}");
+    List<DesignDocument.View> views = Collections.singletonList(
+        new DesignDocument.View("all", "function(doc) { emit(doc._id, doc.value); }", null));
+    DesignDocument deployed = resourceMgr.syncDesignDocument(
+        DesignDocument.createDesignDocument("ilya_test", "synced", null, views), 1, TimeUnit.MINUTES);
+
+    // Deploying the same functions again leaves the design document, and its index, alone
+    DesignDocument redeployed = resourceMgr.syncDesignDocument(
+        DesignDocument.createDesignDocument("ilya_test", "synced", null, views), 1, TimeUnit.MINUTES);
+    assertEquals(redeployed.getRevision(), deployed.getRevision());
+
+    // Changed functions are built under a staging id before replacing the live design document
+    List<DesignDocument.View> changed = Collections.singletonList(
+        new DesignDocument.View("all", "function(doc) { emit(doc._id, doc.value * 2); }", null));
+    redeployed = resourceMgr.syncDesignDocument(
+        DesignDocument.createDesignDocument("ilya_test", "synced", null, changed), 1, TimeUnit.MINUTES);
+    assertFalse(redeployed.getRevision().equals(deployed.getRevision()));
+    ViewResult<String, Integer> result = resourceMgr.executeView(
+        new ViewQuery("ilya_test", "synced", "all").key("synced_doc").stale(ViewQuery.Stale.OK), String.class, Integer.class);
+    assertEquals(result.getResultRows().get(0).getValue().intValue(), 6);
+
+    resourceMgr.deleteView(redeployed);
+    resourceMgr.deleteDocument(doc);
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void iterateViewWithCursor() {
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 5; i++) {
+      docs.add(createDoc("ilya_test", "cursor_doc" + i, "{\"cursor\": " + (i / 2) + "}"));
+    }
+    DesignDocument view = resourceMgr.createView(DesignDocument.createDesignDocument("ilya_test", "cursor_vals", null,
+        Collections.<DesignDocument.View>singletonList(new DesignDocument.View("all",
+            "function(doc) { if (doc.cursor != null) emit(doc.cursor, null); }", null))));
+
+    ViewCursor<Integer, Object> cursor =
+        resourceMgr.openViewCursor("ilya_test", "cursor_vals", "all", 2, true, Integer.class, Object.class);
+    List<String> ids = new ArrayList<String>();
+    int lastKey = -1;
+    for (ViewResult.ViewResultRow<Integer, Object> row : cursor) {
+      assertTrue(row.getKey() >= lastKey);
+      lastKey = row.getKey();
+      ids.add(row.getId());
+    }
+    cursor.close();
+    assertEquals(ids, Arrays.asList("cursor_doc0", "cursor_doc1", "cursor_doc2", "cursor_doc3", "cursor_doc4"));
+    assertEquals(cursor.getPageCount(), 3);
+    assertEquals(cursor.getTotalRows(), 5);
+
+    // Keys bound to another type still page from the keys as the view returned them
+    List<String> boundAsStrings = new ArrayList<String>();
+    for (ViewResult.ViewResultRow<String, Object> row :
+        resourceMgr.openViewCursor("ilya_test", "cursor_vals", "all", 2, false, String.class, Object.class)) {
+      boundAsStrings.add(row.getId());
+    }
+    assertEquals(boundAsStrings, ids);
+
+    resourceMgr.deleteView(view);
+    resourceMgr.deleteDocuments("ilya_test", docs);
+  }
+
+  @Test
+  public void rejectUnpageableCursorQueries() {
+    try {
+      resourceMgr.openViewCursor(new ViewQuery("ilya_test", "cursor_vals", "all"), 2, false,
+          Integer.class, Object.class);
+      fail("A query which may be reduced can't be paged by document id.");
+    }
+    catch (IllegalArgumentException expected) {
+    }
+    try {
+      resourceMgr.openViewCursor(new ViewQuery("ilya_test", "cursor_vals", "all").reduce(false)
+          .keys(Arrays.asList(1, 2)), 2, false, Integer.class, Object.class);
+      fail("A query for keys can't be paged by start key.");
+    }
+    catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test(dependsOnMethods = "createDatabase")
+  public void executeViewWithQueryOptions() {
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 4; i++) {
+      docs.add(createDoc("ilya_test", "query_doc" + i, "{\"rank\": " + i + "}"));
+    }
+    DesignDocument view = resourceMgr.createView(DesignDocument.createDesignDocument("ilya_test", "query_vals", null,
+        Collections.<DesignDocument.View>singletonList(new DesignDocument.View("by_rank",
+            "function(doc) { if (doc.rank != null) emit(doc.rank, doc.rank); }",
+            "function(keys, values) { return sum(values); }"))));
+
+    ViewResult<Integer, Integer> range = resourceMgr.executeView(new ViewQuery("ilya_test", "query_vals", "by_rank")
+        .reduce(false).startKey(1).endKey(2).descending(false), Integer.class, Integer.class);
+    assertEquals(range.getResultRows().size(), 2);
+    assertEquals(range.getResultRows().get(0).getKey(), Integer.valueOf(1));
+
+    ViewResult<Integer, Integer> keyed = resourceMgr.executeView(new ViewQuery("ilya_test", "query_vals", "by_rank")
+        .reduce(false).keys(Arrays.asList(3, 0)), Integer.class, Integer.class);
+    assertEquals(keyed.getResultRows().size(), 2);
+    assertEquals(keyed.getResultRows().get(0).getId(), "query_doc3");
+    assertNull(keyed.getResultRows().get(0).getDocument());
+
+    ViewResult<Integer, Integer> withDocs = resourceMgr.executeView(new ViewQuery("ilya_test", "query_vals", "by_rank")
+        .reduce(false).key(2).includeDocs(true), Integer.class, Integer.class);
+    Document included = withDocs.getResultRows().get(0).getDocument();
+    assertEquals(included.getId(), "query_doc2");
+    assertEquals(included.getJsonData().path("rank").getIntValue(), 2);
+
+    ViewResult<Object, Integer> total = resourceMgr.executeView(new ViewQuery("ilya_test", "query_vals", "by_rank"),
+        Object.class, Integer.class);
+    assertEquals(total.getResultRows().get(0).getValue(), Integer.valueOf(6));
+
+    resourceMgr.deleteView(view);
+    resourceMgr.deleteDocuments("ilya_test", docs);
+  }
+
   @AfterClass
   public void cleanUp() {
     resourceMgr.deleteDatabase("ilya_test");
@@ -166,6 +853,15 @@ public class DefaultResourceManagerTest {
 
   /* Support methods */
 
+  public static class Person {
+    @DocumentId
+    private String id;
+    @DocumentRevision
+    private String rev;
+    public String name;
+    public int age;
+  }
+
   private Document createDoc(String dbName, String name, String data) {
     Document doc = resourceMgr.saveDocument(new Document(
         dbName, name, data
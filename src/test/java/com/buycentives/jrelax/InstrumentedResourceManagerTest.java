@@ -0,0 +1,81 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.metrics.ClientMetricsListener;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class InstrumentedResourceManagerTest {
+
+  @Test
+  public void reportOperations() {
+    ResourceManager stub = (ResourceManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[]{ResourceManager.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("deleteDatabase".equals(method.getName()))
+              throw new CouchDbException("Couldn't delete database.", null);
+            return "databaseExists".equals(method.getName()) ? Boolean.TRUE : null;
+          }
+        });
+    final List<String> reported = new ArrayList<String>();
+    ResourceManager instrumented = InstrumentedResourceManager.instrument(stub, new ClientMetricsListener() {
+      public void requestStarted(String method) {
+      }
+
+      public void requestCompleted(String method, int statusCode, long durationNanos, long bytesSent,
+                                   long bytesReceived) {
+      }
+
+      public void operationCompleted(String operation, long durationNanos, boolean success) {
+        assertTrue(durationNanos >= 0);
+        reported.add(operation + ":" + success);
+      }
+    });
+
+    assertTrue(instrumented.databaseExists("metrics_test"));
+    try {
+      instrumented.deleteDatabase("metrics_test");
+      fail("The delegate's exception should be rethrown as it was.");
+    }
+    catch (CouchDbException expected) {
+    }
+    assertEquals(reported.size(), 2);
+    assertEquals(reported.get(0), "databaseExists:true");
+    assertEquals(reported.get(1), "deleteDatabase:false");
+    assertSame(InstrumentedResourceManager.getResourceManager(instrumented), stub);
+  }
+
+}
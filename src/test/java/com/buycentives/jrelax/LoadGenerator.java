@@ -0,0 +1,320 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import com.buycentives.jrelax.metrics.LatencyHistogram;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mixed workload of document reads, conflict-retrying updates and view queries through a
+ * {@link ResourceManager} at a fixed rate.
+ * <p/>
+ * Operations are scheduled on a fixed timetable and handed to a pool of workers.  Latency is measured from when an
+ * operation was due rather than from when a worker got to it, so a stalled server is charged for the requests that
+ * queued up behind it instead of hiding them, correcting for coordinated omission.  Service time, from the moment a
+ * worker starts the call, is reported next to it.
+ * <p/>
+ * Run {@link #main} with a CouchDB url to load a real server, or without one to load a {@link CouchDbEmulator}.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class LoadGenerator {
+
+  public enum Operation {
+    READ, WRITE, VIEW
+  }
+
+  static final String DESIGN_DOC = "load";
+  static final String VIEW_NAME = "by_value";
+
+  private final ResourceManager resourceMgr;
+  private final String dbName;
+
+  private int rate = 100;
+  private long duration = TimeUnit.SECONDS.toNanos(10);
+  private int threads = 16;
+  private int documents = 100;
+  private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+
+  public LoadGenerator(ResourceManager resourceMgr, String dbName) {
+    this.resourceMgr = resourceMgr;
+    this.dbName = dbName;
+    mix.put(Operation.READ, 70);
+    mix.put(Operation.WRITE, 20);
+    mix.put(Operation.VIEW, 10);
+  }
+
+  /**
+   * @param rate operations started per second
+   */
+  public LoadGenerator setRate(int rate) {
+    if (rate < 1) throw new IllegalArgumentException("Rate must be positive, was " + rate + ".");
+    this.rate = rate;
+    return this;
+  }
+
+  public LoadGenerator setDuration(long duration, TimeUnit unit) {
+    this.duration = unit.toNanos(duration);
+    return this;
+  }
+
+  /**
+   * @param threads workers making calls.  Too few and operations queue up, which shows in their latency.
+   */
+  public LoadGenerator setThreads(int threads) {
+    if (threads < 1) throw new IllegalArgumentException("Threads must be positive, was " + threads + ".");
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * @param documents how many documents the workload reads and updates
+   */
+  public LoadGenerator setDocuments(int documents) {
+    if (documents < 1) throw new IllegalArgumentException("Documents must be positive, was " + documents + ".");
+    this.documents = documents;
+    return this;
+  }
+
+  /**
+   * Sets the relative weights of the operations.
+   */
+  public LoadGenerator setMix(int reads, int writes, int views) {
+    if (reads < 0 || writes < 0 || views < 0 || reads + writes + views == 0)
+      throw new IllegalArgumentException("Weights must be non-negative and not all 0.");
+    mix.put(Operation.READ, reads);
+    mix.put(Operation.WRITE, writes);
+    mix.put(Operation.VIEW, views);
+    return this;
+  }
+
+  /**
+   * Creates the database if needed, with the documents and view the workload uses.
+   */
+  public void prepare() {
+    if (!resourceMgr.databaseExists(dbName)) resourceMgr.createDatabase(dbName);
+    List<Document> docs = new ArrayList<Document>(documents);
+    for (int i = 0; i < documents; i++) {
+      if (resourceMgr.getDocument(dbName, docId(i)) == null)
+        docs.add(new Document(dbName, docId(i), "{\"type\": \"load\", \"value\": " + i + ", \"writes\": 0}"));
+    }
+    if (!docs.isEmpty()) resourceMgr.saveDocuments(dbName, docs);
+    if (resourceMgr.getDocument(dbName, "_design/" + DESIGN_DOC) == null) {
+      resourceMgr.createView(DesignDocument.createDesignDocument(dbName, DESIGN_DOC, null,
+          Collections.singletonList(new DesignDocument.View(VIEW_NAME,
+              "function(doc) { if (doc.type == 'load') emit(doc.value, doc.writes); }", null))));
+    }
+  }
+
+  /**
+   * Runs the workload for the configured duration, then waits for the operations still queued or running.
+   */
+  public Report run() throws InterruptedException {
+    Report report = new Report();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    Random random = new Random();
+    long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+    long start = System.nanoTime();
+    try {
+      for (long i = 0; i * interval < duration; i++) {
+        final long due = start + i * interval;
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        final Operation operation = pick(random);
+        final int doc = random.nextInt(documents);
+        final Report r = report;
+        workers.execute(new Runnable() {
+          public void run() {
+            perform(operation, doc, due, r);
+          }
+        });
+      }
+    }
+    finally {
+      workers.shutdown();
+    }
+    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    report.elapsed = System.nanoTime() - start;
+    return report;
+  }
+
+  private Operation pick(Random random) {
+    int total = 0;
+    for (int weight : mix.values()) total += weight;
+    int n = random.nextInt(total);
+    for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+      n -= entry.getValue();
+      if (n < 0) return entry.getKey();
+    }
+    throw new IllegalStateException();
+  }
+
+  private void perform(Operation operation, final int doc, long due, Report report) {
+    long begin = System.nanoTime();
+    try {
+      switch (operation) {
+        case READ:
+          resourceMgr.getDocument(dbName, docId(doc));
+          break;
+        case WRITE:
+          resourceMgr.update(dbName, docId(doc), new DocumentUpdater() {
+            public Document update(Document current) {
+              if (current == null)
+                return new Document(dbName, docId(doc), "{\"type\": \"load\", \"value\": " + doc + ", \"writes\": 1}");
+              ObjectNode data = (ObjectNode) current.getJsonData();
+              data.put("writes", data.path("writes").getIntValue() + 1);
+              return current;
+            }
+          });
+          break;
+        case VIEW:
+          resourceMgr.executeView(new ViewQuery(dbName, DESIGN_DOC, VIEW_NAME).startKey(doc).limit(10),
+              Integer.class, Integer.class);
+          break;
+      }
+    }
+    catch (RuntimeException e) {
+      report.errors.incrementAndGet();
+    }
+    finally {
+      long end = System.nanoTime();
+      report.latency.get(operation).recordNanos(end - due);
+      report.serviceTime.get(operation).recordNanos(end - begin);
+    }
+  }
+
+  private static String docId(int i) {
+    return "load-" + i;
+  }
+
+  /**
+   * Latencies of a run in microseconds, by operation.
+   */
+  public static class Report {
+    private final Map<Operation, LatencyHistogram> latency = histograms();
+    private final Map<Operation, LatencyHistogram> serviceTime = histograms();
+    private final AtomicLong errors = new AtomicLong();
+    private long elapsed;
+
+    private static Map<Operation, LatencyHistogram> histograms() {
+      Map<Operation, LatencyHistogram> histograms = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+      for (Operation operation : Operation.values()) histograms.put(operation, new LatencyHistogram());
+      return histograms;
+    }
+
+    /**
+     * @return latencies measured from when operations were due, corrected for coordinated omission.
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+      return latency.get(operation);
+    }
+
+    /**
+     * @return latencies measured from when workers started the operations.
+     */
+    public LatencyHistogram getServiceTime(Operation operation) {
+      return serviceTime.get(operation);
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (LatencyHistogram histogram : latency.values()) count += histogram.getCount();
+      return count;
+    }
+
+    public long getErrorCount() {
+      return errors.get();
+    }
+
+    /**
+     * @return operations completed per second.
+     */
+    public double getThroughput() {
+      return elapsed > 0 ? getCount() * 1e9 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder out = new StringBuilder(String.format("%d operations, %d errors, %.1f/s%n",
+          getCount(), getErrorCount(), getThroughput()));
+      out.append(String.format("%-6s %8s %10s %10s %10s %10s %12s%n",
+          "", "count", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms"));
+      for (Operation operation : Operation.values()) {
+        LatencyHistogram h = latency.get(operation);
+        if (h.getCount() == 0) continue;
+        out.append(String.format("%-6s %8d %10.2f %10.2f %10.2f %10.2f %12.2f%n", operation.name().toLowerCase(),
+            h.getCount(), h.getP50() / 1000.0, h.getP99() / 1000.0, h.getP999() / 1000.0, h.getMax() / 1000.0,
+            serviceTime.get(operation).getP99() / 1000.0));
+      }
+      return out.toString();
+    }
+  }
+
+  /**
+   * Usage: <code>LoadGenerator [couchdb url] [rate/s] [seconds]</code>.  Without a url, loads an emulator answering
+   * within 1 to 5 milliseconds.
+   */
+  public static void main(String[] args) throws Exception {
+    CouchDbEmulator emulator = null;
+    String url;
+    if (args.length > 0 && !"-".equals(args[0])) {
+      url = args[0];
+    }
+    else {
+      emulator = new CouchDbEmulator();
+      emulator.setLatency(1, 5, TimeUnit.MILLISECONDS);
+      emulator.start();
+      url = emulator.getBaseUrl();
+    }
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    DefaultResourceManager resourceMgr = new DefaultResourceManager(url);
+    try {
+      LoadGenerator generator = new LoadGenerator(resourceMgr, "jrelax_load").setRate(rate)
+          .setDuration(seconds, TimeUnit.SECONDS);
+      generator.prepare();
+      System.out.print(generator.run());
+    }
+    finally {
+      if (emulator != null) emulator.stop();
+    }
+  }
+
+}
@@ -0,0 +1,449 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the subset of JavaScript map functions that most views are written in, for the {@link CouchDbEmulator}.
+ * <p/>
+ * A function's body may hold blocks, <code>if</code>/<code>else</code> statements and <code>emit(key, value)</code>
+ * calls.  Conditions combine comparisons with <code>&&</code>, <code>||</code> and <code>!</code>, and expressions
+ * are literals, array and object literals, and field lookups on the document like <code>doc.address.city</code> or
+ * <code>doc['type']</code>.  Truthiness and <code>undefined</code> follow JavaScript, so <code>if (doc.name)</code>
+ * skips documents without a name.  Anything else fails to parse.
+ *
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+class SimpleMapFunction implements CouchDbEmulator.MapFunction {
+
+  private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+  private final Statement body;
+
+  private SimpleMapFunction(Statement body) {
+    this.body = body;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the source is outside the supported subset
+   */
+  static SimpleMapFunction parse(String source) {
+    return new Parser(source).function();
+  }
+
+  public void map(JsonNode doc, CouchDbEmulator.Emitter emitter) {
+    body.run(doc, emitter);
+  }
+
+  private interface Statement {
+    void run(JsonNode doc, CouchDbEmulator.Emitter emitter);
+  }
+
+  /**
+   * Evaluates to a json node, or null for <code>undefined</code>.
+   */
+  private interface Expression {
+    JsonNode eval(JsonNode doc);
+  }
+
+  private static boolean truthy(JsonNode value) {
+    if (value == null || value.isNull() || value.isMissingNode()) return false;
+    if (value.isBoolean()) return value.getBooleanValue();
+    if (value.isNumber()) return value.getDoubleValue() != 0 && !Double.isNaN(value.getDoubleValue());
+    if (value.isTextual()) return value.getTextValue().length() > 0;
+    return true;
+  }
+
+  private static JsonNode bool(boolean value) {
+    return NODES.booleanNode(value);
+  }
+
+  private static boolean looseEquals(JsonNode a, JsonNode b) {
+    boolean aNull = a == null || a.isNull();
+    boolean bNull = b == null || b.isNull();
+    if (aNull || bNull) return aNull && bNull;
+    if (a.isNumber() && b.isNumber()) return a.getDoubleValue() == b.getDoubleValue();
+    if (a.isValueNode() && b.isValueNode()) return a.equals(b);
+    // Arrays and objects are only equal to themselves
+    return a == b;
+  }
+
+  private static class Parser {
+    private final String source;
+    private final List<String> tokens = new ArrayList<String>();
+    private int next;
+    private String param;
+
+    Parser(String source) {
+      this.source = source;
+      tokenize();
+    }
+
+    SimpleMapFunction function() {
+      expect("function");
+      expect("(");
+      param = identifier();
+      expect(")");
+      Statement body = block();
+      if (next < tokens.size()) throw error("Unexpected " + peek() + " after the function.");
+      return new SimpleMapFunction(body);
+    }
+
+    private Statement block() {
+      expect("{");
+      final List<Statement> statements = new ArrayList<Statement>();
+      while (!accept("}")) {
+        statements.add(statement());
+      }
+      return new Statement() {
+        public void run(JsonNode doc, CouchDbEmulator.Emitter emitter) {
+          for (Statement statement : statements) statement.run(doc, emitter);
+        }
+      };
+    }
+
+    private Statement statement() {
+      if (peekIs("{")) return block();
+      if (accept(";")) {
+        return new Statement() {
+          public void run(JsonNode doc, CouchDbEmulator.Emitter emitter) {
+          }
+        };
+      }
+      if (accept("if")) {
+        expect("(");
+        final Expression condition = expression();
+        expect(")");
+        final Statement then = statement();
+        final Statement otherwise = accept("else") ? statement() : null;
+        return new Statement() {
+          public void run(JsonNode doc, CouchDbEmulator.Emitter emitter) {
+            if (truthy(condition.eval(doc))) then.run(doc, emitter);
+            else if (otherwise != null) otherwise.run(doc, emitter);
+          }
+        };
+      }
+      expect("emit");
+      expect("(");
+      final Expression key = expression();
+      expect(",");
+      final Expression value = expression();
+      expect(")");
+      accept(";");
+      return new Statement() {
+        public void run(JsonNode doc, CouchDbEmulator.Emitter emitter) {
+          emitter.emit(key.eval(doc), value.eval(doc));
+        }
+      };
+    }
+
+    private Expression expression() {
+      Expression left = and();
+      while (accept("||")) {
+        final Expression a = left, b = and();
+        left = new Expression() {
+          public JsonNode eval(JsonNode doc) {
+            JsonNode value = a.eval(doc);
+            return truthy(value) ? value : b.eval(doc);
+          }
+        };
+      }
+      return left;
+    }
+
+    private Expression and() {
+      Expression left = comparison();
+      while (accept("&&")) {
+        final Expression a = left, b = comparison();
+        left = new Expression() {
+          public JsonNode eval(JsonNode doc) {
+            JsonNode value = a.eval(doc);
+            return truthy(value) ? b.eval(doc) : value;
+          }
+        };
+      }
+      return left;
+    }
+
+    private Expression comparison() {
+      final Expression left = unary();
+      final String op = peek();
+      if (!"==".equals(op) && !"===".equals(op) && !"!=".equals(op) && !"!==".equals(op) &&
+          !"<".equals(op) && !"<=".equals(op) && !">".equals(op) && !">=".equals(op))
+        return left;
+      next++;
+      final Expression right = unary();
+      return new Expression() {
+        public JsonNode eval(JsonNode doc) {
+          JsonNode a = left.eval(doc), b = right.eval(doc);
+          if (op.startsWith("=")) return bool(looseEquals(a, b));
+          if (op.startsWith("!")) return bool(!looseEquals(a, b));
+          if (a == null || b == null || a.isContainerNode() || b.isContainerNode()) return bool(false);
+          int c;
+          if (a.isNumber() && b.isNumber()) c = Double.compare(a.getDoubleValue(), b.getDoubleValue());
+          else if (a.isTextual() && b.isTextual()) c = a.getTextValue().compareTo(b.getTextValue());
+          else return bool(false);
+          if ("<".equals(op)) return bool(c < 0);
+          if ("<=".equals(op)) return bool(c <= 0);
+          if (">".equals(op)) return bool(c > 0);
+          return bool(c >= 0);
+        }
+      };
+    }
+
+    private Expression unary() {
+      if (accept("!")) {
+        final Expression operand = unary();
+        return new Expression() {
+          public JsonNode eval(JsonNode doc) {
+            return bool(!truthy(operand.eval(doc)));
+          }
+        };
+      }
+      if (accept("(")) {
+        Expression inner = expression();
+        expect(")");
+        return inner;
+      }
+      return primary();
+    }
+
+    private Expression primary() {
+      String token = take();
+      if ("null".equals(token)) return constant(NODES.nullNode());
+      if ("true".equals(token)) return constant(bool(true));
+      if ("false".equals(token)) return constant(bool(false));
+      if ("undefined".equals(token)) return constant(null);
+      if (token.startsWith("'") || token.startsWith("\"")) return constant(NODES.textNode(token.substring(1)));
+      if (Character.isDigit(token.charAt(0)) || token.startsWith("-")) {
+        return constant(token.matches("-?\\d+") ?
+            NODES.numberNode(Long.parseLong(token)) : NODES.numberNode(Double.parseDouble(token)));
+      }
+      if ("[".equals(token)) {
+        final List<Expression> elements = new ArrayList<Expression>();
+        if (!accept("]")) {
+          do {
+            elements.add(expression());
+          } while (accept(","));
+          expect("]");
+        }
+        return new Expression() {
+          public JsonNode eval(JsonNode doc) {
+            ArrayNode array = NODES.arrayNode();
+            for (Expression element : elements) {
+              JsonNode value = element.eval(doc);
+              array.add(value != null ? value : NODES.nullNode());
+            }
+            return array;
+          }
+        };
+      }
+      if ("{".equals(token)) {
+        final List<String> names = new ArrayList<String>();
+        final List<Expression> values = new ArrayList<Expression>();
+        if (!accept("}")) {
+          do {
+            String name = take();
+            names.add(name.startsWith("'") || name.startsWith("\"") ? name.substring(1) : name);
+            expect(":");
+            values.add(expression());
+          } while (accept(","));
+          expect("}");
+        }
+        return new Expression() {
+          public JsonNode eval(JsonNode doc) {
+            ObjectNode object = NODES.objectNode();
+            for (int i = 0; i < names.size(); i++) {
+              JsonNode value = values.get(i).eval(doc);
+              if (value != null) object.put(names.get(i), value);
+            }
+            return object;
+          }
+        };
+      }
+      if (!token.equals(param)) throw error("Unsupported expression " + token + ".");
+      Expression lookup = constantDoc();
+      while (peekIs(".") || peekIs("[")) {
+        final String field;
+        if (accept(".")) {
+          field = identifier();
+        }
+        else {
+          expect("[");
+          String index = take();
+          field = index.startsWith("'") || index.startsWith("\"") ? index.substring(1) : index;
+          expect("]");
+        }
+        final Expression target = lookup;
+        if ("length".equals(field)) {
+          lookup = new Expression() {
+            public JsonNode eval(JsonNode doc) {
+              JsonNode value = target.eval(doc);
+              if (value != null && value.isArray()) return NODES.numberNode(value.size());
+              if (value != null && value.isTextual()) return NODES.numberNode(value.getTextValue().length());
+              return value != null ? value.get("length") : null;
+            }
+          };
+        }
+        else {
+          lookup = new Expression() {
+            public JsonNode eval(JsonNode doc) {
+              JsonNode value = target.eval(doc);
+              if (value == null) throw new IllegalStateException("Can't read " + field + " of undefined.");
+              JsonNode child = value.isArray() && field.matches("\\d+") ?
+                  value.get(Integer.parseInt(field)) : value.get(field);
+              return child;
+            }
+          };
+        }
+      }
+      return lookup;
+    }
+
+    private static Expression constant(final JsonNode value) {
+      return new Expression() {
+        public JsonNode eval(JsonNode doc) {
+          return value;
+        }
+      };
+    }
+
+    private static Expression constantDoc() {
+      return new Expression() {
+        public JsonNode eval(JsonNode doc) {
+          return doc;
+        }
+      };
+    }
+
+    /* Tokens */
+
+    private void tokenize() {
+      int i = 0, n = source.length();
+      while (i < n) {
+        char c = source.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        }
+        else if (source.startsWith("//", i)) {
+          while (i < n && source.charAt(i) != '\n') i++;
+        }
+        else if (source.startsWith("/*", i)) {
+          int end = source.indexOf("*/", i + 2);
+          if (end < 0) throw error("Unterminated comment.");
+          i = end + 2;
+        }
+        else if (Character.isJavaIdentifierStart(c)) {
+          int start = i;
+          while (i < n && Character.isJavaIdentifierPart(source.charAt(i))) i++;
+          tokens.add(source.substring(start, i));
+        }
+        else if (Character.isDigit(c) || (c == '-' && i + 1 < n && Character.isDigit(source.charAt(i + 1)))) {
+          int start = i++;
+          while (i < n && (Character.isDigit(source.charAt(i)) || ".eE+-".indexOf(source.charAt(i)) >= 0)) i++;
+          tokens.add(source.substring(start, i));
+        }
+        else if (c == '\'' || c == '"') {
+          // Strings are kept with their opening quote, to tell them apart from identifiers
+          StringBuilder text = new StringBuilder().append(c);
+          i++;
+          while (i < n && source.charAt(i) != c) {
+            char ch = source.charAt(i++);
+            if (ch == '\\' && i < n) {
+              char escaped = source.charAt(i++);
+              text.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+            }
+            else {
+              text.append(ch);
+            }
+          }
+          if (i >= n) throw error("Unterminated string.");
+          i++;
+          tokens.add(text.toString());
+        }
+        else {
+          String[] operators = {"===", "!==", "==", "!=", "<=", ">=", "&&", "||"};
+          String op = null;
+          for (String candidate : operators) {
+            if (source.startsWith(candidate, i)) {
+              op = candidate;
+              break;
+            }
+          }
+          if (op == null) {
+            if ("(){}[].,;:!<>".indexOf(c) < 0) throw error("Unexpected character " + c + ".");
+            op = String.valueOf(c);
+          }
+          tokens.add(op);
+          i += op.length();
+        }
+      }
+    }
+
+    private String peek() {
+      return next < tokens.size() ? tokens.get(next) : null;
+    }
+
+    private boolean peekIs(String token) {
+      return token.equals(peek());
+    }
+
+    private boolean accept(String token) {
+      if (!peekIs(token)) return false;
+      next++;
+      return true;
+    }
+
+    private String take() {
+      if (next >= tokens.size()) throw error("Unexpected end of function.");
+      return tokens.get(next++);
+    }
+
+    private void expect(String token) {
+      String actual = take();
+      if (!token.equals(actual)) throw error("Expected " + token + " but found " + actual + ".");
+    }
+
+    private String identifier() {
+      String token = take();
+      if (!Character.isJavaIdentifierStart(token.charAt(0)))
+        throw error("Expected a name but found " + token + ".");
+      return token;
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " In: " + source);
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class ViewResultIteratorTest {
+
+  @Test
+  public void streamRows() throws UnsupportedEncodingException {
+    ViewResultIterator<String, Integer> it = iteratorFor(
+        "{\"total_rows\":3,\"offset\":1,\"rows\":[" +
+            "{\"id\":\"doc1\",\"key\":\"a\",\"value\":1,\"doc\":{\"nested\":[1,2,{\"x\":null}]}}," +
+            "{\"id\":\"doc2\",\"key\":\"b\",\"value\":2}" +
+            "]}", String.class, Integer.class);
+    assertEquals(it.getTotalRows(), 3);
+    assertEquals(it.getOffset(), 1);
+
+    assertTrue(it.hasNext());
+    ViewResult.ViewResultRow<String, Integer> row = it.next();
+    assertEquals(row.getId(), "doc1");
+    assertEquals(row.getKey(), "a");
+    assertEquals(row.getValue().intValue(), 1);
+
+    row = it.next();
+    assertEquals(row.getId(), "doc2");
+    assertEquals(row.getKey(), "b");
+    assertEquals(row.getValue().intValue(), 2);
+
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  @SuppressWarnings({"unchecked"})
+  public void streamReducedRows() throws UnsupportedEncodingException {
+    ViewResultIterator<List, Integer> it = iteratorFor(
+        "{\"rows\":[{\"key\":[1,\"x\"],\"value\":10}]}", List.class, Integer.class);
+    assertEquals(it.getTotalRows(), -1);
+    int count = 0;
+    for (ViewResult.ViewResultRow<List, Integer> row : it) {
+      assertNull(row.getId());
+      assertEquals(row.getKey().get(1), "x");
+      assertEquals(row.getValue().intValue(), 10);
+      count++;
+    }
+    assertEquals(count, 1);
+  }
+
+  @Test
+  public void streamRowDocuments() throws UnsupportedEncodingException {
+    ViewResultIterator<String, Object> it = new ViewResultIterator<String, Object>("docs_db", new ByteArrayInputStream((
+        "{\"total_rows\":2,\"offset\":0,\"rows\":[" +
+            "{\"id\":\"doc1\",\"key\":\"a\",\"value\":null,\"doc\":{\"_id\":\"doc1\",\"_rev\":\"1-x\",\"n\":1}}," +
+            "{\"id\":\"doc2\",\"key\":\"b\",\"value\":null,\"doc\":null}" +
+            "]}").getBytes("UTF-8")), String.class, Object.class);
+    ViewResult.ViewResultRow<String, Object> row = it.next();
+    Document doc = row.getDocument();
+    assertNotNull(doc);
+    assertEquals(doc.getDatabaseName(), "docs_db");
+    assertEquals(doc.getId(), "doc1");
+    assertEquals(doc.getRevision(), "1-x");
+    assertEquals(doc.getJsonData().path("n").getIntValue(), 1);
+    assertNull(it.next().getDocument());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void totalRowsAfterRows() throws UnsupportedEncodingException {
+    ViewResultIterator<Object, Object> it = iteratorFor(
+        "{\"rows\":[],\"total_rows\":0,\"offset\":0}", Object.class, Object.class);
+    assertFalse(it.hasNext());
+    assertEquals(it.getTotalRows(), 0);
+    assertEquals(it.getOffset(), 0);
+  }
+
+  private <K, V> ViewResultIterator<K, V> iteratorFor(String json, Class<K> keyType, Class<V> valueType)
+      throws UnsupportedEncodingException {
+    return new ViewResultIterator<K, V>(new ByteArrayInputStream(json.getBytes("UTF-8")), keyType, valueType);
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax.metrics;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void emptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(histogram.getCount(), 0);
+    assertEquals(histogram.getP99(), 0);
+    assertEquals(histogram.getMean(), 0.0);
+  }
+
+  @Test
+  public void bucketBoundaries() {
+    for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456, 1L << 39}) {
+      int index = LatencyHistogram.indexFor(value);
+      assertTrue(LatencyHistogram.highestValueFor(index) >= value, "bucket too low for " + value);
+      if (index > 0)
+        assertTrue(LatencyHistogram.highestValueFor(index - 1) < value, "bucket too high for " + value);
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(histogram.getCount(), 1000);
+    assertEquals(histogram.getMax(), 1000);
+    assertEquals(histogram.getMean(), 500.5, 0.001);
+    assertWithin(histogram.getP50(), 500);
+    assertWithin(histogram.getP99(), 990);
+    assertWithin(histogram.getP999(), 999);
+    assertEquals(histogram.getValueAtPercentile(100), 1000);
+  }
+
+  @Test
+  public void addHistograms() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    a.record(10);
+    b.record(20000);
+    a.add(b);
+    assertEquals(a.getCount(), 2);
+    assertEquals(a.getMax(), 20000);
+    assertWithin(a.getValueAtPercentile(100), 20000);
+  }
+
+  private void assertWithin(long actual, long expected) {
+    assertTrue(Math.abs(actual - expected) <= expected * 0.07, "expected about " + expected + " but was " + actual);
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2011, Ilya Sterin
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.buycentives.jrelax.utils;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * @author Ilya Sterin
+ * @version 1.0
+ */
+public class UriTemplateTest {
+
+  @Test
+  public void expandsPositionally() {
+    UriTemplate template = UriTemplate.compile("/${dbName}/${name}?rev=${rev}");
+    assertEquals(template.getVariableNames(), new String[]{"dbName", "name", "rev"});
+    assertEquals(template.expand("db", "doc", "1-abc"), "/db/doc?rev=1-abc");
+    assertEquals(UriTemplate.compile("/_all_dbs").expand(), "/_all_dbs");
+  }
+
+  @Test
+  public void encodesPathSegments() {
+    UriTemplate template = UriTemplate.compile("/${dbName}/${name}");
+    assertEquals(template.expand("a/b", "x y+z"), "/a%2Fb/x%20y%2Bz");
+    assertEquals(template.expand("db", "caf\u00e9"), "/db/caf%C3%A9");
+    assertEquals(template.expand("db", "_design/views"), "/db/_design/views");
+    assertEquals(template.expand("db", "_local/a/b"), "/db/_local/a%2Fb");
+  }
+
+  @Test
+  public void encodesQueryComponents() {
+    UriTemplate template = UriTemplate.compile("/${dbName}/_view?key=${key}");
+    assertEquals(template.expand("db", "[\"a&b\",1]"), "/db/_view?key=%5B%22a%26b%22,1%5D");
+
+    StringBuilder uri = UriTemplate.compile("/${dbName}/_changes").expandToBuffer("db");
+    UriTemplate.appendQueryParameter(uri, "since", "12");
+    UriTemplate.appendQueryParameter(uri, "q", "x=1 2");
+    assertEquals(uri.toString(), "/db/_changes?since=12&q=x%3D1%202");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void rejectsWrongValueCount() {
+    UriTemplate.compile("/${dbName}/${name}").expand("db");
+  }
+
+}